@@ -0,0 +1,129 @@
+package misc.ipdbui;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Keyset paging through the REST api: the continuation tokens of one page lead to the next, and tokens that weren't
+ * made by the api are rejected with 400.
+ */
+class ApiRouterITest {
+    static final ObjectMapper objectMapper = new ObjectMapper();
+    static ConfigurableApplicationContext context;
+    static String base;
+    final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+    @BeforeAll
+    static void beforeAll() {
+        context = new SpringApplicationBuilder(IpDbUiApp.class).run(
+                "--server.port=0",
+                "--spring.datasource.url=jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH");
+        base = ReplicaITest.base(context);
+    }
+
+    @AfterAll
+    static void afterAll() {
+        context.close();
+    }
+
+    @Test
+    void test_spacesPaging() throws Exception {
+        for (int i = 0; i < 5; i++)
+            send(base + "/spaces", "POST", "{\"name\":\"test_spacesPaging." + i + "\",\"version\":4}", 200);
+
+        List<String> names = new ArrayList<>();
+        String next = null;
+        int pages = 0;
+        do {
+            JsonNode page = get(base + "/spaces?size=2" + (next == null ? "" : "&next=" + next), 200);
+            page.get("items").forEach(space -> names.add(space.get("name").asText()));
+            next = page.get("next").isNull() ? null : page.get("next").asText();
+            pages++;
+        } while (next != null);
+        assertThat(names.stream().filter(name -> name.startsWith("test_spacesPaging.")).toList(),
+                contains("test_spacesPaging.0", "test_spacesPaging.1", "test_spacesPaging.2", "test_spacesPaging.3",
+                        "test_spacesPaging.4"));
+        assertThat(pages, is((names.size() + 1) / 2));
+
+        get(base + "/spaces?size=2&next=" + token("not a number"), 400);
+        get(base + "/spaces?size=2&next=!!!", 400);
+    }
+
+    @Test
+    void test_rangesPaging() throws Exception {
+        int id = get(base + "/spaces", "POST", "{\"name\":\"test_rangesPaging\",\"version\":4}", 200).get("id").asInt();
+        List<String> cidrs = List.of("10.0.0.0/24", "10.0.1.0/24", "10.0.2.0/24", "10.0.3.0/24", "255.255.255.0/24");
+        for (String cidr : cidrs)
+            send(base + "/spaces/" + id + "/ranges", "POST", "{\"name\":\"" + cidr + "\",\"cidr\":\"" + cidr + "\"}", 200);
+
+        List<String> names = new ArrayList<>();
+        String next = null;
+        do {
+            JsonNode page = get(base + "/spaces/" + id + "/ranges?size=2" + (next == null ? "" : "&next=" + next), 200);
+            page.get("items").forEach(range -> names.add(range.get("name").asText()));
+            next = page.get("next").isNull() ? null : page.get("next").asText();
+        } while (next != null);
+        assertThat(names, is(cidrs));
+
+        // the last range ends at the end of the address space, a token after it leads to an empty page
+        JsonNode last = get(base + "/spaces/" + id + "/ranges?size=1&next=" + token("10.0.3.0 10.0.4.0"), 200);
+        assertThat(last.get("items").get(0).get("name").asText(), is("255.255.255.0/24"));
+        assertThat(last.get("next").isNull(), is(true));
+        assertThat(get(base + "/spaces/" + id + "/ranges?next=" + token("255.255.255.0 end"), 200).get("items"),
+                is(emptyIterable()));
+    }
+
+    // tokens tampered with, or of another version, are rejected rather than read as some position
+    @Test
+    void test_tamperedTokens() throws Exception {
+        int id = get(base + "/spaces", "POST", "{\"name\":\"test_tamperedTokens\",\"version\":4}", 200).get("id").asInt();
+        for (String key : List.of("10.0.0.0", "10.0.0.0 10.0.0.1 10.0.0.2", "10.0.0.0 300.0.0.0", "10.0.0.0 2001:db8::",
+                "10.0.0.0 ", "4294967296 end"))
+            get(base + "/spaces/" + id + "/ranges?next=" + token(key), 400);
+        get(base + "/spaces/" + id + "/ranges?next=%25%25", 400);
+        get(base + "/spaces/" + id + "/free?next=" + token("10.0.0.256"), 400);
+        get(base + "/spaces/" + id + "/free?next=" + token("::1"), 400);
+        // the one gap of the empty space starts before the token
+        assertThat(get(base + "/spaces/" + id + "/free?next=" + token("10.0.0.0"), 200).get("items"), is(emptyIterable()));
+    }
+
+    static String token(String key) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    JsonNode get(String uri, int status) throws Exception {
+        return get(uri, "GET", null, status);
+    }
+
+    JsonNode get(String uri, String method, String body, int status) throws Exception {
+        return objectMapper.readTree(send(uri, method, body, status));
+    }
+
+    String send(String uri, String method, String body, int status) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(uri))
+                .header("Content-Type", "application/json")
+                .method(method, body == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        assertThat(method + " " + uri + ": " + response.body(), response.statusCode(), is(status));
+        return response.body();
+    }
+}
@@ -0,0 +1,74 @@
+package misc.ipdbui;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * A primary and a replica node sharing a file-backed database: the replica serves what was reserved on the primary,
+ * before and after it started, and rejects writes.
+ */
+class ReplicaITest {
+    final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+    @Test
+    void test_replicaFollowsPrimary(@TempDir Path dir) throws Exception {
+        String url = "jdbc:h2:file:" + dir.resolve("ipdb") + ";AUTO_SERVER=TRUE;MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH";
+        try (ConfigurableApplicationContext primary = start(url, false)) {
+            String primaryBase = base(primary);
+            send(primaryBase + "/spaces", "POST", "{\"name\":\"replicated\",\"version\":4}", 200);
+            send(primaryBase + "/spaces/1/ranges", "POST", "{\"name\":\"before\",\"cidr\":\"10.0.0.0/24\"}", 200);
+
+            try (ConfigurableApplicationContext replica = start(url, true)) {
+                String replicaBase = base(replica);
+                assertThat(lookup(replicaBase, "10.0.0.1"), containsString("\"before\""));
+
+                send(primaryBase + "/spaces/1/ranges", "POST", "{\"name\":\"after\",\"cidr\":\"10.0.1.0/24\"}", 200);
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+                while (!lookup(replicaBase, "10.0.1.1").contains("\"after\"")) {
+                    assertThat(System.nanoTime(), lessThan(deadline));
+                    Thread.sleep(100);
+                }
+                assertThat(send(replicaBase + "/spaces/1/ranges", "GET", null, 200), containsString("\"after\""));
+
+                send(replicaBase + "/spaces/1/ranges", "POST", "{\"name\":\"rejected\",\"cidr\":\"10.0.2.0/24\"}", 405);
+            }
+        }
+    }
+
+    static ConfigurableApplicationContext start(String url, boolean replica) {
+        return new SpringApplicationBuilder(IpDbUiApp.class).run(
+                "--server.port=0",
+                "--ipdb.replica.enabled=" + replica,
+                "--spring.datasource.url=" + url);
+    }
+
+    static String base(ConfigurableApplicationContext context) {
+        return "http://localhost:" + context.getEnvironment().getRequiredProperty("local.server.port") + "/api/v1";
+    }
+
+    String lookup(String base, String address) throws Exception {
+        return send(base + "/spaces/1/lookup", "POST", "{\"addresses\":[\"" + address + "\"]}", 200);
+    }
+
+    String send(String uri, String method, String body, int status) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(uri))
+                .header("Content-Type", "application/json")
+                .method(method, body == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        assertThat(method + " " + uri + ": " + response.body(), response.statusCode(), is(status));
+        return response.body();
+    }
+}
@@ -0,0 +1,158 @@
+package misc.ipdbui;
+
+import lombok.extern.slf4j.Slf4j;
+import misc.ipdb.IpDbService;
+import misc.ipdb.IpDbService.IpAddress;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.IpSpace;
+import misc.ipdb.IpDbService.IpVersion;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledForJreRange;
+import org.junit.jupiter.api.condition.JRE;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Compares throughput and p99 latency of listing ranges and looking up addresses with requests handled on platform
+ * threads (the default) and on virtual threads. More clients than tomcat has platform threads, so requests queue
+ * for a thread in one mode and for a connection in the other.
+ */
+@Slf4j
+@EnabledForJreRange(min = JRE.JAVA_21)
+class VirtualThreadsLoadITest {
+    static final int CLIENTS = 400;
+    static final int RANGES = 10_000;
+    static final Duration WARMUP = Duration.ofSeconds(5);
+    static final Duration DURATION = Duration.ofSeconds(15);
+
+    record Result(String mode, String endpoint, long requests, double perSecond, double p99Millis) {
+    }
+
+    @Test
+    void test_platformVersusVirtualThreads() throws Exception {
+        List<Result> results = new ArrayList<>();
+        results.addAll(run(false));
+        results.addAll(run(true));
+        results.forEach(r -> log.info("{} {}: {} requests, {} per second, p99 {} ms",
+                r.mode(), r.endpoint(), r.requests(), String.format("%.0f", r.perSecond()), String.format("%.1f", r.p99Millis())));
+        for (Result r : results)
+            assertThat(r.toString(), r.requests(), greaterThan(0L));
+    }
+
+    List<Result> run(boolean virtualThreads) throws Exception {
+        String mode = virtualThreads ? "virtual" : "platform";
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(IpDbUiApp.class).run(
+                "--server.port=0",
+                "--spring.threads.virtual.enabled=" + virtualThreads,
+                "--spring.datasource.url=jdbc:h2:mem:load_" + mode + ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH")) {
+            int port = context.getEnvironment().getRequiredProperty("local.server.port", Integer.class);
+            int spaceId = seed(context.getBean(IpDbService.class));
+            String base = "http://localhost:" + port + "/api/v1/spaces/" + spaceId;
+
+            load(base, Duration.ZERO, WARMUP);
+            long[][] latencies = load(base, WARMUP, DURATION);
+            return List.of(
+                    result(mode, "ranges", latencies[0]),
+                    result(mode, "lookup", latencies[1]));
+        }
+    }
+
+    // a v4 space of /24s from 10.0.0.0
+    static int seed(IpDbService ipDbService) {
+        IpSpace ipSpace = ipDbService.create(new IpSpace().setName("load").setIpVersion(IpVersion.V4));
+        List<IpRange> ipRanges = IntStream.range(0, RANGES)
+                .mapToObj(i -> new IpRange().setName("r" + i)
+                        .setMinFromIp(IpAddress.v4((10L << 24) + ((long) i << 8)))
+                        .setMaxFromIp(IpAddress.v4((10L << 24) + ((long) (i + 1) << 8))))
+                .toList();
+        ipDbService.reserveAll(ipSpace.getId(), ipRanges);
+        return ipSpace.getId();
+    }
+
+    // latencies in nanos of the ranges and lookup requests completed after the warmup
+    static long[][] load(String base, Duration warmup, Duration duration) throws Exception {
+        ExecutorService responses = Executors.newFixedThreadPool(16);
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).executor(responses).build();
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        long start = System.nanoTime() + warmup.toNanos(), end = start + duration.toNanos();
+        try {
+            List<Future<long[][]>> futures = new ArrayList<>();
+            for (int c = 0; c < CLIENTS; c++)
+                futures.add(clients.submit(() -> client(client, base, start, end)));
+            long[][] latencies = {new long[0], new long[0]};
+            for (Future<long[][]> future : futures) {
+                long[][] l = future.get();
+                for (int i = 0; i < 2; i++)
+                    latencies[i] = concat(latencies[i], l[i]);
+            }
+            return latencies;
+        } finally {
+            clients.shutdownNow();
+            responses.shutdownNow();
+        }
+    }
+
+    static long[][] client(HttpClient client, String base, long start, long end) throws Exception {
+        long[] ranges = new long[1024], lookups = new long[1024];
+        int rangeCount = 0, lookupCount = 0;
+        var random = ThreadLocalRandom.current();
+        for (long now = System.nanoTime(); now < end; now = System.nanoTime()) {
+            boolean lookup = random.nextBoolean();
+            HttpRequest request;
+            if (lookup) {
+                String addresses = IntStream.range(0, 8)
+                        .mapToObj(i -> "\"" + IpAddress.v4((10L << 24) + random.nextLong(RANGES * 256L)) + "\"")
+                        .reduce((a, b) -> a + "," + b).orElseThrow();
+                request = HttpRequest.newBuilder(URI.create(base + "/lookup"))
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString("{\"addresses\":[" + addresses + "]}"))
+                        .build();
+            } else {
+                request = HttpRequest.newBuilder(URI.create(base + "/ranges?size=50")).build();
+            }
+            HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+            long latency = System.nanoTime() - now;
+            if (response.statusCode() != 200)
+                throw new IllegalStateException(request.uri() + ": " + response.statusCode());
+            if (now < start)
+                continue;
+            if (lookup) {
+                if (lookupCount == lookups.length) lookups = Arrays.copyOf(lookups, lookupCount * 2);
+                lookups[lookupCount++] = latency;
+            } else {
+                if (rangeCount == ranges.length) ranges = Arrays.copyOf(ranges, rangeCount * 2);
+                ranges[rangeCount++] = latency;
+            }
+        }
+        return new long[][]{Arrays.copyOf(ranges, rangeCount), Arrays.copyOf(lookups, lookupCount)};
+    }
+
+    static Result result(String mode, String endpoint, long[] latencies) {
+        Arrays.sort(latencies);
+        double p99 = latencies.length == 0 ? 0 : latencies[(int) Math.min(latencies.length - 1, Math.ceil(latencies.length * 0.99) - 1)];
+        return new Result(mode, endpoint, latencies.length, latencies.length / (DURATION.toNanos() / 1e9), p99 / 1e6);
+    }
+
+    static long[] concat(long[] a, long[] b) {
+        long[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
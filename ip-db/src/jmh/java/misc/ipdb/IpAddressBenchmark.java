@@ -0,0 +1,63 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.IpAddress;
+import misc.ipdb.IpDbService.IpVersion;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and serializing addresses, cycling through a fixed set of random ones.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IpAddressBenchmark {
+    private static final int ADDRESSES = 1024;
+
+    @Param({"V4", "V6"})
+    IpVersion version;
+
+    String[] strings;
+    IpAddress[] addresses;
+    int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(0);
+        addresses = new IpAddress[ADDRESSES];
+        strings = new String[ADDRESSES];
+        for (int i = 0; i < ADDRESSES; i++) {
+            addresses[i] = switch (version) {
+                case V4 -> IpAddress.v4(random.nextLong() >>> 32);
+                // some with runs of zeros, to exercise "::"
+                case V6 -> IpAddress.v6(random.nextLong(), i % 2 == 0 ? random.nextLong() : random.nextLong() & 0xffff);
+            };
+            strings[i] = addresses[i].address();
+        }
+    }
+
+    private int nextIndex() {
+        return next = (next + 1) & (ADDRESSES - 1);
+    }
+
+    @Benchmark
+    public IpAddress parse() {
+        return IpAddress.from(strings[nextIndex()], version);
+    }
+
+    @Benchmark
+    public String serialize() {
+        return addresses[nextIndex()].address();
+    }
+
+    @Benchmark
+    public int compare() {
+        int i = nextIndex();
+        return addresses[i].compareTo(addresses[(i + 1) & (ADDRESSES - 1)]);
+    }
+}
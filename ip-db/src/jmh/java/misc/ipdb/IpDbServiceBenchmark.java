@@ -0,0 +1,180 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.IpAddress;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.IpSpace;
+import misc.ipdb.IpDbService.IpVersion;
+import misc.ipdb.IpDbService.RangeKey;
+import misc.ipdb.util.DbFactory;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The service against fresh storage per trial (an in-memory H2, files in a temporary directory, or the memory
+ * storage), with a space of {@code size} ranges of 16 addresses, each followed by a gap of 16.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IpDbServiceBenchmark {
+    private static final int PAGE_SIZE = 100;
+
+    @State(Scope.Benchmark)
+    public static class Space {
+        @Param({"1000", "100000"})
+        int size;
+
+        @Param({"V4", "V6"})
+        IpVersion version;
+
+        @Param({"jdbc", "file", "memory"})
+        String storage;
+
+        IpDbStorage ipDbStorage;
+        Path directory;
+        IpDbService ipDbService;
+        IpSpace ipSpace;
+        List<IpRange> ranges;
+        final AtomicInteger slots = new AtomicInteger();
+
+        @Setup
+        public void setUp() {
+            ipDbStorage = switch (storage) {
+                case "file" -> IpDbStorage.file(directory = createTempDirectory());
+                case "memory" -> IpDbStorage.memory();
+                default -> IpDbStorage.jdbc(DbFactory.INSTANCE.dataSource("jdbc:h2:mem:" + UUID.randomUUID() +
+                        ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH"));
+            };
+            ipDbStorage.migrate();
+            ipDbService = new IpDbService(ipDbStorage);
+            ipSpace = ipDbService.create(new IpSpace().setName("benchmark").setIpVersion(version));
+            List<IpRange> batch = new ArrayList<>(size);
+            for (int i = 0; i < size; i++)
+                batch.add(new IpRange().setName("r" + i).setMinFromIp(address(i, 0)).setMaxFromIp(address(i, 16)));
+            ranges = ipDbService.reserveAll(ipSpace.getId(), batch).reserved();
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            if (ipDbStorage instanceof AutoCloseable closeable)
+                closeable.close();
+            if (directory != null)
+                FileSystemUtils.deleteRecursively(directory);
+        }
+
+        private static Path createTempDirectory() {
+            try {
+                return Files.createTempDirectory("ip-db-benchmark");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // the address at this offset from the start of the i-th block of 32
+        IpAddress address(long i, long offset) {
+            return switch (version) {
+                case V4 -> IpAddress.v4(0x0a000000L + i * 32 + offset);
+                case V6 -> IpAddress.v6(0x20010db800000000L + i, offset);
+            };
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Lookups {
+        @Param({"hit", "miss"})
+        String lookup;
+
+        IpAddress[] addresses;
+        int next;
+
+        @Setup
+        public void setUp(Space space) {
+            Random random = new Random(0);
+            addresses = new IpAddress[1024];
+            for (int i = 0; i < addresses.length; i++)
+                addresses[i] = space.address(random.nextInt(space.size), lookup.equals("hit") ? 7 : 23);
+        }
+
+        IpAddress next() {
+            return addresses[next = (next + 1) & (addresses.length - 1)];
+        }
+    }
+
+    // a block of addresses after the populated ones for each thread, to reserve and release within
+    @State(Scope.Thread)
+    public static class Slot {
+        long block;
+
+        @Setup
+        public void setUp(Space space) {
+            block = space.size + space.slots.getAndIncrement();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Pages {
+        Random random = new Random(0);
+    }
+
+    @Benchmark
+    public IpRange rangeOf(Space space, Lookups lookups) {
+        return space.ipDbService.rangeOf(space.ipSpace, lookups.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public IpRange rangeOf_concurrent(Space space, Lookups lookups) {
+        return space.ipDbService.rangeOf(space.ipSpace, lookups.next());
+    }
+
+    @Benchmark
+    public boolean free(Space space, Lookups lookups) {
+        return space.ipDbService.free(space.ipSpace, lookups.next());
+    }
+
+    @Benchmark
+    public IpRange reserveAndRelease(Space space, Slot slot) {
+        return reserveAndRelease(space, slot.block);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public IpRange reserveAndRelease_concurrent(Space space, Slot slot) {
+        return reserveAndRelease(space, slot.block);
+    }
+
+    private IpRange reserveAndRelease(Space space, long block) {
+        IpRange ipRange = space.ipDbService.reserve(new IpRange().setName("b" + block).setIpSpace(space.ipSpace)
+                .setIpSpaceId(space.ipSpace.getId())
+                .setMinFromIp(space.address(block, 0))
+                .setMaxFromIp(space.address(block, 16)));
+        return space.ipDbService.release(ipRange);
+    }
+
+    // a page from a random depth of the space
+    @Benchmark
+    public List<IpRange> listRanges_keyset(Space space, Pages pages) {
+        IpRange after = space.ranges.get(pages.random.nextInt(space.size));
+        return space.ipDbService.listRanges(space.ipSpace, RangeKey.of(after), PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<IpRange> listRanges_offset(Space space, Pages pages) {
+        int page = pages.random.nextInt(space.size / PAGE_SIZE);
+        return space.ipDbService.listRanges(space.ipSpace, PageRequest.of(page, PAGE_SIZE));
+    }
+}
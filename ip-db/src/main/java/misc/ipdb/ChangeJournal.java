@@ -0,0 +1,270 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.Change;
+import misc.ipdb.IpDbService.ChangePage;
+import misc.ipdb.IpDbService.ChangeType;
+import misc.ipdb.IpDbService.IpAddress;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.IpSpace;
+import misc.ipdb.IpDbService.IpVersion;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.jdbc.core.simple.JdbcClient;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only journal of the changes to spaces and ranges, written in the transaction of each change, so a change
+ * and its event are committed (or rolled back) together. Consumers read the events after the last sequence number
+ * they've seen.
+ * <p>
+ * Sequence numbers are taken when an event is inserted, but transactions of different spaces may commit out of that
+ * order, so a reader could see event 8 before event 7 is committed and then skip it. Readers close a gap in the
+ * sequence by inserting a {@code SKIPPED} event at the missing number, in a transaction of its own: while the
+ * transaction that took the number is open the insert waits on the key, once that commits the insert fails as a
+ * duplicate and the event is there to read, and once it rolled back (or the number was never used) the skipped
+ * event takes its place for good. Reads stop before a gap whose transaction is still open, however long it takes.
+ */
+@Slf4j
+class ChangeJournal implements ChangeStore {
+    // how long a reader waits for the transaction that took a missing number, before reading up to the gap only
+    static final Duration GAP_WAIT = Duration.ofSeconds(1);
+    // waiting readers check again this often, for events of other processes and for gaps that close
+    static final Duration POLL_INTERVAL = Duration.ofSeconds(1);
+    private static final String SKIPPED = "SKIPPED";
+
+    private final JdbcClient jdbcClient;
+    private final NamedParameterJdbcTemplate namedParameterJdbcTemplate;
+    // gaps are closed in transactions of their own, so a reader doesn't hold the keys it took
+    private final TransactionTemplate gapTransaction;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    // commits of events in this process, readers wait for it to change
+    private long commits;
+
+    ChangeJournal(JdbcClient jdbcClient, NamedParameterJdbcTemplate namedParameterJdbcTemplate,
+                  PlatformTransactionManager transactionManager) {
+        this.jdbcClient = jdbcClient;
+        this.namedParameterJdbcTemplate = namedParameterJdbcTemplate;
+        this.gapTransaction = new TransactionTemplate(transactionManager);
+        gapTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        gapTransaction.setTimeout((int) GAP_WAIT.toSeconds());
+    }
+
+    @Override
+    public void append(ChangeType type, IpSpace ipSpace) {
+        jdbcClient.sql(INSERT_SQL).paramSource(params(type, ipSpace)).update();
+        signalOnCommit();
+    }
+
+    @Override
+    public void append(ChangeType type, IpRange ipRange) {
+        jdbcClient.sql(INSERT_SQL).paramSource(params(type, ipRange)).update();
+        signalOnCommit();
+    }
+
+    @Override
+    public void appendAll(ChangeType type, List<IpRange> ipRanges) {
+        namedParameterJdbcTemplate.batchUpdate(INSERT_SQL, ipRanges.stream()
+                .map(r -> params(type, r))
+                .toArray(SqlParameterSource[]::new));
+        signalOnCommit();
+    }
+
+    // the events after this sequence number up to the first gap still open, of one space or all of them (ipSpaceId
+    // null). the returned position may be past the last event of a space, when other spaces changed
+    @Override
+    public ChangePage read(long after, Integer ipSpaceId, int limit) {
+        long horizon = horizon(after);
+        List<Change> changes = ipSpaceId == null
+                ? jdbcClient.sql(SELECT_SQL).params(after, horizon, limit).query(ChangeJournal::change).list()
+                : jdbcClient.sql(SELECT_SPACE_SQL).params(ipSpaceId, after, horizon, limit).query(ChangeJournal::change).list();
+        return new ChangePage(changes, changes.size() == limit ? changes.get(limit - 1).seq() : horizon);
+    }
+
+    // a position to read on from without missing events: right before the first gap still open
+    @Override
+    public long head() {
+        return horizon(0);
+    }
+
+    // the last sequence number readers can go up to: right before the first missing number whose transaction is still
+    // open, otherwise the last event. gaps are closed on the way, so each is waited for by one read at most
+    private long horizon(long after) {
+        while (true) {
+            Long next = jdbcClient.sql(GAP_SQL).params(after + 1).query(Long.class).single();
+            if (next == null) {
+                Long last = jdbcClient.sql("select max(seq) from change_journal").query(Long.class).single();
+                return last == null ? after : Math.max(last, after);
+            }
+            // the numbers missing right before the event at next
+            Long before = jdbcClient.sql("select max(seq) from change_journal where seq < ?").params(next).query(Long.class).single();
+            long missing = Math.max(before == null ? 0 : before, after) + 1;
+            for (; missing < next; missing++)
+                if (!close(missing))
+                    return missing - 1;
+            after = next;
+        }
+    }
+
+    // whether the number is taken for good: committed by its transaction, or skipped once that rolled back (or the
+    // number was never used); false while the transaction is open
+    private boolean close(long seq) {
+        try {
+            gapTransaction.executeWithoutResult(status -> jdbcClient.sql(SKIP_SQL).params(seq, SKIPPED).update());
+            log.debug("skipped journal number {}", seq);
+            return true;
+        } catch (DuplicateKeyException e) {
+            return true;
+        } catch (TransientDataAccessException | TransactionException e) {
+            // timed out waiting on the open transaction (the rollback of a cancelled probe may fail too)
+            return false;
+        }
+    }
+
+    // like read, but waits up to timeout for events when there are none yet
+    @Override
+    public ChangePage await(long after, Integer ipSpaceId, int limit, Duration timeout) {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (true) {
+            long seen = commits();
+            ChangePage page = read(after, ipSpaceId, limit);
+            if (!page.changes().isEmpty())
+                return page;
+            after = page.next();
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return page;
+            lock.lock();
+            try {
+                if (commits == seen)
+                    appended.awaitNanos(Math.min(remaining, POLL_INTERVAL.toNanos()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return page;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private long commits() {
+        lock.lock();
+        try {
+            return commits;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // wakes waiting readers once the event is visible to them
+    private void signalOnCommit() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            signal();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                signal();
+            }
+        });
+    }
+
+    private void signal() {
+        lock.lock();
+        try {
+            commits++;
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final String INSERT_SQL = """
+            insert into change_journal(type, ip_space_id, ip_range_id, name, description, version, min, max)
+            values (:type, :ipSpaceId, :ipRangeId, :name, :description, :version, :min, :max)
+            """;
+
+    // the first event after a number whose predecessor is missing
+    private static final String GAP_SQL = """
+            select min(j.seq) from change_journal j
+            where j.seq > ? and not exists (select 1 from change_journal p where p.seq = j.seq - 1)
+            """;
+
+    // skipped events belong to no space, and have no version
+    private static final String SKIP_SQL = "insert into change_journal(seq, type, ip_space_id, version) values (?, ?, 0, 0)";
+
+    private static final String SELECT_SQL =
+            "select * from change_journal where seq > ? and seq <= ? and type <> '" + SKIPPED + "' order by seq limit ?";
+
+    private static final String SELECT_SPACE_SQL =
+            "select * from change_journal where ip_space_id = ? and seq > ? and seq <= ? order by seq limit ?";
+
+    private static SqlParameterSource params(ChangeType type, IpSpace ipSpace) {
+        return new MapSqlParameterSource()
+                .addValue("type", type.name())
+                .addValue("ipSpaceId", ipSpace.getId())
+                .addValue("ipRangeId", null)
+                .addValue("name", ipSpace.getName())
+                .addValue("description", ipSpace.getDescription())
+                .addValue("version", ipSpace.getVersion())
+                .addValue("min", ipSpace.getMin() == null ? null : bytes(ipSpace.minAddress()))
+                .addValue("max", ipSpace.getMax() == null ? null : bytes(ipSpace.maxAddress()));
+    }
+
+    private static SqlParameterSource params(ChangeType type, IpRange ipRange) {
+        return new MapSqlParameterSource()
+                .addValue("type", type.name())
+                .addValue("ipSpaceId", ipRange.getIpSpaceId())
+                .addValue("ipRangeId", ipRange.getId())
+                .addValue("name", ipRange.getName())
+                .addValue("description", ipRange.getDescription())
+                .addValue("version", ipRange.getIpSpace().getVersion())
+                .addValue("min", bytes(ipRange.minAddress()))
+                .addValue("max", bytes(ipRange.maxAddress()));
+    }
+
+    private static Change change(ResultSet rs, int rowNum) throws SQLException {
+        IpVersion ipVersion = IpVersion.from(rs.getInt("version"));
+        Integer ipRangeId = rs.getObject("ip_range_id", Integer.class);
+        return new Change(
+                rs.getLong("seq"),
+                ChangeType.valueOf(rs.getString("type")),
+                rs.getInt("ip_space_id"),
+                ipRangeId,
+                rs.getString("name"),
+                rs.getString("description"),
+                address(rs.getBytes("min"), ipVersion, null),
+                // a range ends somewhere, a space without a max doesn't have one
+                address(rs.getBytes("max"), ipVersion, ipRangeId == null ? null : ipVersion.end()),
+                rs.getTimestamp("created_at").toInstant());
+    }
+
+    // bounds as the bytes of the address, 4 for ipv4 and 16 for ipv6 like the range tables, and the end of the
+    // address space as null
+    private static byte[] bytes(IpAddress address) {
+        return address.end() ? null : address.toByteArray();
+    }
+
+    private static IpAddress address(byte[] value, IpVersion ipVersion, IpAddress ifNull) {
+        if (value == null)
+            return ifNull;
+        return ipVersion == IpVersion.V4 ? IpAddress.v4(value) : IpAddress.v6(value);
+    }
+}
@@ -0,0 +1,27 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.ChangePage;
+import misc.ipdb.IpDbService.ChangeType;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.IpSpace;
+
+import java.time.Duration;
+import java.util.List;
+
+// the change journal of an IpDbStorage, appended to within the transaction of each change
+public interface ChangeStore {
+    void append(ChangeType type, IpSpace ipSpace);
+
+    void append(ChangeType type, IpRange ipRange);
+
+    void appendAll(ChangeType type, List<IpRange> ipRanges);
+
+    // the changes after this sequence number, of one space or of all of them (ipSpaceId null); continue after next
+    ChangePage read(long after, Integer ipSpaceId, int limit);
+
+    // like read, but waits up to timeout for changes when there are none yet
+    ChangePage await(long after, Integer ipSpaceId, int limit, Duration timeout);
+
+    // a position to read on from without missing changes
+    long head();
+}
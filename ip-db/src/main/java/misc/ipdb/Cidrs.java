@@ -0,0 +1,117 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.Cidr;
+import misc.ipdb.IpDbService.IpAddress;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.IpSpace;
+import misc.ipdb.IpDbService.IpVersion;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Conversions from ranges to {@link Cidr} blocks, on the two longs of {@link IpAddress} rather than
+ * {@code BigInteger}.
+ * <p>
+ * Ranges are half-open {@code [min, max)}; ranges up to the last address end at {@link IpVersion#end()}, like
+ * unbounded spaces (see {@link IpSpace#maxAddress()}).
+ */
+public final class Cidrs {
+    private Cidrs() {
+    }
+
+    // the fewest blocks covering exactly [min, max), ordered by address
+    public static List<Cidr> decompose(IpAddress min, IpAddress max) {
+        List<Cidr> result = new ArrayList<>();
+        decompose(min, max, result::add);
+        return result;
+    }
+
+    // each block is the largest one aligned at the next address that doesn't run past the end
+    public static void decompose(IpAddress min, IpAddress max, Consumer<Cidr> consumer) {
+        IpVersion ipVersion = min.version();
+        int bits = ipVersion.getBits();
+        if (max.compareTo(min) <= 0)
+            return;
+        // the last address of the range
+        IpAddress last = max.previous();
+        long endHi = last.hi(), endLo = last.lo();
+        for (IpAddress next = min; next.compareTo(max) < 0; ) {
+            // addresses left, minus one
+            long leftLo = endLo - next.lo();
+            long leftHi = endHi - next.hi() - (Long.compareUnsigned(endLo, next.lo()) < 0 ? 1 : 0);
+            int hostBits = Math.min(Math.min(floorLog2PlusOne(leftHi, leftLo), trailingZeros(next)), bits);
+            consumer.accept(new Cidr(next, bits - hostBits));
+            next = next.plusBlock(bits - hostBits);
+        }
+    }
+
+    // the number of addresses in [min, max)
+    public static BigInteger size(IpAddress min, IpAddress max) {
+        if (max.compareTo(min) <= 0)
+            return BigInteger.ZERO;
+        return max.toBigInteger().subtract(min.toBigInteger());
+    }
+
+    // the fewest blocks covering exactly the addresses of these ranges (ordered by min)
+    public static List<Cidr> aggregate(Iterable<IpRange> ipRanges) {
+        List<Cidr> result = new ArrayList<>();
+        var aggregator = new Aggregator(result::add);
+        ipRanges.forEach(aggregator::add);
+        aggregator.finish();
+        return result;
+    }
+
+    // floor(log2(x + 1)) for the unsigned 128-bit x, i.e. the host bits of the largest block within x + 1 addresses
+    private static int floorLog2PlusOne(long hi, long lo) {
+        long plusLo = lo + 1;
+        long plusHi = hi + (plusLo == 0 ? 1 : 0);
+        if (plusHi == 0 && plusLo == 0)
+            return 128;
+        return plusHi != 0 ? 127 - Long.numberOfLeadingZeros(plusHi) : 63 - Long.numberOfLeadingZeros(plusLo);
+    }
+
+    private static int trailingZeros(IpAddress address) {
+        if (address.lo() != 0)
+            return Long.numberOfTrailingZeros(address.lo());
+        return address.hi() != 0 ? 64 + Long.numberOfTrailingZeros(address.hi()) : 128;
+    }
+
+    /**
+     * Merges ranges (added in order of min) while they touch or overlap, passing the blocks of each merged span on
+     * as soon as the next range starts past it. Holds one span, however many ranges there are.
+     */
+    public static class Aggregator {
+        private final Consumer<Cidr> consumer;
+        private IpAddress spanMin;
+        private IpAddress spanMax;
+
+        public Aggregator(Consumer<Cidr> consumer) {
+            this.consumer = consumer;
+        }
+
+        public void add(IpRange ipRange) {
+            add(ipRange.minAddress(), ipRange.maxAddress());
+        }
+
+        public void add(IpAddress min, IpAddress max) {
+            if (spanMin != null && min.compareTo(spanMax) <= 0) {
+                if (max.compareTo(spanMax) > 0)
+                    spanMax = max;
+                return;
+            }
+            finish();
+            spanMin = min;
+            spanMax = max;
+        }
+
+        // passes on the blocks of the last span
+        public void finish() {
+            if (spanMin != null)
+                decompose(spanMin, spanMax, consumer);
+            spanMin = spanMax = null;
+        }
+    }
+}
@@ -0,0 +1,631 @@
+package misc.ipdb;
+
+import lombok.extern.slf4j.Slf4j;
+import misc.ipdb.IpDbService.Change;
+import misc.ipdb.IpDbService.ChangePage;
+import misc.ipdb.IpDbService.ChangeType;
+import misc.ipdb.IpDbService.IpAddress;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.IpSpace;
+import misc.ipdb.IpDbService.IpVersion;
+import misc.ipdb.IpDbService.RangeKey;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Spaces, ranges and the change journal in files of a directory, for a single process without a database. The state
+ * is held by the memory stores, sorted per space, and every write to it is logged to a {@link WriteAheadLog}: a
+ * transaction is one record, appended under a lock so the log has writes in the order they were made, and synced
+ * after the lock is released, so transactions committing together share an {@code fsync}. Writes are visible to
+ * readers once made, before they are durable, like the memory storage.
+ * <p>
+ * In the background, once the log has grown past a size, a checkpoint writes the whole state to
+ * {@code checkpoint-<segment>.dat} (as records of the same form) and the log continues in a new segment; the
+ * segments and checkpoints before it are deleted then. The journal is trimmed to its latest changes at each
+ * checkpoint, so neither it nor the checkpoints grow without bound. On opening, the latest checkpoint is loaded and the segments
+ * after it are replayed; a crash can only have torn the last record of the last segment, which is cut off.
+ */
+@Slf4j
+class FileStorage implements IpDbStorage, AutoCloseable {
+    static final long CHECKPOINT_LOG_SIZE = 64L << 20;
+    static final Duration COMPACTION_INTERVAL = Duration.ofSeconds(10);
+    static final int CHECKPOINT_CHUNK_SIZE = 1000;
+    // changes of the journal kept at a checkpoint, readers that fall further behind can't read on
+    static final long CHANGE_RETENTION = 1_000_000;
+    private static final Pattern CHECKPOINT = Pattern.compile("checkpoint-(\\d+)\\.dat");
+    private static final Pattern SEGMENT = Pattern.compile("wal-(\\d+)\\.log");
+
+    // the operations records are made of
+    private static final byte SPACE_PUT = 1, SPACE_DELETE = 2, RANGE_PUT = 3, RANGE_DELETE = 4, CHANGE = 5,
+            LAST_IDS = 6, CHECKPOINT_END = 7, CHANGES_AFTER = 8;
+
+    private final Path directory;
+    private final long checkpointLogSize;
+    private final long changeRetention;
+    private final MemoryRangeStore ranges = new MemoryRangeStore();
+    private final MemorySpaceStore spaces = new MemorySpaceStore(ranges);
+    private final MemoryChangeStore changes = new MemoryChangeStore();
+    private final SpaceStore spaceStore = new Spaces();
+    private final RangeStore rangeStore = new Ranges();
+    private final ChangeStore changeStore = new Changes();
+    // one for all spaces, as the log is a single sequence: transactions don't write concurrently even on different
+    // spaces, unlike on a database
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+    private final ThreadLocal<ByteArrayOutputStream> transaction = new ThreadLocal<>();
+    private final FileChannel lockFile;
+    private final WriteAheadLog wal;
+    private final ScheduledExecutorService compactor;
+
+    FileStorage(Path directory) {
+        this(directory, CHECKPOINT_LOG_SIZE, COMPACTION_INTERVAL, CHANGE_RETENTION);
+    }
+
+    FileStorage(Path directory, long checkpointLogSize, Duration compactionInterval) {
+        this(directory, checkpointLogSize, compactionInterval, CHANGE_RETENTION);
+    }
+
+    FileStorage(Path directory, long checkpointLogSize, Duration compactionInterval, long changeRetention) {
+        if (changeRetention < 0)
+            throw new IllegalArgumentException("change retention must not be negative: " + changeRetention);
+        this.directory = directory;
+        this.checkpointLogSize = checkpointLogSize;
+        this.changeRetention = changeRetention;
+        try {
+            Files.createDirectories(directory);
+            lockFile = FileChannel.open(directory.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock fileLock = lockFile.tryLock();
+            if (fileLock == null)
+                throw new IllegalStateException("storage directory in use by another process: " + directory);
+            wal = new WriteAheadLog(directory, recover());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ipdb-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = compactionInterval.toMillis();
+        compactor.scheduleWithFixedDelay(this::compact, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public SpaceStore spaces() {
+        return spaceStore;
+    }
+
+    @Override
+    public RangeStore ranges() {
+        return rangeStore;
+    }
+
+    @Override
+    public ChangeStore changes() {
+        return changeStore;
+    }
+
+    // writes are checked by the service before they are made; what was made is logged even if action throws, so
+    // the log always has the state in memory
+    @Override
+    public <T> T inTransaction(Supplier<T> action) {
+        if (transaction.get() != null)
+            return action.get();
+        var record = new ByteArrayOutputStream();
+        long position = 0;
+        writeLock.lock();
+        try {
+            transaction.set(record);
+            return action.get();
+        } finally {
+            try {
+                transaction.remove();
+                if (record.size() > 0)
+                    position = wal.append(record.toByteArray());
+            } finally {
+                writeLock.unlock();
+            }
+            if (position > 0)
+                wal.sync(position);
+        }
+    }
+
+    @Override
+    public void migrate() {
+    }
+
+    @Override
+    public void close() throws IOException {
+        compactor.shutdownNow();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writeLock.lock();
+        try {
+            wal.close();
+        } finally {
+            writeLock.unlock();
+            lockFile.close();
+        }
+    }
+
+    private void compact() {
+        try {
+            if (wal.segmentSize() >= checkpointLogSize)
+                checkpoint();
+        } catch (RuntimeException e) {
+            log.warn("checkpoint of {} failed, retrying", directory, e);
+        }
+    }
+
+    /**
+     * Writes the state to a checkpoint and deletes the log before it. The state is taken between two transactions,
+     * as the log continues in a new segment; it is written outside the lock, writes go on meanwhile. The journal is
+     * trimmed to the last changeRetention changes first, the checkpoint has those only.
+     */
+    void checkpoint() {
+        checkpointLock.lock();
+        try {
+            long segment;
+            List<IpSpace> spaceList;
+            Map<IpVersion, List<IpRange>> rangeLists = new EnumMap<>(IpVersion.class);
+            List<Change> changeList;
+            long changesAfter;
+            int lastSpaceId;
+            Map<IpVersion, Integer> lastRangeIds = new EnumMap<>(IpVersion.class);
+            writeLock.lock();
+            try {
+                segment = wal.roll();
+                spaceList = spaces.list(null, Integer.MAX_VALUE);
+                for (IpVersion ipVersion : IpVersion.values()) {
+                    rangeLists.put(ipVersion, ranges.all(ipVersion));
+                    lastRangeIds.put(ipVersion, ranges.lastId(ipVersion));
+                }
+                changes.trim(changes.head() - changeRetention);
+                changesAfter = changes.horizon();
+                changeList = changes.read(changesAfter, null, Integer.MAX_VALUE).changes();
+                lastSpaceId = spaces.lastId();
+            } finally {
+                writeLock.unlock();
+            }
+
+            Path temporary = directory.resolve("checkpoint-%016d.tmp".formatted(segment));
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                write(channel, out -> {
+                    out.writeByte(LAST_IDS);
+                    out.writeInt(lastSpaceId);
+                    for (IpVersion ipVersion : IpVersion.values())
+                        out.writeInt(lastRangeIds.get(ipVersion));
+                });
+                for (IpSpace ipSpace : spaceList)
+                    write(channel, out -> writeSpace(out, ipSpace));
+                for (var entry : rangeLists.entrySet())
+                    for (int i = 0; i < entry.getValue().size(); i += CHECKPOINT_CHUNK_SIZE) {
+                        List<IpRange> chunk = entry.getValue().subList(i, Math.min(i + CHECKPOINT_CHUNK_SIZE, entry.getValue().size()));
+                        write(channel, out -> {
+                            for (IpRange ipRange : chunk)
+                                writeRange(out, entry.getKey(), ipRange);
+                        });
+                    }
+                write(channel, out -> {
+                    out.writeByte(CHANGES_AFTER);
+                    out.writeLong(changesAfter);
+                });
+                for (int i = 0; i < changeList.size(); i += CHECKPOINT_CHUNK_SIZE) {
+                    List<Change> chunk = changeList.subList(i, Math.min(i + CHECKPOINT_CHUNK_SIZE, changeList.size()));
+                    write(channel, out -> {
+                        for (Change change : chunk)
+                            writeChange(out, change);
+                    });
+                }
+                write(channel, out -> out.writeByte(CHECKPOINT_END));
+                channel.force(true);
+            }
+            Files.move(temporary, checkpointPath(segment), StandardCopyOption.ATOMIC_MOVE);
+            for (Path path : files()) {
+                Long before = number(CHECKPOINT, path);
+                if (before == null)
+                    before = number(SEGMENT, path);
+                if (before != null && before < segment)
+                    Files.delete(path);
+            }
+            log.info("checkpoint of {} before segment {}: {} spaces, {} changes", directory, segment, spaceList.size(), changeList.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    // loads the latest checkpoint and replays the log after it, returns the segment to continue in
+    private long recover() throws IOException {
+        long segment = 0;
+        for (Path path : files()) {
+            if (path.getFileName().toString().endsWith(".tmp"))
+                Files.delete(path);
+            Long number = number(CHECKPOINT, path);
+            if (number != null && number > segment)
+                segment = number;
+        }
+        if (segment > 0) {
+            Path checkpoint = checkpointPath(segment);
+            boolean[] complete = {false};
+            WriteAheadLog.read(checkpoint, record -> complete[0] = apply(record));
+            if (!complete[0])
+                throw new IllegalStateException("incomplete checkpoint " + checkpoint);
+        }
+        for (; ; segment++) {
+            Path path = WriteAheadLog.segmentPath(directory, segment);
+            if (!Files.exists(path))
+                return segment;
+            long end = WriteAheadLog.read(path, this::apply);
+            if (end < Files.size(path)) {
+                if (WriteAheadLog.exists(directory, segment + 1))
+                    throw new IllegalStateException("corrupt record at " + end + " of " + path);
+                log.warn("cutting off a torn record at {} of {}", end, path);
+                WriteAheadLog.truncate(path, end);
+            }
+            if (!WriteAheadLog.exists(directory, segment + 1))
+                return segment;
+        }
+    }
+
+    // applies the operations of a record to the memory stores, returns whether it ended a checkpoint
+    private boolean apply(byte[] record) {
+        try (var in = new DataInputStream(new ByteArrayInputStream(record))) {
+            boolean end = false;
+            while (in.available() > 0) {
+                byte operation = in.readByte();
+                switch (operation) {
+                    case SPACE_PUT -> spaces.put(new IpSpace()
+                            .setId(in.readInt())
+                            .setName(readString(in))
+                            .setDescription(readString(in))
+                            .setVersion(in.readInt())
+                            .setMin(readBigInteger(in))
+                            .setMax(readBigInteger(in))
+                            .setNested(in.readBoolean()));
+                    case SPACE_DELETE -> spaces.delete(in.readInt());
+                    case RANGE_PUT -> {
+                        IpVersion ipVersion = IpVersion.from(in.readByte());
+                        ranges.put(ipVersion, new IpRange()
+                                .setId(in.readInt())
+                                .setIpSpaceId(in.readInt())
+                                .setName(readString(in))
+                                .setDescription(readString(in))
+                                .setMin(readBigInteger(in))
+                                .setMax(readBigInteger(in))
+                                .setIpSpace(new IpSpace().setIpVersion(ipVersion)));
+                    }
+                    case RANGE_DELETE -> ranges.deleteAll(IpVersion.from(in.readByte()), List.of(in.readInt()));
+                    case CHANGE -> changes.put(new Change(
+                            in.readLong(),
+                            ChangeType.valueOf(in.readUTF()),
+                            in.readInt(),
+                            in.readBoolean() ? in.readInt() : null,
+                            readString(in),
+                            readString(in),
+                            readAddress(in),
+                            readAddress(in),
+                            Instant.ofEpochSecond(in.readLong(), in.readInt())));
+                    case LAST_IDS -> {
+                        spaces.lastId(in.readInt());
+                        for (IpVersion ipVersion : IpVersion.values())
+                            ranges.lastId(ipVersion, in.readInt());
+                    }
+                    case CHANGES_AFTER -> changes.trim(in.readLong());
+                    case CHECKPOINT_END -> end = true;
+                    default -> throw new IllegalStateException("unknown operation " + operation);
+                }
+            }
+            return end;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // adds an operation to the record of the current transaction
+    private void log(Operation operation) {
+        try {
+            operation.write(new DataOutputStream(transaction.get()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void write(FileChannel channel, Operation operation) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        operation.write(new DataOutputStream(bytes));
+        ByteBuffer buffer = WriteAheadLog.frame(bytes.toByteArray());
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private static void writeSpace(DataOutputStream out, IpSpace ipSpace) throws IOException {
+        out.writeByte(SPACE_PUT);
+        out.writeInt(ipSpace.getId());
+        writeString(out, ipSpace.getName());
+        writeString(out, ipSpace.getDescription());
+        out.writeInt(ipSpace.getVersion());
+        writeBigInteger(out, ipSpace.getMin());
+        writeBigInteger(out, ipSpace.getMax());
+        out.writeBoolean(ipSpace.isNested());
+    }
+
+    private static void writeRange(DataOutputStream out, IpVersion ipVersion, IpRange ipRange) throws IOException {
+        out.writeByte(RANGE_PUT);
+        out.writeByte(ipVersion.getVersion());
+        out.writeInt(ipRange.getId());
+        out.writeInt(ipRange.getIpSpaceId());
+        writeString(out, ipRange.getName());
+        writeString(out, ipRange.getDescription());
+        writeBigInteger(out, ipRange.getMin());
+        writeBigInteger(out, ipRange.getMax());
+    }
+
+    private static void writeChange(DataOutputStream out, Change change) throws IOException {
+        out.writeByte(CHANGE);
+        out.writeLong(change.seq());
+        out.writeUTF(change.type().name());
+        out.writeInt(change.ipSpaceId());
+        out.writeBoolean(change.ipRangeId() != null);
+        if (change.ipRangeId() != null)
+            out.writeInt(change.ipRangeId());
+        writeString(out, change.name());
+        writeString(out, change.description());
+        writeAddress(out, change.min());
+        writeAddress(out, change.max());
+        out.writeLong(change.createdAt().getEpochSecond());
+        out.writeInt(change.createdAt().getNano());
+    }
+
+    // null as length -1
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+        writeBytes(out, bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeBigInteger(DataOutputStream out, BigInteger value) throws IOException {
+        writeBytes(out, value == null ? null : value.toByteArray());
+    }
+
+    private static BigInteger readBigInteger(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new BigInteger(bytes);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes == null ? -1 : bytes.length);
+        if (bytes != null)
+            out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        return length < 0 ? null : in.readNBytes(length);
+    }
+
+    // null as version 0, the end of the address space as its version with the high bit set
+    private static void writeAddress(DataOutputStream out, IpAddress address) throws IOException {
+        out.writeByte(address == null ? 0 : address.version().getVersion() | (address.end() ? 0x80 : 0));
+        if (address != null && !address.end()) {
+            out.writeLong(address.hi());
+            out.writeLong(address.lo());
+        }
+    }
+
+    private static IpAddress readAddress(DataInputStream in) throws IOException {
+        int version = in.readByte() & 0xff;
+        if (version == 0)
+            return null;
+        if ((version & 0x80) != 0)
+            return IpVersion.from(version & 0x7f).end();
+        return new IpAddress(in.readLong(), in.readLong(), IpVersion.from(version));
+    }
+
+    private List<Path> files() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.toList();
+        }
+    }
+
+    private Path checkpointPath(long segment) {
+        return directory.resolve("checkpoint-%016d.dat".formatted(segment));
+    }
+
+    private static Long number(Pattern pattern, Path path) {
+        Matcher matcher = pattern.matcher(path.getFileName().toString());
+        return matcher.matches() ? Long.parseLong(matcher.group(1)) : null;
+    }
+
+    private interface Operation {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private class Spaces implements SpaceStore {
+        @Override
+        public IpSpace insert(IpSpace ipSpace) {
+            return inTransaction(() -> {
+                spaces.insert(ipSpace);
+                log(out -> writeSpace(out, ipSpace));
+                return ipSpace;
+            });
+        }
+
+        @Override
+        public int update(IpSpace ipSpace) {
+            return inTransaction(() -> {
+                int updated = spaces.update(ipSpace);
+                if (updated > 0)
+                    log(out -> writeSpace(out, ipSpace));
+                return updated;
+            });
+        }
+
+        @Override
+        public int delete(int id) {
+            return inTransaction(() -> {
+                int deleted = spaces.delete(id);
+                if (deleted > 0)
+                    log(out -> {
+                        out.writeByte(SPACE_DELETE);
+                        out.writeInt(id);
+                    });
+                return deleted;
+            });
+        }
+
+        @Override
+        public IpSpace find(int id) {
+            return spaces.find(id);
+        }
+
+        @Override
+        public List<IpSpace> list(Integer afterId, int limit) {
+            return spaces.list(afterId, limit);
+        }
+
+        @Override
+        public List<IpSpace> list(long offset, int limit) {
+            return spaces.list(offset, limit);
+        }
+    }
+
+    private class Ranges implements RangeStore {
+        @Override
+        public void insertAll(IpVersion ipVersion, List<IpRange> ipRanges) {
+            inTransaction(() -> {
+                ranges.insertAll(ipVersion, ipRanges);
+                log(out -> {
+                    for (IpRange ipRange : ipRanges)
+                        writeRange(out, ipVersion, ipRange);
+                });
+                return null;
+            });
+        }
+
+        @Override
+        public int deleteAll(IpVersion ipVersion, Collection<Integer> ids) {
+            return inTransaction(() -> {
+                int deleted = ranges.deleteAll(ipVersion, ids);
+                log(out -> {
+                    for (Integer id : ids) {
+                        out.writeByte(RANGE_DELETE);
+                        out.writeByte(ipVersion.getVersion());
+                        out.writeInt(id);
+                    }
+                });
+                return deleted;
+            });
+        }
+
+        @Override
+        public IpRange find(IpSpace ipSpace, int id) {
+            return ranges.find(ipSpace, id);
+        }
+
+        @Override
+        public List<IpRange> list(IpSpace ipSpace, RangeKey after, int limit) {
+            return ranges.list(ipSpace, after, limit);
+        }
+
+        @Override
+        public List<IpRange> list(IpSpace ipSpace, long offset, int limit) {
+            return ranges.list(ipSpace, offset, limit);
+        }
+
+        @Override
+        public void scan(IpSpace ipSpace, Consumer<IpRange> consumer) {
+            ranges.scan(ipSpace, consumer);
+        }
+
+        @Override
+        public List<IpRange> overlapping(IpSpace ipSpace, IpAddress min, IpAddress max) {
+            return ranges.overlapping(ipSpace, min, max);
+        }
+    }
+
+    // appends are made under the write lock, so the changes after head are the ones just appended
+    private class Changes implements ChangeStore {
+        @Override
+        public void append(ChangeType type, IpSpace ipSpace) {
+            logged(() -> changes.append(type, ipSpace));
+        }
+
+        @Override
+        public void append(ChangeType type, IpRange ipRange) {
+            logged(() -> changes.append(type, ipRange));
+        }
+
+        @Override
+        public void appendAll(ChangeType type, List<IpRange> ipRanges) {
+            logged(() -> changes.appendAll(type, ipRanges));
+        }
+
+        private void logged(Runnable append) {
+            inTransaction(() -> {
+                long head = changes.head();
+                append.run();
+                List<Change> appended = new ArrayList<>(changes.read(head, null, Integer.MAX_VALUE).changes());
+                log(out -> {
+                    for (Change change : appended)
+                        writeChange(out, change);
+                });
+                return null;
+            });
+        }
+
+        @Override
+        public ChangePage read(long after, Integer ipSpaceId, int limit) {
+            return changes.read(after, ipSpaceId, limit);
+        }
+
+        @Override
+        public ChangePage await(long after, Integer ipSpaceId, int limit, Duration timeout) {
+            return changes.await(after, ipSpaceId, limit, timeout);
+        }
+
+        @Override
+        public long head() {
+            return changes.head();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package misc.ipdb;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.IpVersion;
+import misc.ipdb.util.IpDataNotFoundException;
+import misc.ipdb.util.IpRangeConflictsException;
+import misc.ipdb.util.IpSpaceExhaustedException;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Timers for the operations of {@link IpDbService}, tagged by operation, ip version and outcome, and gauges for the
+ * ranges of each loaded space.
+ * <p>
+ * Timers are registered on first use and then looked up by ordinals, so timing an operation costs two
+ * {@link System#nanoTime()} calls and an array lookup. The count of a timer is the counter for its tags.
+ * <p>
+ * The range gauges are tagged with the space id, one time series per loaded space; to keep that bounded, only the
+ * first {@link #MAX_SPACE_GAUGES} spaces loaded at a time get one.
+ */
+class IpDbMetrics {
+    static final String OPERATION = "ipdb.operation";
+    static final String SPACE_RANGES = "ipdb.space.ranges";
+    static final int MAX_SPACE_GAUGES = 1000;
+    // none, v4 and v6
+    private static final int VERSIONS = IpVersion.values().length + 1;
+    private static final int OUTCOMES = Outcome.values().length;
+
+    enum Operation {
+        CREATE, UPDATE, DELETE, FIND_SPACE, FIND_RANGE, RESERVE, RESERVE_ALL, IMPORT, EXPORT, ALLOCATE, RELEASE,
+        RANGE_OF, RANGE_OF_BATCH, FREE, FOUND_WITHIN, LIST_RANGES, LIST_SPACES, LIST_FREE, STATS, CHANGES,
+        AWAIT_CHANGES, MERGE, COMMIT_BATCH,
+    }
+
+    enum Outcome {
+        SUCCESS, CONFLICT, NOT_FOUND, EXHAUSTED, ERROR,
+    }
+
+    private final MeterRegistry meterRegistry;
+    // by operation, version (none, v4, v6) and outcome, flattened (see timer)
+    private final AtomicReferenceArray<Timer> timers;
+    private final Counter batchAddresses;
+    private final Map<Integer, Gauge> spaceGauges = new ConcurrentHashMap<>();
+
+    IpDbMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.timers = new AtomicReferenceArray<>(Operation.values().length * VERSIONS * OUTCOMES);
+        batchAddresses = Counter.builder("ipdb.lookup.addresses")
+                .description("addresses resolved by batch lookups")
+                .register(meterRegistry);
+    }
+
+    // times the action, its outcome is NOT_FOUND if it returns null
+    <T> T timed(Operation operation, IpVersion ipVersion, Supplier<T> action) {
+        return time(operation, ipVersion, null, action, IpDbMetrics::nullIsNotFound);
+    }
+
+    <T> T timed(Operation operation, IpVersion ipVersion, Supplier<T> action, Function<T, Outcome> outcome) {
+        return time(operation, ipVersion, null, action, outcome);
+    }
+
+    // for operations on a range whose version is only known once its space is looked up
+    <T> T timed(Operation operation, IpRange ipRange, Supplier<T> action) {
+        return time(operation, null, ipRange, action, IpDbMetrics::nullIsNotFound);
+    }
+
+    // for operations not specific to a version
+    <T> T timed(Operation operation, Supplier<T> action) {
+        return time(operation, null, null, action, IpDbMetrics::nullIsNotFound);
+    }
+
+    // for operations completing later, timed until the future completes; an exception thrown by action fails it
+    <T> CompletableFuture<T> timedAsync(Operation operation, IpRange ipRange, Supplier<CompletableFuture<T>> action) {
+        long start = System.nanoTime();
+        CompletableFuture<T> future;
+        try {
+            future = action.get();
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        return future.whenComplete((value, e) -> {
+            Outcome result = e == null ? nullIsNotFound(value) : outcome(e);
+            IpVersion ipVersion = ipRange.getIpSpace() != null ? ipRange.getIpSpace().getIpVersion() : null;
+            timer(operation, ipVersion, result).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        });
+    }
+
+    void timedRun(Operation operation, IpVersion ipVersion, Runnable action) {
+        time(operation, ipVersion, null, () -> {
+            action.run();
+            return Boolean.TRUE;
+        }, IpDbMetrics::nullIsNotFound);
+    }
+
+    private <T> T time(Operation operation, IpVersion ipVersion, IpRange ipRange, Supplier<T> action,
+                       Function<T, Outcome> outcome) {
+        long start = System.nanoTime();
+        Outcome result = Outcome.ERROR;
+        try {
+            T value = action.get();
+            result = outcome.apply(value);
+            return value;
+        } catch (RuntimeException e) {
+            result = outcome(e);
+            throw e;
+        } finally {
+            if (ipVersion == null && ipRange != null && ipRange.getIpSpace() != null)
+                ipVersion = ipRange.getIpSpace().getIpVersion();
+            timer(operation, ipVersion, result).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private Timer timer(Operation operation, IpVersion ipVersion, Outcome outcome) {
+        int v = ipVersion == null ? 0 : ipVersion.ordinal() + 1;
+        int i = (operation.ordinal() * VERSIONS + v) * OUTCOMES + outcome.ordinal();
+        Timer timer = timers.get(i);
+        if (timer == null) {
+            // registering again returns the same timer, so racing here is harmless; the array publishes it safely
+            timer = Timer.builder(OPERATION)
+                    .description("ip-db service operations")
+                    .tag("operation", tag(operation))
+                    .tag("version", ipVersion == null ? "none" : tag(ipVersion))
+                    .tag("outcome", tag(outcome))
+                    .register(meterRegistry);
+            timers.set(i, timer);
+        }
+        return timer;
+    }
+
+    private static Outcome outcome(Throwable e) {
+        if (e instanceof CompletionException && e.getCause() != null)
+            e = e.getCause();
+        return e instanceof IpRangeConflictsException ? Outcome.CONFLICT
+                : e instanceof IpDataNotFoundException ? Outcome.NOT_FOUND
+                : e instanceof IpSpaceExhaustedException ? Outcome.EXHAUSTED
+                : Outcome.ERROR;
+    }
+
+    private static Outcome nullIsNotFound(Object result) {
+        return result == null ? Outcome.NOT_FOUND : Outcome.SUCCESS;
+    }
+
+    void batchLookup(int addresses) {
+        batchAddresses.increment(addresses);
+    }
+
+    void spaceLoaded(int ipSpaceId, RangeIndex index) {
+        // racing past the limit by a few is harmless
+        if (spaceGauges.size() >= MAX_SPACE_GAUGES)
+            return;
+        // weakly referenced, the index is dropped on space updates
+        spaceGauges.put(ipSpaceId, Gauge.builder(SPACE_RANGES, index, RangeIndex::size)
+                .description("ranges in a loaded ip space")
+                .tag("space", String.valueOf(ipSpaceId))
+                .strongReference(false)
+                .register(meterRegistry));
+    }
+
+    void spaceUnloaded(int ipSpaceId) {
+        Gauge gauge = spaceGauges.remove(ipSpaceId);
+        if (gauge != null)
+            meterRegistry.remove(gauge);
+    }
+
+    private static String tag(Enum<?> value) {
+        return value.name().toLowerCase(Locale.ROOT).replace('_', '-');
+    }
+}
@@ -0,0 +1,75 @@
+package misc.ipdb;
+
+import lombok.extern.slf4j.Slf4j;
+import misc.ipdb.IpDbService.ChangePage;
+
+import java.time.Duration;
+
+/**
+ * Makes an {@link IpDbService} a read-only replica of the database it's on, for scaling lookups out: every space and
+ * its ranges are loaded into memory at startup, and kept current by following the change journal the primary writes.
+ * Lookups and range listings are served from memory, writes throw {@link misc.ipdb.util.IpDbReadOnlyException}.
+ * <p>
+ * The journal position is taken before loading, so changes made while loading are replayed on state that has them
+ * already, which {@link IpDbService#apply} allows for. A replica is behind the primary by about the poll interval of
+ * the journal, as it doesn't see commits made by other processes as they happen.
+ */
+@Slf4j
+public class IpDbReplica implements AutoCloseable {
+    static final int BATCH_SIZE = 1000;
+    static final Duration WAIT = Duration.ofSeconds(5);
+    static final Duration RETRY_DELAY = Duration.ofSeconds(1);
+
+    private final IpDbService ipDbService;
+    private final Thread follower;
+    private volatile long position;
+    private volatile boolean closed;
+
+    // loads every space before returning, then follows the journal on a thread of its own
+    public IpDbReplica(IpDbService ipDbService) {
+        this.ipDbService = ipDbService;
+        ipDbService.readOnly = true;
+        position = ipDbService.journal.head();
+        int spaces = ipDbService.loadAll();
+        log.info("replica loaded {} spaces, following the change journal after {}", spaces, position);
+        follower = new Thread(this::follow, "ipdb-replica");
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    // the sequence number of the last change applied
+    public long position() {
+        return position;
+    }
+
+    private void follow() {
+        while (!closed) {
+            try {
+                ChangePage page = ipDbService.journal.await(position, null, BATCH_SIZE, WAIT);
+                page.changes().forEach(ipDbService::apply);
+                position = page.next();
+            } catch (RuntimeException e) {
+                if (closed)
+                    return;
+                log.warn("following the change journal after {} failed, retrying", position, e);
+                try {
+                    Thread.sleep(RETRY_DELAY.toMillis());
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // waits for the follower to stop; if interrupted meanwhile, returns with the interrupt flag set again
+    @Override
+    public void close() {
+        closed = true;
+        follower.interrupt();
+        try {
+            follower.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
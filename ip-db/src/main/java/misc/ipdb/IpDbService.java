@@ -1,29 +1,69 @@
 package misc.ipdb;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
 import lombok.Data;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.experimental.Accessors;
 import lombok.extern.slf4j.Slf4j;
+import misc.ipdb.IpDbMetrics.Outcome;
 import misc.ipdb.util.DbFactory;
 import misc.ipdb.util.DbMigrator;
 import misc.ipdb.util.IpDataNotFoundException;
+import misc.ipdb.util.IpDbReadOnlyException;
 import misc.ipdb.util.IpRangeConflictsException;
+import misc.ipdb.util.IpRangeOutOfBoundsException;
+import misc.ipdb.util.IpSpaceExhaustedException;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.jdbc.core.simple.JdbcClient;
-import org.springframework.jdbc.support.GeneratedKeyHolder;
 
 import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.math.BigInteger;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static misc.ipdb.IpDbMetrics.Operation.*;
 
 @Slf4j
-@RequiredArgsConstructor
 public class IpDbService {
-    final DataSource dataSource;
-    final JdbcClient jdbcClient;
+    static final int IMPORT_BATCH_SIZE = 1000;
+    static final int SPACE_LOCK_STRIPES = 64;
+    static final int SPACE_CACHE_SIZE = 1024;
+
+    // spaces, ranges and the journal, in a database or in memory
+    final IpDbStorage storage;
+    // lazily loaded, write-through indexes of the ranges in each space, by space id
+    final Map<Integer, RangeIndex> indexes = new ConcurrentHashMap<>();
+    // spaces by id, so range operations don't query a space for its version and bounds every time
+    final IpSpaceCache spaces = new IpSpaceCache(SPACE_CACHE_SIZE);
+    // checking for conflicts and inserting is atomic per space, spaces share one of these locks by id
+    final ReentrantLock[] spaceLocks = Stream.generate(ReentrantLock::new).limit(SPACE_LOCK_STRIPES).toArray(ReentrantLock[]::new);
+    final IpDbMetrics metrics;
+    // written in the transaction of every change to a space or range
+    final ChangeStore journal;
+    // set on replicas (see IpDbReplica), which change only by following the journal and list ranges from memory
+    volatile boolean readOnly;
+    // in memory only, they don't survive a restart
+    final Map<BranchKey, IpSpaceBranch> branches = new ConcurrentHashMap<>();
+    // group commit of reserveAsync and releaseAsync, made on first use; with threads of its own, so none without it
+    private volatile ReservationPipeline pipeline;
+    private int groupCommitBatchSize = ReservationPipeline.MAX_BATCH_SIZE;
+    private Duration groupCommitWindow = ReservationPipeline.WINDOW;
 
     public IpDbService(DbFactory dbFactory) {
         this(dbFactory.dataSource());
@@ -33,226 +73,883 @@ public class IpDbService {
         this(dataSource, JdbcClient.create(dataSource));
     }
 
+    public IpDbService(DataSource dataSource, JdbcClient jdbcClient) {
+        this(dataSource, jdbcClient, Metrics.globalRegistry);
+    }
+
+    public IpDbService(DataSource dataSource, MeterRegistry meterRegistry) {
+        this(dataSource, JdbcClient.create(dataSource), meterRegistry);
+    }
+
+    public IpDbService(DataSource dataSource, JdbcClient jdbcClient, MeterRegistry meterRegistry) {
+        this(new JdbcStorage(dataSource, jdbcClient), meterRegistry);
+    }
+
+    public IpDbService(IpDbStorage storage) {
+        this(storage, Metrics.globalRegistry);
+    }
+
+    public IpDbService(IpDbStorage storage, MeterRegistry meterRegistry) {
+        this.storage = storage;
+        this.metrics = new IpDbMetrics(meterRegistry);
+        this.journal = storage.changes();
+    }
+
+    // for jdbc storage only, see IpDbStorage#migrate
     public DbMigrator dbMigrator() {
-        return new DbMigrator(dataSource);
+        if (!(storage instanceof JdbcStorage jdbc))
+            throw new IllegalStateException("only jdbc storage has a schema");
+        return new DbMigrator(jdbc.dataSource);
     }
 
     public IpSpace create(IpSpace space) {
-        var g = new GeneratedKeyHolder();
-        jdbcClient.sql("""
-                        insert into ip_space(name, description, version, min, max)\s
-                        values(:name, :description, :version, :min, :max)
-                        """)
-                .paramSource(space)
-                .update(g);
-        return space.setId(Objects.requireNonNull(g.getKey()).intValue());
+        return metrics.timed(CREATE, () -> {
+            checkWritable();
+            return storage.inTransaction(() -> {
+                storage.spaces().insert(space);
+                journal.append(ChangeType.SPACE_CREATED, space);
+                return space;
+            });
+        });
     }
 
     public IpSpace update(IpSpace space) {
-        int updated = jdbcClient.sql("""
-                        update ip_space\s
-                        set name = :name,\s
-                            description = :description,\s
-                            version = :version,\s
-                            min = :min,\s
-                            max = :max\s
-                        where id = :id
-                        """)
-                .paramSource(space)
-                .update();
-        return updated == 0 ? null : space;
+        return metrics.timed(UPDATE, () -> {
+            checkWritable();
+            int updated = storage.inTransaction(() -> {
+                int count = storage.spaces().update(space);
+                if (count > 0)
+                    journal.append(ChangeType.SPACE_UPDATED, space);
+                return count;
+            });
+            // version or bounds may have changed, reload on next use
+            unload(space.getId());
+            return updated == 0 ? null : space;
+        });
     }
 
     public List<IpSpace> listSpaces(PageRequest pageRequest) {
-        return jdbcClient.sql("select * from ip_space limit ? offset ?").params(pageRequest.getPageSize(), pageRequest.getOffset()).query(IpSpace.class).list();
+        return metrics.timed(LIST_SPACES, () -> storage.spaces().list(pageRequest.getOffset(), pageRequest.getPageSize()));
+    }
+
+    // keyset pagination: the spaces with an id after this one (or from the start if null), ordered by id
+    public List<IpSpace> listSpaces(Integer afterId, int limit) {
+        return metrics.timed(LIST_SPACES, () -> storage.spaces().list(afterId, limit));
     }
 
     public IpSpace findSpace(int id) {
-        return jdbcClient.sql("select * from ip_space where id = ?").params(id).query(IpSpace.class).optional().orElse(null);
+        return metrics.timed(FIND_SPACE, () -> {
+            IpSpace space = space(id);
+            return space == null ? null : space.copy();
+        });
+    }
+
+    // the cached space (or null if not found), not to be modified;
+    // loaded under the lock of the space, so a load racing an update can't cache the old row after it's invalidated
+    private IpSpace space(int id) {
+        IpSpace space = spaces.get(id);
+        if (space != null)
+            return space;
+        return withSpaceLock(id, () -> {
+            IpSpace loaded = storage.spaces().find(id);
+            if (loaded != null)
+                spaces.put(loaded);
+            return loaded;
+        });
     }
 
     public IpSpace delete(IpSpace space) {
-        int updated = jdbcClient.sql("delete from ip_space where id = ?")
-                .param(Objects.requireNonNull(space.getId()))
-                .update();
-        return updated == 0 ? null : space;
+        return metrics.timed(DELETE, () -> {
+            checkWritable();
+            // the event has the name and version of the space, the caller may only know its id
+            IpSpace deleted = Optional.ofNullable(space(Objects.requireNonNull(space.getId()))).orElse(space);
+            int updated = storage.inTransaction(() -> {
+                int count = storage.spaces().delete(space.getId());
+                if (count > 0)
+                    journal.append(ChangeType.SPACE_DELETED, deleted);
+                return count;
+            });
+            unload(space.getId());
+            branches.keySet().removeIf(key -> key.ipSpaceId() == space.getId());
+            return updated == 0 ? null : space;
+        });
     }
 
     public IpRange reserve(IpRange ipRange, String min, String max) {
-        IpVersion ipVersion = lookupIpVersion(ipRange);
-        switch (ipVersion) {
-            case V4 -> ipRange.setMinFromIp(IpAddress.v4(min)).setMaxFromIp(IpAddress.v4(max));
-            case V6 -> ipRange.setMinFromIp(IpAddress.v6(min)).setMaxFromIp(IpAddress.v6(max));
-        }
-        return reserve(ipRange, ipVersion);
+        return metrics.timed(RESERVE, ipRange, () -> {
+            IpVersion ipVersion = lookupIpVersion(ipRange);
+            switch (ipVersion) {
+                case V4 -> ipRange.setMinFromIp(IpAddress.v4(min)).setMaxFromIp(IpAddress.v4(max));
+                case V6 -> ipRange.setMinFromIp(IpAddress.v6(min)).setMaxFromIp(IpAddress.v6(max));
+            }
+            return reserve(ipRange, ipVersion);
+        });
+    }
+
+    public IpRange reserve(IpRange ipRange, String cidr) {
+        return metrics.timed(RESERVE, ipRange, () -> {
+            IpVersion ipVersion = lookupIpVersion(ipRange);
+            Cidr block = Cidr.parse(cidr, ipVersion);
+            ipRange.setMinFromIp(block.min()).setMaxFromIp(block.max());
+            return reserve(ipRange, ipVersion);
+        });
     }
 
     public IpRange reserve(IpRange ipRange) {
-        IpVersion ipVersion = lookupIpVersion(ipRange);
-        return reserve(ipRange, ipVersion);
+        return metrics.timed(RESERVE, ipRange, () -> reserve(ipRange, lookupIpVersion(ipRange)));
     }
 
+    // checks and inserts under the lock of the space, so overlapping reservations can't both pass the check
     private IpRange reserve(IpRange ipRange, IpVersion ipVersion) {
-        int count = find(ipVersion, ipRange);
+        checkWritable();
+        return withSpaceLock(ipRange.getIpSpace().getId(), () -> {
+            RangeIndex index = index(ipRange);
+            IpAddress min = ipRange.minAddress(), max = ipRange.maxAddress();
+
+            if (min.compareTo(max) >= 0)
+                throw emptyRange(min, max);
+            if (!index.withinSpace(min, max))
+                throw new IpRangeOutOfBoundsException();
+            if (index.conflicts(min, max)) {
+                if (log.isTraceEnabled())
+                    log.trace("{}", index.overlapping(min, max));
+                throw new IpRangeConflictsException();
+            }
+
+            storage.inTransaction(() -> {
+                checkStored(ipRange.getIpSpace(), index, min, max);
+                storage.ranges().insertAll(ipVersion, List.of(ipRange));
+                journal.append(ChangeType.RANGE_RESERVED, ipRange);
+                return null;
+            });
+            index.add(ipRange);
+            return ipRange;
+        });
+    }
+
+    // reserves all ranges, or none of them if any overlaps another range of the batch or of the space
+    public BulkReservation reserveAll(int ipSpaceId, List<IpRange> ipRanges) {
+        checkWritable();
+        IpSpace ipSpace = Optional.ofNullable(space(ipSpaceId)).orElseThrow(IpDataNotFoundException::new);
+        IpVersion ipVersion = ipSpace.getIpVersion();
+
+        List<BatchItem> items = new ArrayList<>(ipRanges.size());
+        for (int i = 0; i < ipRanges.size(); i++) {
+            IpRange ipRange = ipRanges.get(i).setIpSpaceId(ipSpaceId).setIpSpace(ipSpace);
+            if (ipRange.minAddress().compareTo(ipRange.maxAddress()) >= 0)
+                throw emptyRange(ipRange.minAddress(), ipRange.maxAddress());
+            items.add(new BatchItem(i, ipRange.minAddress(), ipRange.maxAddress(), ipRange));
+        }
+        items.sort(Comparator.comparing(BatchItem::min).thenComparing(BatchItem::max));
+
+        return metrics.timed(RESERVE_ALL, ipVersion, () -> withSpaceLock(ipSpaceId, () -> {
+            RangeIndex index = index(ipSpace);
+            List<Conflict> conflicts = ipSpace.isNested() ? nestedConflicts(index, items) : conflicts(index, items);
+            if (!conflicts.isEmpty())
+                return new BulkReservation(List.of(), conflicts);
+
+            storage.inTransaction(() -> {
+                if (!items.isEmpty())
+                    checkStored(ipSpace, index, items.get(0).min(), spanMax(items));
+                storage.ranges().insertAll(ipVersion, ipRanges);
+                journal.appendAll(ChangeType.RANGE_RESERVED, ipRanges);
+                return null;
+            });
+            ipRanges.forEach(index::add);
+            return new BulkReservation(ipRanges, List.of());
+        }), r -> r.conflicts().isEmpty() ? Outcome.SUCCESS : Outcome.CONFLICT);
+    }
+
+    // one sweep over the batch (ordered by min) and the existing ranges within its span;
+    // ranges outside the bounds of the space conflict with nothing in particular
+    private static List<Conflict> conflicts(RangeIndex index, List<BatchItem> items) {
+        List<Conflict> conflicts = new ArrayList<>();
+        if (items.isEmpty())
+            return conflicts;
+        List<IpRange> existing = index.overlapping(items.get(0).min(), spanMax(items));
+        int next = 0;
+        BatchItem widest = null;
+        for (BatchItem item : items) {
+            if (!index.withinSpace(item.min(), item.max())) {
+                conflicts.add(new Conflict(item.position(), item.ipRange(), List.of()));
+                continue;
+            }
+            List<IpRange> conflictsWith = new ArrayList<>();
+            if (widest != null && widest.max().compareTo(item.min()) > 0)
+                conflictsWith.add(widest.ipRange());
+            while (next < existing.size() && existing.get(next).maxAddress().compareTo(item.min()) <= 0)
+                next++;
+            for (int i = next; i < existing.size() && existing.get(i).minAddress().compareTo(item.max()) < 0; i++)
+                conflictsWith.add(existing.get(i));
+            if (!conflictsWith.isEmpty())
+                conflicts.add(new Conflict(item.position(), item.ipRange(), conflictsWith));
+            if (widest == null || item.max().compareTo(widest.max()) > 0)
+                widest = item;
+        }
+        conflicts.sort(Comparator.comparingInt(Conflict::position));
+        return conflicts;
+    }
+
+    // in nested spaces a range only conflicts with the same block, of the space or earlier in the batch (ordered by
+    // min then max); ranges outside the bounds of the space or that aren't blocks conflict with nothing in particular
+    private static List<Conflict> nestedConflicts(RangeIndex index, List<BatchItem> items) {
+        List<Conflict> conflicts = new ArrayList<>();
+        BatchItem previous = null;
+        for (BatchItem item : items) {
+            List<IpRange> conflictsWith;
+            if (!index.withinSpace(item.min(), item.max()) || !isBlock(item))
+                conflictsWith = List.of();
+            else if (index.conflicts(item.min(), item.max()))
+                conflictsWith = index.overlapping(item.min(), item.max()).stream()
+                        .filter(r -> r.minAddress().equals(item.min()) && r.maxAddress().equals(item.max()))
+                        .toList();
+            else if (previous != null && previous.min().equals(item.min()) && previous.max().equals(item.max()))
+                conflictsWith = List.of(previous.ipRange());
+            else
+                conflictsWith = null;
+            if (conflictsWith != null)
+                conflicts.add(new Conflict(item.position(), item.ipRange(), conflictsWith));
+            previous = item;
+        }
+        conflicts.sort(Comparator.comparingInt(Conflict::position));
+        return conflicts;
+    }
+
+    private static IpAddress spanMax(List<BatchItem> items) {
+        return items.stream().map(BatchItem::max).max(Comparator.naturalOrder()).orElseThrow();
+    }
 
-        if (count > 0) {
-            if (log.isTraceEnabled())
-                log.trace("{}", findRanges(ipVersion, ipRange));
+    // with shared storage, another process may have reserved ranges the index doesn't have: within the transaction,
+    // the space is locked in the database (so its writers take turns) and the ranges stored within [min, max) must
+    // all be in the index. if one isn't, the index is loaded again and the write fails as conflicting
+    private void checkStored(IpSpace ipSpace, RangeIndex index, IpAddress min, IpAddress max) {
+        if (missesStored(ipSpace, index, min, max)) {
+            unload(ipSpace.getId());
             throw new IpRangeConflictsException();
         }
+    }
+
+    private boolean missesStored(IpSpace ipSpace, RangeIndex index, IpAddress min, IpAddress max) {
+        if (!storage.shared())
+            return false;
+        storage.spaces().lock(ipSpace.getId());
+        return !storage.ranges().overlapping(ipSpace, min, max).stream().allMatch(r -> index.get(r.getId()) != null);
+    }
+
+    // ranges hold at least one address, so max (exclusive, see Cidrs) must be after min
+    static IllegalArgumentException emptyRange(IpAddress min, IpAddress max) {
+        return new IllegalArgumentException("range must end after it starts: " + min.address() + " - " + max.address());
+    }
+
+    private static boolean isBlock(BatchItem item) {
+        return Cidrs.decompose(item.min(), item.max()).size() == 1;
+    }
+
+    private record BatchItem(int position, IpAddress min, IpAddress max, IpRange ipRange) {
+    }
 
-        int v = ipVersion.getVersion();
-        var g = new GeneratedKeyHolder();
-        jdbcClient.sql("insert into ip_range_v" + v +
-                        "(ip_space_id, name, description, min, max) " +
-                        "values (:ipSpaceId, :name, :description, :min, :max)")
-                .paramSource(ipRange)
-                .update(g);
+    // reserves ranges as they are read, a batch at a time - unlike reserveAll, batches before a conflicting one are kept
+    public BulkImport importRanges(int ipSpaceId, Iterator<IpRange> ipRanges) {
+        return metrics.timed(IMPORT, index(ipSpaceId).ipVersion(), () -> {
+            long imported = 0;
+            List<IpRange> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+            while (ipRanges.hasNext()) {
+                batch.add(ipRanges.next());
+                if (batch.size() < IMPORT_BATCH_SIZE && ipRanges.hasNext())
+                    continue;
+                List<Conflict> conflicts = reserveAll(ipSpaceId, batch).conflicts();
+                if (!conflicts.isEmpty()) {
+                    long offset = imported;
+                    return new BulkImport(imported, conflicts.stream()
+                            .map(c -> new Conflict((int) (c.position() + offset), c.ipRange(), c.conflictsWith()))
+                            .toList());
+                }
+                imported += batch.size();
+                batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+            }
+            return new BulkImport(imported, List.of());
+        }, r -> r.conflicts().isEmpty() ? Outcome.SUCCESS : Outcome.CONFLICT);
+    }
+
+    // passes every range of the space to consumer, ordered by min, as the storage reads them
+    public void exportRanges(IpSpace ipSpace, Consumer<IpRange> consumer) {
+        metrics.timedRun(EXPORT, ipSpace.getIpVersion(), () -> storage.ranges().scan(ipSpace, consumer));
+    }
+
+    // the fewest cidr blocks covering exactly the addresses of the ranges of this space, in order - adjacent ranges
+    // are summarized into supernets where they line up. reads the ranges like exportRanges, holding none of them
+    public void aggregateRanges(IpSpace ipSpace, Consumer<Cidr> consumer) {
+        var aggregator = new Cidrs.Aggregator(consumer);
+        exportRanges(ipSpace, aggregator::add);
+        aggregator.finish();
+    }
 
-        int id = Objects.requireNonNull(g.getKey()).intValue();
+    // writes the ranges of this space to a compact file, for read-only lookups through IpSpaceSnapshot.open
+    public void writeSnapshot(IpSpace ipSpace, Path path) {
+        if (index(ipSpace) instanceof IpPrefixTrie)
+            throw new IllegalArgumentException("snapshots hold ranges that don't overlap, not nested spaces");
+        var writer = new IpSpaceSnapshot.Writer(ipSpace);
+        exportRanges(ipSpace, writer::add);
+        try {
+            writer.writeTo(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-        return ipRange.setId(id);
+    // reserves the first (or best) fitting free block with this prefix length within the space bounds
+    public IpRange allocate(IpRange ipRange, int prefixLength, AllocationStrategy strategy) {
+        return metrics.timed(ALLOCATE, ipRange, () -> {
+            IpVersion ipVersion = lookupIpVersion(ipRange);
+            if (prefixLength < 0 || prefixLength > ipVersion.getBits())
+                throw new IllegalArgumentException("invalid prefix length for " + ipVersion + ": " + prefixLength);
+            // no other reservation can take the block between finding and reserving it
+            return withSpaceLock(ipRange.getIpSpace().getId(), () -> {
+                var block = index(ipRange).findFree(prefixLength, strategy);
+                if (block == null)
+                    throw new IpSpaceExhaustedException();
+                ipRange.setMinFromIp(block.min()).setMaxFromIp(block.max());
+                return reserve(ipRange, ipVersion);
+            });
+        });
     }
 
     public IpRange findRange(int spaceId, int rangeId) {
-        IpSpace ipSpace = jdbcClient.sql("select * from ip_space where id = ?").params(spaceId).query(IpSpace.class).optional().orElseThrow(IpDataNotFoundException::new);
-        int v = ipSpace.getIpVersion().getVersion();
-        IpRange ipRange = jdbcClient.sql("select * from ip_range_v" + v + " where id = ?").params(rangeId).query(IpRange.class).optional().orElseThrow(IpDataNotFoundException::new);
-        ipRange.setIpSpace(ipSpace);
-        return ipRange;
+        return metrics.timed(FIND_RANGE, () -> {
+            IpSpace ipSpace = Optional.ofNullable(space(spaceId)).orElseThrow(IpDataNotFoundException::new);
+            if (readOnly)
+                return Optional.ofNullable(index(ipSpace).get(rangeId)).map(IpRange::copy).orElseThrow(IpDataNotFoundException::new);
+            return Optional.ofNullable(storage.ranges().find(ipSpace, rangeId)).orElseThrow(IpDataNotFoundException::new);
+        });
     }
 
     public List<IpRange> listRanges(int ipSpaceId, PageRequest pageRequest) {
-        return listRanges(findSpace(ipSpaceId), pageRequest);
+        return listRanges(Optional.ofNullable(space(ipSpaceId)).orElseThrow(IpDataNotFoundException::new), pageRequest);
     }
 
     public List<IpRange> listRanges(IpSpace ipSpace, PageRequest pageRequest) {
-        return jdbcClient
-                .sql("select * from ip_range_v" + ipSpace.getIpVersion().getVersion() +
-                        " where ip_space_id = ? " +
-                        "order by min asc " +
-                        "limit ? offset ?")
-                .params(ipSpace.getId(), pageRequest.getPageSize(), pageRequest.getOffset())
-                .query(IpRange.class)
-                .stream()
-                .peek(e -> e.setIpSpace(ipSpace))
-                .toList();
+        if (readOnly)
+            return metrics.timed(LIST_RANGES, ipSpace.getIpVersion(), () -> {
+                List<IpRange> ipRanges = index(ipSpace).list(null, (int) pageRequest.getOffset() + pageRequest.getPageSize());
+                return ipRanges.subList(Math.min((int) pageRequest.getOffset(), ipRanges.size()), ipRanges.size());
+            });
+        return metrics.timed(LIST_RANGES, ipSpace.getIpVersion(),
+                () -> storage.ranges().list(ipSpace, pageRequest.getOffset(), pageRequest.getPageSize()));
+    }
+
+    // keyset pagination: the ranges after this position (or from the start if null), ordered by (min, max)
+    public List<IpRange> listRanges(IpSpace ipSpace, RangeKey after, int limit) {
+        return metrics.timed(LIST_RANGES, ipSpace.getIpVersion(), () -> readOnly
+                ? index(ipSpace).list(after, limit)
+                : storage.ranges().list(ipSpace, after, limit));
     }
 
     public IpRange release(IpRange ipRange) {
-        return jdbcClient.sql("delete from ip_range_v" + lookupIpVersion(ipRange).getVersion() + " where id = ?")
-                .params(Objects.requireNonNull(ipRange.getId()))
-                .update() == 0 ? null : ipRange;
+        checkWritable();
+        return metrics.timed(RELEASE, ipRange, () -> {
+            IpVersion ipVersion = lookupIpVersion(ipRange);
+            return withSpaceLock(ipRange.getIpSpace().getId(), () -> {
+                RangeIndex index = index(ipRange);
+                // the event has the bounds and name of the range, the caller may only know its id
+                IpRange released = Optional.ofNullable(index.get(Objects.requireNonNull(ipRange.getId()))).orElse(ipRange);
+                int deleted = storage.inTransaction(() -> {
+                    int count = storage.ranges().deleteAll(ipVersion, List.of(ipRange.getId()));
+                    if (count > 0)
+                        journal.append(ChangeType.RANGE_RELEASED, released);
+                    return count;
+                });
+                index.remove(ipRange.getId());
+                return deleted == 0 ? null : ipRange;
+            });
+        });
+    }
+
+    // like reserve, but committed in a batch with the other requests to the space queued meanwhile (see
+    // ReservationPipeline); the bounds of the range are set. fails with IpRangeConflictsException if it overlaps a
+    // range reserved by then, e.g. earlier in the same batch
+    public CompletableFuture<IpRange> reserveAsync(IpRange ipRange) {
+        return metrics.timedAsync(RESERVE, ipRange, () -> {
+            checkWritable();
+            lookupIpVersion(ipRange);
+            return submit(ipRange, false);
+        });
+    }
+
+    // like release, committed in a batch like reserveAsync; completes with null if there is no such range
+    public CompletableFuture<IpRange> releaseAsync(IpRange ipRange) {
+        return metrics.timedAsync(RELEASE, ipRange, () -> {
+            checkWritable();
+            Objects.requireNonNull(ipRange.getId());
+            lookupIpVersion(ipRange);
+            return submit(ipRange, true);
+        });
+    }
+
+    private CompletableFuture<IpRange> submit(IpRange ipRange, boolean release) {
+        CompletableFuture<IpRange> future;
+        // to the next pipeline if setGroupCommit shut this one down meanwhile
+        while ((future = pipeline().submit(ipRange.getIpSpace().getId(), ipRange, release)) == null) {
+        }
+        return future;
+    }
+
+    private ReservationPipeline pipeline() {
+        ReservationPipeline current = pipeline;
+        if (current != null)
+            return current;
+        synchronized (this) {
+            if (pipeline == null)
+                pipeline = new ReservationPipeline(this, groupCommitBatchSize, groupCommitWindow);
+            return pipeline;
+        }
+    }
+
+    // batches of at most maxBatchSize requests, taken once the first one has waited for window (see ReservationPipeline);
+    // the requests queued by then are committed as before
+    public void setGroupCommit(int maxBatchSize, Duration window) {
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException("max batch size must be positive: " + maxBatchSize);
+        ReservationPipeline previous;
+        synchronized (this) {
+            previous = pipeline;
+            pipeline = null;
+            groupCommitBatchSize = maxBatchSize;
+            groupCommitWindow = window;
+        }
+        if (previous != null)
+            previous.shutdown();
+    }
+
+    // a batch of the pipeline, in one transaction under the lock of the space: first each request is checked against
+    // the ranges as the ones accepted before it leave them, then the accepted ones are written. futures complete in
+    // the order of the batch once it has committed, outside the lock. if a write fails, the requests that didn't make
+    // it fail with it: all of the accepted ones on storage that rolls back, on other storage the failed one and after
+    void commit(int ipSpaceId, List<ReservationPipeline.Request> batch) {
+        Runnable[] outcomes = new Runnable[batch.size()];
+        metrics.timed(COMMIT_BATCH, batch.get(0).ipRange(), () -> withSpaceLock(ipSpaceId, () -> {
+            RangeIndex index = index(batch.get(0).ipRange());
+            // positions of the requests to write; the ranges released and reserved by them, as the checks see them
+            List<Integer> accepted = new ArrayList<>(batch.size());
+            Set<Integer> released = new HashSet<>();
+            List<IpRange> reserved = new ArrayList<>();
+            AtomicInteger written = new AtomicInteger();
+            try {
+                // whether the index missed ranges of another process (see checkStored), it's loaded again after
+                boolean stale = storage.inTransaction(() -> {
+                    boolean missed = false;
+                    for (int i = 0; i < batch.size(); i++) {
+                        ReservationPipeline.Request request = batch.get(i);
+                        IpRange ipRange = request.ipRange();
+                        if (request.release()) {
+                            released.add(ipRange.getId());
+                            accepted.add(i);
+                            continue;
+                        }
+                        IpAddress min = ipRange.minAddress(), max = ipRange.maxAddress();
+                        RuntimeException rejected = invalid(request);
+                        if (rejected == null && conflicts(index, ipRange.getIpSpace().isNested(), min, max, released, reserved))
+                            rejected = new IpRangeConflictsException();
+                        if (rejected == null && missesStored(ipRange.getIpSpace(), index, min, max)) {
+                            missed = true;
+                            rejected = new IpRangeConflictsException();
+                        }
+                        if (rejected != null) {
+                            RuntimeException failure = rejected;
+                            outcomes[i] = () -> request.future().completeExceptionally(failure);
+                            continue;
+                        }
+                        reserved.add(ipRange);
+                        accepted.add(i);
+                    }
+                    IpVersion ipVersion = index.ipVersion();
+                    for (int i : accepted) {
+                        ReservationPipeline.Request request = batch.get(i);
+                        IpRange ipRange = request.ipRange();
+                        if (request.release()) {
+                            IpRange releasedRange = Optional.ofNullable(index.get(ipRange.getId())).orElse(ipRange);
+                            int count = storage.ranges().deleteAll(ipVersion, List.of(ipRange.getId()));
+                            if (count > 0)
+                                journal.append(ChangeType.RANGE_RELEASED, releasedRange);
+                            index.remove(ipRange.getId());
+                            outcomes[i] = () -> request.future().complete(count == 0 ? null : ipRange);
+                        } else {
+                            storage.ranges().insertAll(ipVersion, List.of(ipRange));
+                            journal.append(ChangeType.RANGE_RESERVED, ipRange);
+                            index.add(ipRange);
+                            outcomes[i] = () -> request.future().complete(ipRange);
+                        }
+                        written.incrementAndGet();
+                    }
+                    return missed;
+                });
+                if (stale)
+                    unload(ipSpaceId);
+            } catch (RuntimeException e) {
+                // the index has all the accepted requests, written or not
+                unload(ipSpaceId);
+                for (int i : accepted.subList(storage.rollsBack() ? 0 : written.get(), accepted.size()))
+                    outcomes[i] = null;
+                // those too that weren't checked yet
+                for (int i = 0; i < batch.size(); i++) {
+                    ReservationPipeline.Request request = batch.get(i);
+                    if (outcomes[i] == null)
+                        outcomes[i] = () -> request.future().completeExceptionally(e);
+                }
+            }
+            return batch;
+        }));
+        for (Runnable outcome : outcomes)
+            outcome.run();
+    }
+
+    // whether [min, max) can't be reserved once the ranges released earlier in a batch are gone and the ones reserved
+    // earlier are in: in nested spaces ranges conflict with the same block only
+    private static boolean conflicts(RangeIndex index, boolean nested, IpAddress min, IpAddress max,
+                                     Set<Integer> released, List<IpRange> reserved) {
+        Predicate<IpRange> clashes = r -> nested
+                ? r.minAddress().equals(min) && r.maxAddress().equals(max)
+                : r.minAddress().compareTo(max) < 0 && min.compareTo(r.maxAddress()) < 0;
+        if (index.conflicts(min, max) && (released.isEmpty() ||
+                index.overlapping(min, max).stream().anyMatch(r -> !released.contains(r.getId()) && clashes.test(r))))
+            return true;
+        return reserved.stream().anyMatch(clashes);
+    }
+
+    // why the range of this request can't be reserved whatever else is in its space (or null if it can be)
+    private RuntimeException invalid(ReservationPipeline.Request request) {
+        if (request.release())
+            return null;
+        IpRange ipRange = request.ipRange();
+        IpAddress min = ipRange.minAddress(), max = ipRange.maxAddress();
+        if (min.compareTo(max) >= 0)
+            return emptyRange(min, max);
+        if (!index(ipRange).withinSpace(min, max))
+            return new IpRangeOutOfBoundsException();
+        if (ipRange.getIpSpace().isNested() && Cidrs.decompose(min, max).size() != 1)
+            return new IllegalArgumentException("ranges of nested spaces must be cidr blocks: " + min + " - " + max);
+        return null;
     }
 
     // returns if this ip address is within any of the ranges (or not)
     public boolean free(IpSpace ipSpace, IpAddress ipAddress) {
-        int v = ipSpace.getIpVersion().getVersion();
-        return 0 == jdbcClient.sql("select count(*) from ip_range_v" + v + " " + """
-                        where (min >= :value and max < :value)
-                        and ip_space_id = :ip_space
-                        """)
-                .params(Map.of("value", ipAddress.toBigInteger(),
-                        "ip_space", ipSpace.getId()))
-                .query(Integer.class)
-                .single();
+        return metrics.timed(FREE, ipAddress.version(), () -> index(ipSpace).rangeOf(ipAddress) == null);
     }
 
     // returns if any addresses in this range are within any of the ranges (or not)
     public boolean free(IpRange ipRange) {
-        return 0 == find(lookupIpVersion(ipRange), ipRange);
+        return metrics.timed(FREE, ipRange, () -> !index(ipRange).overlaps(ipRange.minAddress(), ipRange.maxAddress()));
     }
 
     // find list of ip ranges which contain addresses within this ip range
     public List<IpRange> foundWithin(IpRange ipRange) {
-        return findRanges(lookupIpVersion(ipRange), ipRange);
+        return metrics.timed(FOUND_WITHIN, ipRange, () -> index(ipRange).overlapping(ipRange.minAddress(), ipRange.maxAddress()));
+    }
+
+    // the ranges nested directly in this one (or the top level ranges for null) of a nested space, ordered by min
+    public List<IpRange> children(int ipSpaceId, Integer parentRangeId) {
+        if (!(index(ipSpaceId) instanceof IpPrefixTrie trie))
+            throw new IllegalArgumentException("ranges only have children in nested spaces");
+        if (parentRangeId == null)
+            return trie.children(null);
+        IpRange parent = Optional.ofNullable(trie.get(parentRangeId)).orElseThrow(IpDataNotFoundException::new);
+        return trie.children(parent);
+    }
+
+    // a branch of the space as it is now, sharing its ranges until either of them changes
+    public Branch createBranch(int ipSpaceId, String name) {
+        IpSpace ipSpace = Optional.ofNullable(space(ipSpaceId)).orElseThrow(IpDataNotFoundException::new);
+        RangeSnapshot base = index(ipSpace).snapshot();
+        IpSpaceBranch branch = new IpSpaceBranch(name, ipSpace.copy(), base);
+        if (branches.putIfAbsent(new BranchKey(ipSpaceId, name), branch) != null)
+            throw new IllegalArgumentException("branch exists already: " + name);
+        return toBranch(branch);
+    }
+
+    // ordered by name
+    public List<Branch> listBranches(int ipSpaceId) {
+        return branches.values().stream()
+                .filter(b -> b.ipSpace.getId() == ipSpaceId)
+                .sorted(Comparator.comparing(b -> b.name))
+                .map(IpDbService::toBranch)
+                .toList();
+    }
+
+    public Branch deleteBranch(int ipSpaceId, String name) {
+        IpSpaceBranch removed = branches.remove(new BranchKey(ipSpaceId, name));
+        return removed == null ? null : toBranch(removed);
+    }
+
+    // reserves a range on the branch only, with a (negative) id of the branch
+    public IpRange reserveInBranch(int ipSpaceId, String name, IpRange ipRange) {
+        IpSpaceBranch branch = branch(ipSpaceId, name);
+        return branch.reserve(ipRange.setIpSpaceId(ipSpaceId).setIpSpace(branch.ipSpace));
+    }
+
+    // releases a range on the branch only (null if the branch has no range with this id)
+    public IpRange releaseInBranch(int ipSpaceId, String name, int rangeId) {
+        return branch(ipSpaceId, name).release(rangeId);
+    }
+
+    public IpRange rangeOfInBranch(int ipSpaceId, String name, IpAddress ipAddress) {
+        return branch(ipSpaceId, name).ranges().rangeOf(ipAddress);
+    }
+
+    public List<IpRange> listBranchRanges(int ipSpaceId, String name, RangeKey after, int limit) {
+        return branch(ipSpaceId, name).list(after, limit);
+    }
+
+    // the ranges reserved and released on the branch since it was created, in the order of their min
+    public BranchDiff diffBranch(int ipSpaceId, String name) {
+        return branch(ipSpaceId, name).diff();
+    }
+
+    // applies the diff of the branch to the space in one transaction and deletes the branch: ranges released on the
+    // branch are released (unless they were already), ranges reserved on it are reserved with ids of the space -
+    // unless any of them conflicts with a range reserved on the space since, then nothing is and the branch is kept
+    public BulkReservation mergeBranch(int ipSpaceId, String name) {
+        checkWritable();
+        IpSpaceBranch branch = branch(ipSpaceId, name);
+        IpSpace ipSpace = Optional.ofNullable(space(ipSpaceId)).orElseThrow(IpDataNotFoundException::new);
+        IpVersion ipVersion = ipSpace.getIpVersion();
+
+        return metrics.timed(MERGE, ipVersion, () -> withSpaceLock(ipSpaceId, () -> {
+            RangeIndex index = index(ipSpace);
+            BranchDiff diff = branch.diff();
+            List<IpRange> released = diff.removed().stream().filter(r -> index.get(r.getId()) != null).toList();
+            Set<Integer> releasedIds = released.stream().map(IpRange::getId).collect(Collectors.toSet());
+
+            List<IpRange> reserved = new ArrayList<>(diff.added().size());
+            List<Conflict> conflicts = new ArrayList<>();
+            for (IpRange added : diff.added()) {
+                IpRange ipRange = added.copy().setId(null).setIpSpace(ipSpace);
+                IpAddress min = ipRange.minAddress(), max = ipRange.maxAddress();
+                if (!index.withinSpace(min, max)) {
+                    conflicts.add(new Conflict(reserved.size(), ipRange, List.of()));
+                } else {
+                    List<IpRange> conflictsWith = index.overlapping(min, max).stream()
+                            .filter(r -> !releasedIds.contains(r.getId()))
+                            .toList();
+                    if (!conflictsWith.isEmpty())
+                        conflicts.add(new Conflict(reserved.size(), ipRange, conflictsWith));
+                }
+                reserved.add(ipRange);
+            }
+            if (!conflicts.isEmpty())
+                return new BulkReservation(List.of(), conflicts);
+
+            storage.inTransaction(() -> {
+                if (!released.isEmpty()) {
+                    storage.ranges().deleteAll(ipVersion, releasedIds);
+                    journal.appendAll(ChangeType.RANGE_RELEASED, released);
+                }
+                if (!reserved.isEmpty()) {
+                    IpAddress min = reserved.stream().map(IpRange::minAddress).min(Comparator.naturalOrder()).orElseThrow();
+                    IpAddress max = reserved.stream().map(IpRange::maxAddress).max(Comparator.naturalOrder()).orElseThrow();
+                    checkStored(ipSpace, index, min, max);
+                    storage.ranges().insertAll(ipVersion, reserved);
+                    journal.appendAll(ChangeType.RANGE_RESERVED, reserved);
+                }
+                return null;
+            });
+            releasedIds.forEach(index::remove);
+            reserved.forEach(index::add);
+            branches.remove(new BranchKey(ipSpaceId, name), branch);
+            return new BulkReservation(reserved, List.of());
+        }), r -> r.conflicts().isEmpty() ? Outcome.SUCCESS : Outcome.CONFLICT);
+    }
+
+    private IpSpaceBranch branch(int ipSpaceId, String name) {
+        return Optional.ofNullable(branches.get(new BranchKey(ipSpaceId, name))).orElseThrow(IpDataNotFoundException::new);
+    }
+
+    private static Branch toBranch(IpSpaceBranch branch) {
+        return new Branch(branch.ipSpace.getId(), branch.name, branch.ranges().size());
+    }
+
+    private record BranchKey(int ipSpaceId, String name) {
+    }
+
+    // the changes after this sequence number (0 for all), of one space or of all spaces if ipSpaceId is null
+    public ChangePage changes(long after, Integer ipSpaceId, int limit) {
+        return metrics.timed(CHANGES, () -> journal.read(after, ipSpaceId, limit));
+    }
+
+    // like changes, waiting up to timeout for a change when there are none yet (the page is empty if none came)
+    public ChangePage awaitChanges(long after, Integer ipSpaceId, int limit, Duration timeout) {
+        return metrics.timed(AWAIT_CHANGES, () -> journal.await(after, ipSpaceId, limit, timeout));
     }
 
     // find the range containing this ip address (or null if not found)
     public IpRange rangeOf(int ipSpaceId, IpAddress ipAddress) {
-        return rangeOf(findSpace(ipSpaceId), ipAddress);
+        return metrics.timed(RANGE_OF, ipAddress.version(), () -> index(ipSpaceId).rangeOf(ipAddress));
+    }
+
+    // find the ranges containing these ip addresses, in one pass over the space after sorting them;
+    // the result is ordered by address and maps addresses without a range to null
+    public Map<IpAddress, IpRange> rangeOf(int ipSpaceId, Collection<IpAddress> ipAddresses) {
+        RangeIndex index = index(ipSpaceId);
+        metrics.batchLookup(ipAddresses.size());
+        return metrics.timed(RANGE_OF_BATCH, index.ipVersion(), () -> {
+            IpAddress[] sorted = ipAddresses.toArray(IpAddress[]::new);
+            for (IpAddress ipAddress : sorted)
+                if (ipAddress.version() != index.ipVersion())
+                    throw new IllegalArgumentException("expected an " + index.ipVersion() + " address: " + ipAddress);
+            Arrays.sort(sorted);
+            IpRange[] ranges = index.rangesOf(sorted);
+            Map<IpAddress, IpRange> result = new LinkedHashMap<>(sorted.length * 2);
+            for (int i = 0; i < sorted.length; i++)
+                result.put(sorted[i], ranges[i]);
+            return result;
+        });
     }
 
     // find the range containing this ip address (or null if not found)
     public IpRange rangeOf(IpSpace ipSpace, IpAddress ipAddress) {
-        return jdbcClient.sql("select * from ip_range_v" + ipSpace.getIpVersion().getVersion() +
-                        " where ip_space_id = :ip_space_id and min >= :value and max < :value")
-                .params(Map.of("ip_space_id", ipSpace.getId(), "value", ipAddress.toBigInteger()))
-                .query(IpRange.class)
-                .optional().orElse(null);
+        return metrics.timed(RANGE_OF, ipAddress.version(), () -> index(ipSpace).rangeOf(ipAddress));
+    }
+
+    // the free gaps of the space after this address (or from its min if null), ordered by address; keyset paged
+    // on the min of the last gap, minSize (if not null) leaves out gaps with fewer addresses
+    public List<FreeGap> listFree(int ipSpaceId, IpAddress after, BigInteger minSize, int limit) {
+        RangeIndex index = index(ipSpaceId);
+        return metrics.timed(LIST_FREE, index.ipVersion(), () -> index.free(after, minSize, limit));
     }
 
-    // todo next: fetch whole space for bounds checking on the space
+    // range count and used and free addresses of the space, kept up to date by its index on every change
+    public SpaceStats stats(int ipSpaceId) {
+        RangeIndex index = index(ipSpaceId);
+        return metrics.timed(STATS, index.ipVersion(), index::stats);
+    }
+
+    private RangeIndex index(IpRange ipRange) {
+        lookupIpVersion(ipRange);
+        return index(ipRange.getIpSpace());
+    }
+
+    // without querying the space when its index is loaded already
+    private RangeIndex index(int ipSpaceId) {
+        RangeIndex index = indexes.get(ipSpaceId);
+        return index != null ? index : index(new IpSpace().setId(ipSpaceId));
+    }
+
+    // the index of the ranges in this space, loaded from the database on first use;
+    // loaded under the lock of the space, so it can't miss a reservation that is in flight
+    RangeIndex index(IpSpace ipSpace) {
+        RangeIndex index = indexes.get(Objects.requireNonNull(ipSpace.getId()));
+        if (index != null)
+            return index;
+        return withSpaceLock(ipSpace.getId(), () -> indexes.computeIfAbsent(ipSpace.getId(), id -> {
+            log.debug("loading range index for ip space {}", id);
+            // the whole space, as callers may only know its id and version
+            IpSpace space = Optional.ofNullable(space(id)).orElseThrow(IpDataNotFoundException::new);
+            List<IpRange> ipRanges = new ArrayList<>();
+            storage.ranges().scan(space, ipRanges::add);
+            RangeIndex loaded = space.isNested() ? new IpPrefixTrie(space, ipRanges) : new IpRangeIndex(space, ipRanges);
+            metrics.spaceLoaded(id, loaded);
+            return loaded;
+        }));
+    }
+
+    private void unload(int ipSpaceId) {
+        withSpaceLock(ipSpaceId, () -> {
+            spaces.invalidate(ipSpaceId);
+            metrics.spaceUnloaded(ipSpaceId);
+            return indexes.remove(ipSpaceId);
+        });
+    }
+
+    private void checkWritable() {
+        if (readOnly)
+            throw new IpDbReadOnlyException();
+    }
+
+    // loads the ranges of every space into memory, returns the number of spaces
+    int loadAll() {
+        int loaded = 0;
+        Integer afterId = null;
+        for (List<IpSpace> page = listSpaces(afterId, 100); !page.isEmpty(); page = listSpaces(afterId, 100)) {
+            page.forEach(this::index);
+            loaded += page.size();
+            afterId = page.get(page.size() - 1).getId();
+        }
+        return loaded;
+    }
+
+    // replays a change of the journal on the indexes of a replica. changes may be replayed on state loaded after
+    // they were made (the state at startup, a space reloaded after it changed), which they then leave as it is:
+    // a range that's there already or overlaps one that's there is one that was released before loading
+    void apply(Change change) {
+        int ipSpaceId = change.ipSpaceId();
+        withSpaceLock(ipSpaceId, () -> {
+            switch (change.type()) {
+                case SPACE_CREATED, SPACE_UPDATED -> {
+                    unload(ipSpaceId);
+                    try {
+                        index(ipSpaceId);
+                    } catch (IpDataNotFoundException e) {
+                        // deleted since, a later change unloads it
+                    }
+                }
+                case SPACE_DELETED -> unload(ipSpaceId);
+                case RANGE_RESERVED -> {
+                    RangeIndex index = indexes.get(ipSpaceId);
+                    if (index != null && index.get(change.ipRangeId()) == null && !index.conflicts(change.min(), change.max()))
+                        index.add(new IpRange()
+                                .setId(change.ipRangeId())
+                                .setIpSpaceId(ipSpaceId)
+                                .setName(change.name())
+                                .setDescription(change.description())
+                                .setMinFromIp(change.min())
+                                .setMaxFromIp(change.max())
+                                .setIpSpace(space(ipSpaceId)));
+                }
+                case RANGE_RELEASED -> {
+                    RangeIndex index = indexes.get(ipSpaceId);
+                    if (index != null)
+                        index.remove(change.ipRangeId());
+                }
+            }
+            return null;
+        });
+    }
+
+    // serializes writes to a space within this process (the index is per process too)
+    private <T> T withSpaceLock(int ipSpaceId, Supplier<T> action) {
+        ReentrantLock lock = spaceLocks[Math.floorMod(ipSpaceId, SPACE_LOCK_STRIPES)];
+        lock.lock();
+        try {
+            return action.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the bounds of the space are checked against its index, which is loaded from the cached space
     private IpVersion lookupIpVersion(IpRange ipRange) {
         if (ipRange.getIpSpace() != null && ipRange.getIpSpace().getIpVersion() != null)
             return ipRange.getIpSpace().getIpVersion();
-        IpVersion ipVersion = jdbcClient.sql("select version from ip_space where id = ?")
-                .params(ipRange.getIpSpaceId())
-                .query(Integer.class)
-                .optional()
-                .map(IpVersion::from)
-                .orElseThrow(IpDataNotFoundException::new);
+        IpSpace space = Optional.ofNullable(space(ipRange.getIpSpaceId())).orElseThrow(IpDataNotFoundException::new);
         if (ipRange.getIpSpace() == null)
-            ipRange.setIpSpace(new IpSpace()
-                    .setIpVersion(ipVersion)
-                    .setId(ipRange.getIpSpaceId()));
-        return ipVersion;
+            ipRange.setIpSpace(space);
+        return space.getIpVersion();
     }
 
-    @SuppressWarnings({"SqlDialectInspection"})
+    // the number of ranges overlapping this one, as stored
     int find(IpVersion ipVersion, IpRange ipRange) {
-        /*
-            --------|_----1---|_----2---|_--------
-            -----X--|_------X-|_--------|_-------- - find 1 - min is less than max, max is more than max
-            --------|_--------|_-------X|_-X------ - find 2 - min is less than min, max is more than min
-            --------|_--------|_----X-X-|_-------- - find 2 - min is less than min, max is more than min
-            --------|_--------|_--------|x---x---- - find null - max is exclusive
-            -----X--|X--------|_--------|_-------- - find 1 - min is inclusive
-            --------|_--------|_--------|_---X---X - find null
-         */
-        return jdbcClient.sql("select count(*) from ip_range_v" + ipVersion.getVersion() + " where " +
-                        "((min <= :min and max > :min) or (min < :max and max > :max)) " +
-                        "and ip_space_id = :ip_space")
-                .params(Map.of(
-                        "ip_space", ipRange.getIpSpaceId(),
-                        "min", ipRange.getMin(),
-                        "max", ipRange.getMax()
-                ))
-                .query(Integer.class)
-                .single();
+        return findRanges(ipVersion, ipRange).size();
     }
 
+    // the ranges overlapping this one as stored, ordered by min
     List<IpRange> findRanges(IpVersion ipVersion, IpRange ipRange) {
-        /*
-            --------|_----1---|_----2---|_--------
-            -----X--|_------X-|_--------|_-------- - find 1 - min is less than max, max is more than max
-            --------|_--------|_-------X|_-X------ - find 2 - min is less than min, max is more than min
-            --------|_--------|_----X-X-|_-------- - find 2 - min is less than min, max is more than min
-            --------|_--------|_--------|x---x---- - find null - max is exclusive
-            -----X--|X--------|_--------|_-------- - find 1 - min is inclusive
-            --------|_--------|_--------|_---X---X - find null
-         */
-
-        return jdbcClient.sql("select * from ip_range_v" + ipVersion.getVersion() + " " +
-                        """
-                                where ((min <= :min and max > :min) or (min < :max and max > :max))
-                                and ip_space_id = :ip_space
-                                """)
-                .params(Map.of(
-                        "ip_space", ipRange.getIpSpaceId(),
-                        "min", ipRange.getMin(),
-                        "max", ipRange.getMax()
-                ))
-                .query(IpRange.class)
-                .list();
+        IpSpace ipSpace = Optional.ofNullable(space(ipRange.getIpSpaceId())).orElseThrow(IpDataNotFoundException::new);
+        return storage.ranges().overlapping(ipSpace, IpAddress.from(ipRange.getMin(), ipVersion), IpAddress.from(ipRange.getMax(), ipVersion));
     }
 
     public static void main(String[] args) {
-        // System.out.println(Arrays.toString(IpAddress.parseIpV4("1.1.1.1")));
-        // System.out.println(Arrays.toString(new BigInteger("16843009").toByteArray()));
-        // System.out.println(Arrays.toString(IpAddress.parseIpV6("2001:0000:130F:0000:0000:09C0:876A:130B")));
-        // System.out.println(new BigInteger(IpAddress.parseIpV6("2001:0000:130F:0000:0000:09C0:876A:130B")));
-        // System.out.println(IpAddress.serializeIpV6(IpAddress.parseIpV6("2001:0000:130F:0000:0000:09C0:876A:130B")));
+        // System.out.println(IpAddress.v4("1.1.1.1").toBigInteger());
+        // System.out.println(IpAddress.v4(new BigInteger("16843009")));
+        // System.out.println(IpAddress.v6("2001:0000:130F:0000:0000:09C0:876A:130B").toBigInteger());
+        // System.out.println(IpAddress.v6("2001:0000:130F:0000:0000:09C0:876A:130B"));
     }
 
     @Data
@@ -265,6 +962,8 @@ public class IpDbService {
         transient IpVersion ipVersion;
         BigInteger min;
         BigInteger max;
+        // ranges may contain other ranges (supernet, site, vlan), as long as they are cidr blocks
+        boolean nested;
 
         public IpVersion getIpVersion() {
             if (version == null) return null;
@@ -277,6 +976,27 @@ public class IpDbService {
             this.ipVersion = ipVersion;
             return this;
         }
+
+        // the lower bound of the space, or the first address if unbounded
+        public IpAddress minAddress() {
+            return min == null ? getIpVersion().first() : IpAddress.from(min, getIpVersion());
+        }
+
+        // the (exclusive) upper bound of the space, or the end of the address space if unbounded
+        public IpAddress maxAddress() {
+            return max == null ? getIpVersion().end() : IpAddress.from(max, getIpVersion());
+        }
+
+        IpSpace copy() {
+            return new IpSpace()
+                    .setId(id)
+                    .setName(name)
+                    .setDescription(description)
+                    .setVersion(version)
+                    .setMin(min)
+                    .setMax(max)
+                    .setNested(nested);
+        }
     }
 
     @Data
@@ -297,30 +1017,248 @@ public class IpDbService {
         public IpRange setMaxFromIp(IpAddress ipAddress) {
             return setMax(ipAddress.toBigInteger());
         }
+
+        // requires the ip space (or at least its version) to be known
+        public IpAddress minAddress() {
+            return IpAddress.from(min, ipSpace.getIpVersion());
+        }
+
+        public IpAddress maxAddress() {
+            return IpAddress.from(max, ipSpace.getIpVersion());
+        }
+
+        IpRange copy() {
+            return new IpRange()
+                    .setId(id)
+                    .setIpSpaceId(ipSpaceId)
+                    .setName(name)
+                    .setDescription(description)
+                    .setMin(min)
+                    .setMax(max)
+                    .setIpSpace(ipSpace);
+        }
     }
 
     @RequiredArgsConstructor
     @Getter
     public enum IpVersion {
-        V4(4), V6(6),
+        V4(4, 32), V6(6, 128),
         ;
         private static final Map<Integer, IpVersion> BY_VERSION =
                 Arrays.stream(values())
                         .collect(Collectors.toMap(IpVersion::getVersion, Function.identity()));
 
         private final int version;
+        private final int bits;
 
         public static IpVersion from(int version) {
             return BY_VERSION.get(version);
         }
+
+        public IpAddress first() {
+            return this == V4 ? IpAddress.v4(0) : IpAddress.v6(0, 0);
+        }
+
+        public IpAddress last() {
+            return this == V4 ? IpAddress.v4(0xffffffffL) : IpAddress.v6(-1, -1);
+        }
+
+        // the exclusive end of the address space, right after the last address
+        public IpAddress end() {
+            return this == V4 ? IpAddress.V4_END : IpAddress.V6_END;
+        }
+
+        // the longest prefix of a block holding at least size addresses
+        public int prefixLength(BigInteger size) {
+            if (size.signum() <= 0) throw new IllegalArgumentException("size must be positive: " + size);
+            int hostBits = size.subtract(BigInteger.ONE).bitLength();
+            if (hostBits > bits) throw new IllegalArgumentException("size too large for " + this + ": " + size);
+            return bits - hostBits;
+        }
+    }
+
+    // position of a range in (min, max) order, for keyset pagination; unique within a space, as ranges either
+    // don't overlap or (in nested spaces) are distinct blocks
+    public record RangeKey(IpAddress min, IpAddress max) {
+        public static RangeKey of(IpRange ipRange) {
+            return new RangeKey(ipRange.minAddress(), ipRange.maxAddress());
+        }
+    }
+
+    // what an event of the change journal records
+    public enum ChangeType {
+        SPACE_CREATED, SPACE_UPDATED, SPACE_DELETED, RANGE_RESERVED, RANGE_RELEASED,
+    }
+
+    // an event of the change journal; ranges have an id, spaces have bounds if they are bounded
+    public record Change(long seq, ChangeType type, int ipSpaceId, Integer ipRangeId, String name, String description,
+                         IpAddress min, IpAddress max, Instant createdAt) {
+    }
+
+    // events in sequence, and the sequence number to read after next (past events of other spaces when filtered)
+    public record ChangePage(List<Change> changes, long next) {
+    }
+
+    // free addresses [min, max) between the ranges of a space
+    public record FreeGap(IpAddress min, IpAddress max) {
+        public BigInteger size() {
+            return Cidrs.size(min, max);
+        }
+    }
+
+    public record Branch(int ipSpaceId, String name, int ranges) {
+    }
+
+    public record BranchDiff(List<IpRange> added, List<IpRange> removed) {
+    }
+
+    // the outcome of reserveAll: either every range was reserved, or none were and conflicts says why
+    public record BulkReservation(List<IpRange> reserved, List<Conflict> conflicts) {
+    }
+
+    // the outcome of importRanges: how many ranges were reserved before the first conflicting batch (if any)
+    public record BulkImport(long imported, List<Conflict> conflicts) {
+    }
+
+    // address counts of a space within its bounds, and its largest free block [largestFreeStart, largestFreeEnd)
+    // (null if the space is full)
+    public record SpaceStats(int ranges, BigInteger size, BigInteger used, BigInteger free,
+                             BigInteger largestFree, IpAddress largestFreeStart, IpAddress largestFreeEnd) {
+    }
+
+    // a range at this position of a batch, and the ranges (of the batch or the space) it overlaps
+    public record Conflict(int position, IpRange ipRange, List<IpRange> conflictsWith) {
+    }
+
+    public enum AllocationStrategy {
+        // the lowest free block
+        FIRST_FIT,
+        // a block from the smallest gap it fits in, keeping large gaps whole
+        BEST_FIT,
+    }
+
+    // a block of addresses by its network address and prefix length, like 10.0.0.0/24 or 2001:db8::/48
+    public record Cidr(IpAddress network, int prefixLength) {
+        public Cidr {
+            if (prefixLength < 0 || prefixLength > network.version().getBits())
+                throw new IllegalArgumentException("invalid prefix length for " + network.version() + ": " + prefixLength);
+            if (network.end() || !network.mask(prefixLength).equals(network))
+                throw new IllegalArgumentException("host bits set: " + network + "/" + prefixLength);
+        }
+
+        public IpAddress min() {
+            return network;
+        }
+
+        // the (exclusive) end of the block, the end of the address space for the last block
+        public IpAddress max() {
+            return network.plusBlock(prefixLength);
+        }
+
+        @Override
+        public String toString() {
+            return network.address() + "/" + prefixLength;
+        }
+
+        public static Cidr parse(String value, IpVersion ipVersion) {
+            int slash = value.indexOf('/');
+            if (slash < 0)
+                throw new IllegalArgumentException("expected address/prefix length: " + value);
+            return new Cidr(IpAddress.from(value.substring(0, slash), ipVersion), Integer.parseInt(value.substring(slash + 1)));
+        }
     }
 
-    public record IpAddress(String address, byte[] value, IpVersion version) {
+    // an address as an unsigned 128-bit number in two longs - ipv4 addresses only use the low 32 bits of lo. end is
+    // the exclusive end of the address space (2^32 or 2^128, with hi and lo zero), so ranges up to and including the
+    // last address can be [min, end); it is after every address and reads and prints as "end"
+    public record IpAddress(long hi, long lo, IpVersion version, boolean end) implements Comparable<IpAddress> {
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+        private static final String END = "end";
+        static final IpAddress V4_END = new IpAddress(0, 0, IpVersion.V4, true);
+        static final IpAddress V6_END = new IpAddress(0, 0, IpVersion.V6, true);
+
+        public IpAddress(long hi, long lo, IpVersion version) {
+            this(hi, lo, version, false);
+        }
+
+        public String address() {
+            if (end) return END;
+            return switch (version) {
+                case V4 -> serializeIpV4(lo);
+                case V6 -> serializeIpV6(hi, lo);
+            };
+        }
+
         public BigInteger toBigInteger() {
-            return new BigInteger(value);
+            if (end) return BigInteger.ONE.shiftLeft(version.getBits());
+            return switch (version) {
+                case V4 -> BigInteger.valueOf(lo);
+                case V6 -> new BigInteger(1, toByteArray());
+            };
+        }
+
+        // big endian, 4 bytes for ipv4 and 16 for ipv6; the end has no bytes of that width
+        public byte[] toByteArray() {
+            if (end) throw new IllegalStateException("the end of the address space doesn't fit in " + version);
+            int length = version == IpVersion.V4 ? 4 : 16;
+            byte[] result = new byte[length];
+            for (int i = 0; i < length; i++) {
+                int shift = 8 * (length - 1 - i);
+                result[i] = (byte) (shift >= 64 ? hi >>> (shift - 64) : lo >>> shift);
+            }
+            return result;
+        }
+
+        // the address right before this one, the last address for the end (there is none before the first)
+        public IpAddress previous() {
+            if (end) return version.last();
+            if (hi == 0 && lo == 0) throw new IllegalStateException("no address before " + this);
+            return new IpAddress(hi - (lo == 0 ? 1 : 0), lo - 1, version);
+        }
+
+        // this address with the bits after prefixLength cleared, i.e. the network address of its block
+        public IpAddress mask(int prefixLength) {
+            if (end) throw new IllegalStateException("the end of the address space has no block");
+            int hostBits = version.getBits() - prefixLength;
+            if (hostBits >= 128) return new IpAddress(0, 0, version);
+            if (hostBits >= 64) return new IpAddress(hi & -1L << (hostBits - 64), 0, version);
+            return new IpAddress(hi, hostBits == 0 ? lo : lo & -1L << hostBits, version);
+        }
+
+        // this address plus the size of a block with prefixLength, the end right after the last address, or null
+        // past it
+        public IpAddress plusBlock(int prefixLength) {
+            if (end) return null;
+            int hostBits = version.getBits() - prefixLength;
+            if (hostBits >= 128) return hi == 0 && lo == 0 ? version.end() : null;
+            long h = hi, l = lo;
+            boolean carry;
+            if (hostBits >= 64) {
+                h += 1L << (hostBits - 64);
+                carry = Long.compareUnsigned(h, hi) < 0;
+            } else {
+                l += 1L << hostBits;
+                carry = Long.compareUnsigned(l, lo) < 0 && ++h == 0;
+            }
+            if (version == IpVersion.V4 && l > 0xffffffffL) return l == 1L << 32 ? version.end() : null;
+            if (carry) return h == 0 && l == 0 ? version.end() : null;
+            return new IpAddress(h, l, version);
+        }
+
+        @Override
+        public int compareTo(IpAddress o) {
+            if (end != o.end) return end ? 1 : -1;
+            int c = Long.compareUnsigned(hi, o.hi);
+            return c != 0 ? c : Long.compareUnsigned(lo, o.lo);
+        }
+
+        @Override
+        public String toString() {
+            return address();
         }
 
         public static IpAddress from(String value, IpVersion ipVersion) {
+            if (END.equals(value)) return ipVersion.end();
             return switch (ipVersion) {
                 case V4 -> v4(value);
                 case V6 -> v6(value);
@@ -335,77 +1273,192 @@ public class IpDbService {
         }
 
         public static IpAddress v4(BigInteger value) {
-            byte[] byteArray = value.toByteArray();
-            byte[] padded = new byte[4];
-            Arrays.fill(padded, (byte) 0);
-            System.arraycopy(byteArray, 0, padded, padded.length - byteArray.length, byteArray.length);
-            return v4(padded);
+            if (value.bitCount() == 1 && value.bitLength() == 33) return V4_END;
+            if (value.signum() < 0 || value.bitLength() > 32)
+                throw new IllegalArgumentException("not an ipv4, out of range: " + value);
+            return v4(value.longValue());
         }
 
         public static IpAddress v4(String address) {
-            return new IpAddress(address, parseIpV4(address), IpVersion.V4);
+            long value = parseIpV4(address, 0, address.length());
+            if (value < 0) throw new IllegalArgumentException("not an ipv4: " + address);
+            return v4(value);
         }
 
         public static IpAddress v4(byte[] value) {
-            return new IpAddress(serializeIpV4(value), value, IpVersion.V4);
+            if (value.length != 4) throw new IllegalArgumentException("not an ipv4, needs 4 bytes");
+            return v4(Integer.toUnsignedLong((value[0] & 0xff) << 24 | (value[1] & 0xff) << 16 | (value[2] & 0xff) << 8 | value[3] & 0xff));
+        }
+
+        public static IpAddress v4(long value) {
+            if (value < 0 || value > 0xffffffffL)
+                throw new IllegalArgumentException("not an ipv4, out of range: " + value);
+            return new IpAddress(0, value, IpVersion.V4);
         }
 
         public static IpAddress v6(BigInteger value) {
-            byte[] byteArray = value.toByteArray();
-            byte[] padded = new byte[16];
-            Arrays.fill(padded, (byte) 0);
-            System.arraycopy(byteArray, 0, padded, padded.length - byteArray.length, byteArray.length);
-            return v6(padded);
+            if (value.bitCount() == 1 && value.bitLength() == 129) return V6_END;
+            if (value.signum() < 0 || value.bitLength() > 128)
+                throw new IllegalArgumentException("not an ipv6, out of range: " + value);
+            return v6(value.shiftRight(64).longValue(), value.longValue());
         }
 
         public static IpAddress v6(String address) {
-            return new IpAddress(address, parseIpV6(address), IpVersion.V6);
+            return parseIpV6(address);
         }
 
         public static IpAddress v6(byte[] value) {
-            return new IpAddress(serializeIpV6(value), value, IpVersion.V6);
+            if (value.length != 16) throw new IllegalArgumentException("not an ipv6, needs 16 bytes");
+            long hi = 0, lo = 0;
+            for (int i = 0; i < 8; i++) {
+                hi = hi << 8 | (value[i] & 0xff);
+                lo = lo << 8 | (value[i + 8] & 0xff);
+            }
+            return v6(hi, lo);
         }
 
-        static byte[] parseIpV4(String address) {
-            var parts = address.split("\\.");
-            if (parts.length != 4) throw new IllegalArgumentException("not an ipv4, needs 4 parts");
-            var result = new byte[4];
-            for (int i = 0; i < parts.length; i++) {
-                String part = parts[i];
-                result[i] = (byte) Integer.parseInt(part);
-            }
-            return result;
+        public static IpAddress v6(long hi, long lo) {
+            return new IpAddress(hi, lo, IpVersion.V6);
         }
 
-        static byte[] parseIpV6(String address) {
-            String[] groups = address.split(":");
-            var result = new byte[16];
-            for (int i = 0; i < groups.length; i++) {
-                String group = groups[i];
-                byte[] bytes = HexFormat.of().parseHex(group);
-                System.arraycopy(bytes, 0, result, i * 2, 2);
+        // dotted quad within [from, to) as an unsigned int, or -1 if it is not one
+        static long parseIpV4(CharSequence address, int from, int to) {
+            long value = 0;
+            int parts = 0;
+            int i = from;
+            while (true) {
+                int start = i, part = 0;
+                while (i < to && i - start < 3) {
+                    char c = address.charAt(i);
+                    if (c < '0' || c > '9') break;
+                    part = part * 10 + (c - '0');
+                    i++;
+                }
+                if (i == start || part > 255) return -1;
+                value = value << 8 | part;
+                parts++;
+                if (i == to) break;
+                if (parts == 4 || address.charAt(i) != '.') return -1;
+                i++;
             }
-            return result;
+            return parts == 4 ? value : -1;
         }
 
-        static String serializeIpV4(byte[] address) {
-            StringJoiner stringJoiner = new StringJoiner(".");
-            for (byte b : address) {
-                stringJoiner.add(String.valueOf(Byte.toUnsignedInt(b)));
+        // rfc 4291 text form, with "::" compression and a trailing dotted quad
+        static IpAddress parseIpV6(CharSequence address) {
+            int length = address.length();
+            // groups after the "::" (or all of them, if there is none) and groups before it
+            long hi = 0, lo = 0, headHi = 0, headLo = 0;
+            int groups = 0, headGroups = -1;
+            int i = 0;
+            if (length >= 2 && address.charAt(0) == ':' && address.charAt(1) == ':') {
+                headGroups = 0;
+                i = 2;
+            }
+            while (i < length) {
+                int start = i, group = 0, digit;
+                while (i < length && i - start < 4 && (digit = hexDigit(address.charAt(i))) >= 0) {
+                    group = group << 4 | digit;
+                    i++;
+                }
+                if (i < length && address.charAt(i) == '.') {
+                    long v4 = parseIpV4(address, start, length);
+                    if (v4 < 0 || groups + Math.max(headGroups, 0) > 6)
+                        throw new IllegalArgumentException("not an ipv6, bad embedded ipv4: " + address);
+                    hi = hi << 32 | lo >>> 32;
+                    lo = lo << 32 | v4;
+                    groups += 2;
+                    break;
+                }
+                if (i == start || groups + Math.max(headGroups, 0) == 8)
+                    throw new IllegalArgumentException("not an ipv6: " + address);
+                hi = hi << 16 | lo >>> 48;
+                lo = lo << 16 | group;
+                groups++;
+                if (i == length) break;
+                if (address.charAt(i++) != ':' || i == length)
+                    throw new IllegalArgumentException("not an ipv6: " + address);
+                if (address.charAt(i) == ':') {
+                    if (headGroups >= 0)
+                        throw new IllegalArgumentException("not an ipv6, more than one '::': " + address);
+                    headGroups = groups;
+                    headHi = hi;
+                    headLo = lo;
+                    hi = lo = groups = 0;
+                    i++;
+                }
             }
-            return stringJoiner.toString();
+            if (headGroups < 0) {
+                if (groups != 8) throw new IllegalArgumentException("not an ipv6, needs 8 groups: " + address);
+                return v6(hi, lo);
+            }
+            if (headGroups + groups > 7) throw new IllegalArgumentException("not an ipv6, '::' must replace a group: " + address);
+            // move the groups before the "::" to the top
+            int shift = 16 * (8 - headGroups);
+            if (shift == 128) {
+                headHi = headLo = 0;
+            } else if (shift >= 64) {
+                headHi = headLo << (shift - 64);
+                headLo = 0;
+            } else {
+                headHi = headHi << shift | headLo >>> (64 - shift);
+                headLo <<= shift;
+            }
+            return v6(headHi | hi, headLo | lo);
+        }
+
+        private static int hexDigit(char c) {
+            if (c >= '0' && c <= '9') return c - '0';
+            if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+            if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+            return -1;
+        }
+
+        static String serializeIpV4(long value) {
+            return appendIpV4(new StringBuilder(15), value).toString();
+        }
+
+        private static StringBuilder appendIpV4(StringBuilder sb, long value) {
+            return sb.append(value >>> 24 & 0xff).append('.')
+                    .append(value >>> 16 & 0xff).append('.')
+                    .append(value >>> 8 & 0xff).append('.')
+                    .append(value & 0xff);
         }
 
-        static String serializeIpV6(byte[] address) {
-            StringJoiner stringJoiner = new StringJoiner(":");
-            byte[] tmp = new byte[2];
-            for (int i = 0; i < address.length; i += 8) {
-                for (int j = 0; j < 8; j += 2) {
-                    System.arraycopy(address, i + j, tmp, 0, 2);
-                    stringJoiner.add(HexFormat.of().formatHex(tmp));
+        // rfc 5952 canonical form: lowercase, no leading zeros, longest run of zero groups (first one on ties) as "::"
+        static String serializeIpV6(long hi, long lo) {
+            if (hi == 0 && lo >>> 32 == 0xffffL)
+                return appendIpV4(new StringBuilder(22).append("::ffff:"), lo & 0xffffffffL).toString();
+
+            int zerosStart = -1, zerosLength = 1;
+            for (int i = 0, run = 0; i < 8; i++) {
+                if (group(hi, lo, i) != 0) {
+                    run = 0;
+                } else if (++run > zerosLength) {
+                    zerosLength = run;
+                    zerosStart = i - run + 1;
                 }
             }
-            return stringJoiner.toString();
+
+            StringBuilder sb = new StringBuilder(39);
+            for (int i = 0; i < 8; i++) {
+                if (i == zerosStart) {
+                    sb.append("::");
+                    i += zerosLength - 1;
+                    continue;
+                }
+                if (i > 0 && sb.charAt(sb.length() - 1) != ':') sb.append(':');
+                int group = group(hi, lo, i);
+                for (int shift = 12; shift >= 0; shift -= 4) {
+                    if (group >>> shift != 0 || shift == 0)
+                        sb.append(HEX[group >>> shift & 0xf]);
+                }
+            }
+            return sb.toString();
+        }
+
+        private static int group(long hi, long lo, int i) {
+            return (int) ((i < 4 ? hi : lo) >>> (48 - 16 * (i & 3))) & 0xffff;
         }
     }
 }
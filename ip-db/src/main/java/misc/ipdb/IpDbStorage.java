@@ -0,0 +1,51 @@
+package misc.ipdb;
+
+import javax.sql.DataSource;
+import java.nio.file.Path;
+import java.util.function.Supplier;
+
+/**
+ * Where {@link IpDbService} keeps spaces, ranges and the change journal: {@link #jdbc} in a database, {@link #file}
+ * in a log and checkpoint files of a directory, owned by this process, or {@link #memory} in this process only, for
+ * ephemeral and test environments and for comparing engines.
+ * <p>
+ * The service checks a write before making it (under the lock of the space) and then makes it within
+ * {@link #inTransaction}, so stores only need to apply writes, not validate them.
+ */
+public interface IpDbStorage {
+    SpaceStore spaces();
+
+    RangeStore ranges();
+
+    ChangeStore changes();
+
+    // runs action as one unit: the database rolls it back if it throws, memory (and files) apply writes as they are made
+    <T> T inTransaction(Supplier<T> action);
+
+    // whether inTransaction undoes the writes of an action that throws
+    default boolean rollsBack() {
+        return false;
+    }
+
+    // whether other processes may write to it as well (a database), so the service checks writes against what is
+    // stored too, not only against what it has loaded
+    default boolean shared() {
+        return false;
+    }
+
+    // creates or upgrades the schema, if the storage has one
+    void migrate();
+
+    static IpDbStorage jdbc(DataSource dataSource) {
+        return new JdbcStorage(dataSource);
+    }
+
+    // closed (AutoCloseable) when done with, which stops compaction and releases the directory
+    static IpDbStorage file(Path directory) {
+        return new FileStorage(directory);
+    }
+
+    static IpDbStorage memory() {
+        return new MemoryStorage();
+    }
+}
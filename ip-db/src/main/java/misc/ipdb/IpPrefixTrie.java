@@ -0,0 +1,351 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.AllocationStrategy;
+import misc.ipdb.IpDbService.FreeGap;
+import misc.ipdb.IpDbService.Cidr;
+import misc.ipdb.IpDbService.IpAddress;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.IpSpace;
+import misc.ipdb.IpDbService.IpVersion;
+import misc.ipdb.IpDbService.RangeKey;
+import misc.ipdb.IpDbService.SpaceStats;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of the ranges of a nested {@link IpSpace}, where ranges are cidr blocks that may contain each
+ * other (supernet, site, vlan) but not be the same block twice.
+ * <p>
+ * A compressed binary radix (patricia) trie on the bits of the network addresses: every node is a prefix, its
+ * children extend it by one differing bit, and nodes with a single child and no range are left out. Longest prefix
+ * match walks at most one node per address bit, and the ranges nested directly in a range are the first ranges
+ * found below its node.
+ * <p>
+ * Children are volatile and nodes are complete before they're linked in, so lookups don't lock.
+ */
+class IpPrefixTrie extends RangeIndex {
+    private final IpVersion ipVersion;
+    private final int bits;
+    private final IpAddress spaceMin;
+    private final IpAddress spaceMax;
+    private final Node root;
+    private final Map<Integer, Node> byId = new ConcurrentHashMap<>();
+
+    IpPrefixTrie(IpSpace ipSpace, Iterable<IpRange> ranges) {
+        this.ipVersion = ipSpace.getIpVersion();
+        this.bits = ipVersion.getBits();
+        this.spaceMin = ipSpace.minAddress();
+        this.spaceMax = ipSpace.maxAddress();
+        this.root = new Node(ipVersion.first(), 0);
+        ranges.forEach(this::add);
+    }
+
+    @Override
+    void add(IpRange ipRange) {
+        IpRange copy = ipRange.copy();
+        Cidr cidr = block(ipRange.minAddress(), ipRange.maxAddress());
+        IpAddress prefix = cidr.network();
+        int length = cidr.prefixLength();
+        Node node = root;
+        while (node.length < length) {
+            int bit = bit(prefix, node.length);
+            Node child = node.child(bit);
+            if (child == null) {
+                node.setChild(bit, new Node(prefix, length, copy));
+                byId.put(copy.getId(), node.child(bit));
+                return;
+            }
+            int common = Math.min(commonPrefixLength(child.prefix, prefix), Math.min(child.length, length));
+            if (common == child.length) {
+                node = child;
+                continue;
+            }
+            // the new block branches off (or is a parent of) the child, so it gets a node in between
+            Node between = common == length ? new Node(prefix, length, copy) : new Node(prefix.mask(common), common);
+            between.setChild(bit(child.prefix, common), child);
+            if (common < length)
+                between.setChild(bit(prefix, common), new Node(prefix, length, copy));
+            node.setChild(bit, between);
+            byId.put(copy.getId(), common == length ? between : between.child(bit(prefix, common)));
+            return;
+        }
+        if (node.range != null)
+            throw new IllegalStateException("already holds " + cidr);
+        node.range = copy;
+        byId.put(copy.getId(), node);
+    }
+
+    @Override
+    IpRange remove(int id) {
+        Node removed = byId.remove(id);
+        if (removed == null)
+            return null;
+        IpRange ipRange = removed.range;
+        removed.range = null;
+        prune(root, removed.prefix, removed.length);
+        return ipRange;
+    }
+
+    // drops nodes on the path to this prefix that no longer hold a range and have a single child (or none)
+    private void prune(Node node, IpAddress prefix, int length) {
+        if (node.length == length)
+            return;
+        int bit = bit(prefix, node.length);
+        Node child = node.child(bit);
+        if (child == null || child.length > length)
+            return;
+        prune(child, prefix, length);
+        if (child.range != null)
+            return;
+        if (child.zero == null)
+            node.setChild(bit, child.one);
+        else if (child.one == null)
+            node.setChild(bit, child.zero);
+    }
+
+    @Override
+    IpRange get(int id) {
+        Node node = byId.get(id);
+        return node == null ? null : node.range;
+    }
+
+    @Override
+    int size() {
+        return byId.size();
+    }
+
+    @Override
+    IpVersion ipVersion() {
+        return ipVersion;
+    }
+
+    @Override
+    boolean withinSpace(IpAddress min, IpAddress max) {
+        return min.compareTo(spaceMin) >= 0 && max.compareTo(spaceMax) <= 0;
+    }
+
+    // ranges may nest, only the same block is taken
+    @Override
+    boolean conflicts(IpAddress min, IpAddress max) {
+        Cidr cidr = block(min, max);
+        Node node = find(cidr.network(), cidr.prefixLength());
+        return node != null && node.range != null;
+    }
+
+    @Override
+    IpRange rangeOf(IpAddress address) {
+        IpRange match = root.range;
+        for (Node node = root.child(bit(address, 0)); node != null && matches(address, node); ) {
+            if (node.range != null)
+                match = node.range;
+            if (node.length == bits)
+                break;
+            node = node.child(bit(address, node.length));
+        }
+        return match;
+    }
+
+    @Override
+    IpRange[] rangesOf(IpAddress[] sorted) {
+        IpRange[] result = new IpRange[sorted.length];
+        for (int i = 0; i < sorted.length; i++)
+            result[i] = rangeOf(sorted[i]);
+        return result;
+    }
+
+    @Override
+    boolean overlaps(IpAddress min, IpAddress max) {
+        return !overlapping(min, max).isEmpty();
+    }
+
+    // parents before their children
+    @Override
+    List<IpRange> overlapping(IpAddress min, IpAddress max) {
+        List<IpRange> result = new ArrayList<>();
+        collectOverlapping(root, min, max, result);
+        return result;
+    }
+
+    private void collectOverlapping(Node node, IpAddress min, IpAddress max, List<IpRange> result) {
+        if (node == null || node.prefix.compareTo(max) >= 0 || end(node).compareTo(min) <= 0)
+            return;
+        if (node.range != null)
+            result.add(node.range);
+        collectOverlapping(node.zero, min, max, result);
+        collectOverlapping(node.one, min, max, result);
+    }
+
+    // sorts the ranges of the space for every page: the trie holds a block before the blocks in it, while a block
+    // starting at the same address as its first child comes after it in (min, max) order
+    @Override
+    List<IpRange> list(RangeKey after, int limit) {
+        return byId.values().stream()
+                .map(node -> node.range)
+                .filter(r -> r != null && (after == null || compare(r, after) > 0))
+                .sorted(Comparator.comparing(IpRange::minAddress).thenComparing(IpRange::maxAddress))
+                .limit(limit)
+                .toList();
+    }
+
+    private static int compare(IpRange ipRange, RangeKey key) {
+        int c = ipRange.minAddress().compareTo(key.min());
+        return c != 0 ? c : ipRange.maxAddress().compareTo(key.max());
+    }
+
+    // the ranges nested directly in this one (or the top level ranges for null), ordered by min
+    List<IpRange> children(IpRange parent) {
+        List<IpRange> result = new ArrayList<>();
+        if (parent == null) {
+            if (root.range != null)
+                result.add(root.range);
+            else
+                collectChildren(root, result);
+            return result;
+        }
+        Node node = byId.get(parent.getId());
+        if (node != null)
+            collectChildren(node, result);
+        return result;
+    }
+
+    private void collectChildren(Node node, List<IpRange> result) {
+        for (Node child : new Node[]{node.zero, node.one}) {
+            if (child == null)
+                continue;
+            if (child.range != null)
+                result.add(child.range);
+            else
+                collectChildren(child, result);
+        }
+    }
+
+    @Override
+    RangeSnapshot snapshot() {
+        throw new IllegalArgumentException("nested spaces can't be branched");
+    }
+
+    @Override
+    Block findFree(int prefixLength, AllocationStrategy strategy) {
+        throw new IllegalArgumentException("blocks can't be allocated in nested spaces");
+    }
+
+    // counted over the top level ranges, which hold all others
+    @Override
+    SpaceStats stats() {
+        BigInteger size = Cidrs.size(spaceMin, spaceMax);
+        BigInteger used = BigInteger.ZERO;
+        BigInteger largestFree = BigInteger.ZERO;
+        IpAddress largestStart = null, largestEnd = null;
+        IpAddress start = spaceMin;
+        List<IpRange> topLevel = children(null);
+        for (int i = 0; i <= topLevel.size(); i++) {
+            IpAddress end = i < topLevel.size() ? topLevel.get(i).minAddress() : spaceMax;
+            BigInteger gap = Cidrs.size(start, end);
+            if (gap.compareTo(largestFree) > 0) {
+                largestFree = gap;
+                largestStart = start;
+                largestEnd = end;
+            }
+            if (i < topLevel.size()) {
+                used = used.add(Cidrs.size(topLevel.get(i).minAddress(), topLevel.get(i).maxAddress()));
+                start = topLevel.get(i).maxAddress();
+            }
+        }
+        return new SpaceStats(byId.size(), size, used, size.subtract(used), largestFree, largestStart, largestEnd);
+    }
+
+    // one sweep over the top level ranges, which hold all others
+    @Override
+    List<FreeGap> free(IpAddress after, BigInteger minSize, int limit) {
+        List<FreeGap> result = new ArrayList<>();
+        IpAddress start = spaceMin;
+        List<IpRange> topLevel = children(null);
+        for (int i = 0; i <= topLevel.size() && result.size() < limit; i++) {
+            IpAddress end = i < topLevel.size() ? topLevel.get(i).minAddress() : spaceMax;
+            if (end.compareTo(spaceMax) > 0)
+                end = spaceMax;
+            if (start.compareTo(end) < 0 && (after == null || start.compareTo(after) > 0)
+                    && (minSize == null || Cidrs.size(start, end).compareTo(minSize) >= 0))
+                result.add(new FreeGap(start, end));
+            if (i < topLevel.size() && topLevel.get(i).maxAddress().compareTo(start) > 0)
+                start = topLevel.get(i).maxAddress();
+        }
+        return result;
+    }
+
+    // the node of exactly this prefix, holding a range or not (or null if there is none)
+    private Node find(IpAddress prefix, int length) {
+        Node node = root;
+        while (node != null && node.length < length) {
+            node = node.child(bit(prefix, node.length));
+            if (node != null && (node.length > length || !matches(prefix, node)))
+                return null;
+        }
+        return node;
+    }
+
+    // the block [min, max) is, as ranges of nested spaces must be blocks
+    private static Cidr block(IpAddress min, IpAddress max) {
+        List<Cidr> blocks = Cidrs.decompose(min, max);
+        if (blocks.size() != 1)
+            throw new IllegalArgumentException("ranges of nested spaces must be cidr blocks: " + min + " - " + max);
+        return blocks.get(0);
+    }
+
+    // the exclusive end of the block of a node
+    private static IpAddress end(Node node) {
+        return new Cidr(node.prefix, node.length).max();
+    }
+
+    // bit i of the address, counting from the most significant bit of its version
+    private int bit(IpAddress address, int i) {
+        int shift = bits - 1 - i;
+        return (int) (shift >= 64 ? address.hi() >>> (shift - 64) : address.lo() >>> shift) & 1;
+    }
+
+    // whether the address starts with the prefix of the node
+    private boolean matches(IpAddress address, Node node) {
+        return commonPrefixLength(address, node.prefix) >= node.length;
+    }
+
+    private int commonPrefixLength(IpAddress a, IpAddress b) {
+        long hi = a.hi() ^ b.hi(), lo = a.lo() ^ b.lo();
+        int common = hi != 0 ? Long.numberOfLeadingZeros(hi) : lo != 0 ? 64 + Long.numberOfLeadingZeros(lo) : 128;
+        // ipv4 addresses are in the low 32 bits
+        return Math.min(common - (128 - bits), bits);
+    }
+
+    private static class Node {
+        final IpAddress prefix;
+        final int length;
+        volatile IpRange range;
+        volatile Node zero;
+        volatile Node one;
+
+        Node(IpAddress prefix, int length) {
+            this(prefix, length, null);
+        }
+
+        Node(IpAddress prefix, int length, IpRange range) {
+            this.prefix = prefix;
+            this.length = length;
+            this.range = range;
+        }
+
+        Node child(int bit) {
+            return bit == 0 ? zero : one;
+        }
+
+        void setChild(int bit, Node child) {
+            if (bit == 0)
+                zero = child;
+            else
+                one = child;
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.AllocationStrategy;
+import misc.ipdb.IpDbService.FreeGap;
+import misc.ipdb.IpDbService.IpAddress;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.IpSpace;
+import misc.ipdb.IpDbService.IpVersion;
+import misc.ipdb.IpDbService.RangeKey;
+import misc.ipdb.IpDbService.SpaceStats;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-memory index of the ranges of one {@link IpSpace}.
+ * <p>
+ * Ranges within a space that isn't nested never overlap (see {@link IpDbService#reserve(IpRange)}), so a map sorted by {@code min}
+ * is enough to answer overlap, containment and point queries: the only range starting before a query can be the
+ * floor entry, every other candidate starts inside the query. All lookups are {@code O(log n)} (plus the size of
+ * the result), ranges are half-open {@code [min, max)}.
+ * <p>
+ * Bounds are kept as {@link IpAddress}, so comparisons are on primitives rather than {@code BigInteger}.
+ * <p>
+ * The free gaps between ranges (within the bounds of the space) are kept alongside, ordered by address and by size,
+ * for allocating blocks without probing, and their total size is kept up to date for utilization stats.
+ */
+class IpRangeIndex extends RangeIndex {
+    private static final Comparator<Gap> BY_SIZE = Comparator
+            .comparing(Gap::spanHi, Long::compareUnsigned)
+            .thenComparing(Gap::spanLo, Long::compareUnsigned)
+            .thenComparing(Gap::start);
+    // how many ranges rangesOf steps over before seeking instead
+    private static final int MAX_WALK = 16;
+
+    private final IpVersion ipVersion;
+    private final IpAddress spaceMin;
+    private final IpAddress spaceMax;
+    private final ConcurrentSkipListMap<IpAddress, Entry> byMin = new ConcurrentSkipListMap<>();
+    private final Map<Integer, Entry> byId = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<IpAddress, Gap> gapsByStart = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListSet<Gap> gapsBySize = new ConcurrentSkipListSet<>(BY_SIZE);
+    // ranges and gaps are updated together
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // the total size of the gaps minus their number (see Gap), an unsigned 128-bit number
+    private long freeHi;
+    private long freeLo;
+    // built on the first branch of the space, then kept up to date alongside the ranges
+    private volatile RangeSnapshot snapshot;
+
+    IpRangeIndex(IpSpace ipSpace, Iterable<IpRange> ranges) {
+        this.ipVersion = ipSpace.getIpVersion();
+        this.spaceMin = ipSpace.minAddress();
+        this.spaceMax = ipSpace.maxAddress();
+        addGap(spaceMin, spaceMax);
+        ranges.forEach(this::add);
+    }
+
+    @Override
+    void add(IpRange ipRange) {
+        IpRange copy = ipRange.copy();
+        var entry = new Entry(IpAddress.from(copy.getMin(), ipVersion), IpAddress.from(copy.getMax(), ipVersion), copy);
+        writeLock.lock();
+        try {
+            byMin.put(entry.min(), entry);
+            byId.put(copy.getId(), entry);
+            occupy(entry.min(), entry.max());
+            if (snapshot != null)
+                snapshot = snapshot.with(entry.min(), copy);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    IpRange remove(int id) {
+        writeLock.lock();
+        try {
+            Entry removed = byId.remove(id);
+            if (removed == null)
+                return null;
+            byMin.remove(removed.min(), removed);
+            vacate(removed.min(), removed.max());
+            if (snapshot != null)
+                snapshot = snapshot.without(removed.min(), id);
+            return removed.range();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    IpRange get(int id) {
+        Entry entry = byId.get(id);
+        return entry == null ? null : entry.range();
+    }
+
+    @Override
+    int size() {
+        return byId.size();
+    }
+
+    @Override
+    IpVersion ipVersion() {
+        return ipVersion;
+    }
+
+    @Override
+    boolean withinSpace(IpAddress min, IpAddress max) {
+        return min.compareTo(spaceMin) >= 0 && max.compareTo(spaceMax) <= 0;
+    }
+
+    // consistent with the ranges at one point in time, as it's read under the write lock
+    @Override
+    SpaceStats stats() {
+        BigInteger size = Cidrs.size(spaceMin, spaceMax);
+        writeLock.lock();
+        try {
+            BigInteger free = unsigned(freeHi, freeLo).add(BigInteger.valueOf(gapsByStart.size()));
+            Gap largest = gapsBySize.isEmpty() ? null : gapsBySize.last();
+            return new SpaceStats(byId.size(), size, size.subtract(free), free,
+                    largest == null ? BigInteger.ZERO : largest.size(),
+                    largest == null ? null : largest.start(),
+                    largest == null ? null : largest.end());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    RangeSnapshot snapshot() {
+        RangeSnapshot current = snapshot;
+        if (current != null)
+            return current;
+        writeLock.lock();
+        try {
+            if (snapshot == null)
+                snapshot = RangeSnapshot.of(
+                        byMin.values().stream().map(Entry::min).toList(),
+                        byMin.values().stream().map(Entry::range).toList());
+            return snapshot;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // min alone orders ranges that don't overlap
+    @Override
+    List<IpRange> list(RangeKey after, int limit) {
+        var entries = after == null ? byMin.values() : byMin.tailMap(after.min(), false).values();
+        return entries.stream().limit(limit).map(Entry::range).toList();
+    }
+
+    @Override
+    IpRange rangeOf(IpAddress address) {
+        Entry entry = entryOf(address);
+        return entry == null ? null : entry.range();
+    }
+
+    // the ranges containing each of these (ascending) addresses, null where there is none;
+    // merges the addresses with the ranges in order, seeking only across long runs of ranges
+    @Override
+    IpRange[] rangesOf(IpAddress[] sorted) {
+        IpRange[] result = new IpRange[sorted.length];
+        Iterator<Entry> entries = null;
+        Entry current = null;
+        for (int i = 0; i < sorted.length; i++) {
+            IpAddress address = sorted[i];
+            for (int steps = 0; current != null && current.max().compareTo(address) <= 0 && steps < MAX_WALK; steps++)
+                current = entries.hasNext() ? entries.next() : null;
+            if (entries == null || current == null || current.max().compareTo(address) <= 0) {
+                IpAddress floor = byMin.floorKey(address);
+                entries = (floor == null ? byMin : byMin.tailMap(floor, true)).values().iterator();
+                current = entries.hasNext() ? entries.next() : null;
+            }
+            if (current != null && current.min().compareTo(address) <= 0 && address.compareTo(current.max()) < 0)
+                result[i] = current.range();
+        }
+        return result;
+    }
+
+    // ranges can't overlap
+    @Override
+    boolean conflicts(IpAddress min, IpAddress max) {
+        return overlaps(min, max);
+    }
+
+    @Override
+    boolean overlaps(IpAddress min, IpAddress max) {
+        if (entryOf(min) != null)
+            return true;
+        var next = byMin.higherKey(min);
+        return next != null && next.compareTo(max) < 0;
+    }
+
+    @Override
+    List<IpRange> overlapping(IpAddress min, IpAddress max) {
+        List<IpRange> result = new ArrayList<>();
+        Entry floor = entryOf(min);
+        if (floor != null)
+            result.add(floor.range());
+        if (min.compareTo(max) < 0) {
+            NavigableMap<IpAddress, Entry> within = byMin.subMap(min, false, max, false);
+            within.values().forEach(e -> result.add(e.range()));
+        }
+        return result;
+    }
+
+    // the range fully containing [min, max) (or null if there is none)
+    IpRange containing(IpAddress min, IpAddress max) {
+        Entry entry = entryOf(min);
+        return entry != null && entry.max().compareTo(max) >= 0 ? entry.range() : null;
+    }
+
+    @Override
+    Block findFree(int prefixLength, AllocationStrategy strategy) {
+        Iterable<Gap> candidates = switch (strategy) {
+            case FIRST_FIT -> gapsByStart.values();
+            // gaps smaller than the block can't hold it, the first one that fits from there on is the smallest
+            case BEST_FIT -> {
+                IpAddress first = ipVersion.first();
+                yield gapsBySize.tailSet(Gap.of(first, first.plusBlock(prefixLength)));
+            }
+        };
+        for (Gap gap : candidates) {
+            Block block = gap.fit(prefixLength);
+            if (block != null)
+                return block;
+        }
+        return null;
+    }
+
+    // a walk over the gaps by address, which are kept already; with minSize it skips the smaller ones
+    @Override
+    List<FreeGap> free(IpAddress after, BigInteger minSize, int limit) {
+        List<FreeGap> result = new ArrayList<>();
+        // compared on the spans of the gaps, their sizes minus one
+        BigInteger minSpan = minSize == null || minSize.signum() <= 0 ? BigInteger.ZERO : minSize.subtract(BigInteger.ONE);
+        if (minSpan.bitLength() > 128)
+            return result;
+        long minHi = minSpan.shiftRight(64).longValue();
+        long minLo = minSpan.longValue();
+        for (Gap gap : (after == null ? gapsByStart : gapsByStart.tailMap(after, false)).values()) {
+            if (result.size() >= limit)
+                break;
+            int c = Long.compareUnsigned(gap.spanHi(), minHi);
+            if (c > 0 || c == 0 && Long.compareUnsigned(gap.spanLo(), minLo) >= 0)
+                result.add(new FreeGap(gap.start(), gap.end()));
+        }
+        return result;
+    }
+
+    private Entry entryOf(IpAddress address) {
+        var floor = byMin.floorEntry(address);
+        if (floor == null || floor.getValue().max().compareTo(address) <= 0)
+            return null;
+        return floor.getValue();
+    }
+
+    // removes [min, max) from the gaps it overlaps
+    private void occupy(IpAddress min, IpAddress max) {
+        IpAddress from = gapsByStart.floorKey(min);
+        List<Gap> overlapping = new ArrayList<>();
+        for (Gap gap : (from == null ? gapsByStart : gapsByStart.tailMap(from)).values()) {
+            if (gap.start().compareTo(max) >= 0) break;
+            if (gap.end().compareTo(min) > 0) overlapping.add(gap);
+        }
+        for (Gap gap : overlapping) {
+            removeGap(gap);
+            if (gap.start().compareTo(min) < 0) addGap(gap.start(), min);
+            if (max.compareTo(gap.end()) < 0) addGap(max, gap.end());
+        }
+    }
+
+    // returns [min, max) (as far as it is within the space) to the gaps, merging with the gaps on either side
+    private void vacate(IpAddress min, IpAddress max) {
+        IpAddress start = min.compareTo(spaceMin) < 0 ? spaceMin : min;
+        IpAddress end = max.compareTo(spaceMax) > 0 ? spaceMax : max;
+        if (start.compareTo(end) >= 0) return;
+        var before = gapsByStart.lowerEntry(start);
+        if (before != null && before.getValue().end().equals(start)) {
+            removeGap(before.getValue());
+            start = before.getKey();
+        }
+        Gap after = gapsByStart.get(end);
+        if (after != null) {
+            removeGap(after);
+            end = after.end();
+        }
+        addGap(start, end);
+    }
+
+    private void addGap(IpAddress start, IpAddress end) {
+        if (start.compareTo(end) >= 0) return;
+        Gap gap = Gap.of(start, end);
+        gapsByStart.put(start, gap);
+        gapsBySize.add(gap);
+        long lo = freeLo + gap.spanLo();
+        freeHi += gap.spanHi() + (Long.compareUnsigned(lo, freeLo) < 0 ? 1 : 0);
+        freeLo = lo;
+    }
+
+    private void removeGap(Gap gap) {
+        gapsByStart.remove(gap.start(), gap);
+        gapsBySize.remove(gap);
+        freeHi -= gap.spanHi() + (Long.compareUnsigned(freeLo, gap.spanLo()) < 0 ? 1 : 0);
+        freeLo -= gap.spanLo();
+    }
+
+    private static BigInteger unsigned(long hi, long lo) {
+        return new BigInteger(Long.toUnsignedString(hi)).shiftLeft(64).or(new BigInteger(Long.toUnsignedString(lo)));
+    }
+
+    private record Entry(IpAddress min, IpAddress max, IpRange range) {
+    }
+
+    // free addresses [start, end) (not empty), with its span, the size minus one, as an unsigned 128-bit number -
+    // the whole ipv6 address space has a span but a size past 128 bits
+    private record Gap(IpAddress start, IpAddress end, long spanHi, long spanLo) {
+        static Gap of(IpAddress start, IpAddress end) {
+            IpAddress last = end.previous();
+            long lo = last.lo() - start.lo();
+            long borrow = Long.compareUnsigned(last.lo(), start.lo()) < 0 ? 1 : 0;
+            return new Gap(start, end, last.hi() - start.hi() - borrow, lo);
+        }
+
+        BigInteger size() {
+            return unsigned(spanHi, spanLo).add(BigInteger.ONE);
+        }
+
+        // the first block with this prefix length within the gap (or null if none fits)
+        Block fit(int prefixLength) {
+            IpAddress min = start.mask(prefixLength);
+            if (min.compareTo(start) < 0 && ((min = min.plusBlock(prefixLength)) == null || min.end()))
+                return null;
+            IpAddress max = min.plusBlock(prefixLength);
+            return max == null || max.compareTo(end) > 0 ? null : new Block(min, max);
+        }
+    }
+}
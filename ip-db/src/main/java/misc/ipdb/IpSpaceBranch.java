@@ -0,0 +1,89 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.BranchDiff;
+import misc.ipdb.IpDbService.IpAddress;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.IpSpace;
+import misc.ipdb.IpDbService.RangeKey;
+import misc.ipdb.util.IpRangeConflictsException;
+import misc.ipdb.util.IpRangeOutOfBoundsException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A named, in-memory branch of a space for trying out reservations: it starts from a snapshot of the ranges of the
+ * space, which it shares rather than copies, and changes only itself. What it changed is the difference between
+ * that snapshot and its ranges, which {@link IpDbService#mergeBranch} applies to the space.
+ * <p>
+ * Ranges reserved on a branch get negative ids of the branch, they get ids of the space when merged.
+ */
+class IpSpaceBranch {
+    final String name;
+    final IpSpace ipSpace;
+    final RangeSnapshot base;
+    private volatile RangeSnapshot ranges;
+    private final AtomicInteger lastId = new AtomicInteger();
+    // checking for overlaps and reserving is atomic
+    private final ReentrantLock lock = new ReentrantLock();
+
+    IpSpaceBranch(String name, IpSpace ipSpace, RangeSnapshot base) {
+        this.name = name;
+        this.ipSpace = ipSpace;
+        this.base = base;
+        this.ranges = base;
+    }
+
+    IpRange reserve(IpRange ipRange) {
+        IpAddress min = ipRange.minAddress(), max = ipRange.maxAddress();
+        if (min.compareTo(max) >= 0)
+            throw IpDbService.emptyRange(min, max);
+        if (min.compareTo(ipSpace.minAddress()) < 0 || max.compareTo(ipSpace.maxAddress()) > 0)
+            throw new IpRangeOutOfBoundsException();
+        lock.lock();
+        try {
+            if (ranges.overlaps(min, max))
+                throw new IpRangeConflictsException();
+            IpRange reserved = ipRange.copy().setId(lastId.decrementAndGet()).setIpSpaceId(ipSpace.getId()).setIpSpace(ipSpace);
+            ranges = ranges.with(min, reserved);
+            return reserved;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the released range (or null if the branch has none with this id)
+    IpRange release(int id) {
+        lock.lock();
+        try {
+            IpRange released = ranges.get(id);
+            if (released != null)
+                ranges = ranges.without(released.minAddress(), id);
+            return released;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    RangeSnapshot ranges() {
+        return ranges;
+    }
+
+    // the ranges reserved and released on the branch, ordered by min
+    BranchDiff diff() {
+        List<IpRange> added = new ArrayList<>(), removed = new ArrayList<>();
+        PersistentSortedMap.diff(base.byMin(), ranges.byMin(), (min, before, after) -> {
+            if (before != null)
+                removed.add(before);
+            if (after != null)
+                added.add(after);
+        });
+        return new BranchDiff(added, removed);
+    }
+
+    List<IpRange> list(RangeKey after, int limit) {
+        return ranges.list(after, limit);
+    }
+}
@@ -0,0 +1,62 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.IpSpace;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded cache of {@link IpSpace} rows by id, evicting the least recently used space once full.
+ * <p>
+ * Cached spaces are shared, so they must not be modified - {@link IpDbService} hands out copies.
+ */
+class IpSpaceCache {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Integer, IpSpace> spaces;
+
+    IpSpaceCache(int capacity) {
+        this.spaces = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, IpSpace> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    IpSpace get(int id) {
+        lock.lock();
+        try {
+            return spaces.get(id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void put(IpSpace ipSpace) {
+        lock.lock();
+        try {
+            spaces.put(ipSpace.getId(), ipSpace);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void invalidate(int id) {
+        lock.lock();
+        try {
+            spaces.remove(id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return spaces.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
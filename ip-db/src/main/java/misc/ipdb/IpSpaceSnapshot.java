@@ -0,0 +1,252 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.IpAddress;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.IpSpace;
+import misc.ipdb.IpDbService.IpVersion;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Read-only view of the ranges of one {@link IpSpace}, memory-mapped from a compact snapshot file.
+ * <p>
+ * Lookups binary search the sorted bounds within the mapping, so opening a snapshot costs nothing per range and
+ * nothing is kept on the heap besides the ranges handed out. Written by {@link IpDbService#writeSnapshot}.
+ * <p>
+ * Layout (big endian): a header of magic, format, ip version, space id, range count, flags and names length, then
+ * the sections {@code min[count]}, {@code max[count]} (4 bytes each for ipv4, 16 for ipv6), {@code id[count]},
+ * {@code nameOffset[count + 1]} (ints) and the utf-8 names. Ranges are ordered by min. The end of the address space
+ * doesn't fit in a bound, only the last range can end there and flag {@code ENDS_AT_END} says it does.
+ */
+public class IpSpaceSnapshot {
+    private static final int MAGIC = 0x49505353; // IPSS
+    private static final int FORMAT = 2;
+    private static final int ENDS_AT_END = 1;
+    private static final int HEADER_SIZE = 32;
+
+    private final MappedByteBuffer buffer;
+    private final IpVersion ipVersion;
+    private final int ipSpaceId;
+    private final int count;
+    private final boolean endsAtEnd;
+    private final int width;
+    private final int minsAt;
+    private final int maxsAt;
+    private final int idsAt;
+    private final int offsetsAt;
+    private final int namesAt;
+
+    private IpSpaceSnapshot(MappedByteBuffer buffer) {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+            throw new IllegalArgumentException("not an ip space snapshot");
+        // format 1 had no flags, its reserved int is zero
+        if (buffer.getInt(4) < 1 || buffer.getInt(4) > FORMAT)
+            throw new IllegalArgumentException("unsupported snapshot format " + buffer.getInt(4));
+        this.buffer = buffer;
+        this.ipVersion = IpVersion.from(buffer.getInt(8));
+        this.ipSpaceId = buffer.getInt(12);
+        this.count = buffer.getInt(16);
+        this.endsAtEnd = (buffer.getInt(20) & ENDS_AT_END) != 0;
+        this.width = width(ipVersion);
+        this.minsAt = HEADER_SIZE;
+        this.maxsAt = minsAt + count * width;
+        this.idsAt = maxsAt + count * width;
+        this.offsetsAt = idsAt + count * 4;
+        this.namesAt = offsetsAt + (count + 1) * 4;
+        if ((long) namesAt + buffer.getLong(24) != buffer.capacity())
+            throw new IllegalArgumentException("truncated ip space snapshot");
+    }
+
+    public static IpSpaceSnapshot open(Path path) {
+        try (FileChannel channel = FileChannel.open(path)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("snapshot too large to map: " + path);
+            // the mapping stays valid after the channel is closed
+            return new IpSpaceSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public IpVersion getIpVersion() {
+        return ipVersion;
+    }
+
+    public int getIpSpaceId() {
+        return ipSpaceId;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    // the range containing this address (or null if not found)
+    public IpRange rangeOf(IpAddress address) {
+        int i = floor(address);
+        return i >= 0 && compare(maxsAt, i, address) > 0 ? range(i) : null;
+    }
+
+    public boolean free(IpAddress address) {
+        int i = floor(address);
+        return i < 0 || compare(maxsAt, i, address) <= 0;
+    }
+
+    // whether no range has addresses within [min, max)
+    public boolean free(IpAddress min, IpAddress max) {
+        if (!free(min))
+            return false;
+        int next = floor(min) + 1;
+        return next >= count || compare(minsAt, next, max) >= 0;
+    }
+
+    // the index of the last range with min <= address, or -1
+    private int floor(IpAddress address) {
+        if (address.version() != ipVersion)
+            throw new IllegalArgumentException("expected an " + ipVersion + " address: " + address);
+        int low = 0, high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (compare(minsAt, mid, address) <= 0)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+        return high;
+    }
+
+    // compares the i-th bound of a section with this address
+    private int compare(int sectionAt, int i, IpAddress address) {
+        boolean end = isEnd(sectionAt, i);
+        if (end || address.end())
+            return Boolean.compare(end, address.end());
+        int at = sectionAt + i * width;
+        if (ipVersion == IpVersion.V4)
+            return Long.compare(Integer.toUnsignedLong(buffer.getInt(at)), address.lo());
+        int hi = Long.compareUnsigned(buffer.getLong(at), address.hi());
+        return hi != 0 ? hi : Long.compareUnsigned(buffer.getLong(at + 8), address.lo());
+    }
+
+    private boolean isEnd(int sectionAt, int i) {
+        return endsAtEnd && sectionAt == maxsAt && i == count - 1;
+    }
+
+    private IpAddress address(int sectionAt, int i) {
+        if (isEnd(sectionAt, i))
+            return ipVersion.end();
+        int at = sectionAt + i * width;
+        return ipVersion == IpVersion.V4
+                ? IpAddress.v4(Integer.toUnsignedLong(buffer.getInt(at)))
+                : IpAddress.v6(buffer.getLong(at), buffer.getLong(at + 8));
+    }
+
+    private IpRange range(int i) {
+        int from = buffer.getInt(offsetsAt + i * 4);
+        int to = buffer.getInt(offsetsAt + (i + 1) * 4);
+        byte[] name = new byte[to - from];
+        buffer.get(namesAt + from, name);
+        return new IpRange()
+                .setId(buffer.getInt(idsAt + i * 4))
+                .setIpSpaceId(ipSpaceId)
+                .setIpSpace(new IpSpace().setId(ipSpaceId).setIpVersion(ipVersion))
+                .setName(new String(name, StandardCharsets.UTF_8))
+                .setMinFromIp(address(minsAt, i))
+                .setMaxFromIp(address(maxsAt, i));
+    }
+
+    private static int width(IpVersion ipVersion) {
+        return ipVersion == IpVersion.V4 ? 4 : 16;
+    }
+
+    /**
+     * Collects ranges (added in order of min) as primitives, then writes the snapshot file in one go.
+     */
+    static class Writer {
+        private final IpSpace ipSpace;
+        private final int stride;
+        private long[] mins = new long[1024];
+        private long[] maxs = new long[1024];
+        private int[] ids = new int[512];
+        private int[] nameOffsets = new int[513];
+        private final ByteArrayOutputStream names = new ByteArrayOutputStream();
+        private int count;
+        private boolean endsAtEnd;
+
+        Writer(IpSpace ipSpace) {
+            this.ipSpace = ipSpace;
+            this.stride = ipSpace.getIpVersion() == IpVersion.V4 ? 1 : 2;
+        }
+
+        void add(IpRange ipRange) {
+            if (count == ids.length) {
+                mins = Arrays.copyOf(mins, mins.length * 2);
+                maxs = Arrays.copyOf(maxs, maxs.length * 2);
+                ids = Arrays.copyOf(ids, ids.length * 2);
+                nameOffsets = Arrays.copyOf(nameOffsets, ids.length + 1);
+            }
+            put(mins, IpAddress.from(ipRange.getMin(), ipSpace.getIpVersion()));
+            IpAddress max = IpAddress.from(ipRange.getMax(), ipSpace.getIpVersion());
+            // ranges don't overlap, so one ending at the end is the last
+            endsAtEnd = max.end();
+            put(maxs, max);
+            ids[count] = ipRange.getId();
+            names.writeBytes(ipRange.getName().getBytes(StandardCharsets.UTF_8));
+            nameOffsets[count + 1] = names.size();
+            count++;
+        }
+
+        private void put(long[] bounds, IpAddress address) {
+            if (stride == 1) {
+                bounds[count] = address.lo();
+            } else {
+                bounds[count * 2] = address.hi();
+                bounds[count * 2 + 1] = address.lo();
+            }
+        }
+
+        private void writeBounds(DataOutputStream out, long[] bounds) throws IOException {
+            for (int i = 0; i < count * stride; i++) {
+                if (stride == 1)
+                    out.writeInt((int) bounds[i]);
+                else
+                    out.writeLong(bounds[i]);
+            }
+        }
+
+        // writes next to the target and moves it in place, so readers never map a partial file
+        void writeTo(Path path) throws IOException {
+            Path tmp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+            try {
+                try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(FORMAT);
+                    out.writeInt(ipSpace.getIpVersion().getVersion());
+                    out.writeInt(ipSpace.getId());
+                    out.writeInt(count);
+                    out.writeInt(endsAtEnd ? ENDS_AT_END : 0);
+                    out.writeLong(names.size());
+                    writeBounds(out, mins);
+                    writeBounds(out, maxs);
+                    for (int i = 0; i < count; i++)
+                        out.writeInt(ids[i]);
+                    for (int i = 0; i <= count; i++)
+                        out.writeInt(nameOffsets[i]);
+                    names.writeTo(out);
+                }
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+}
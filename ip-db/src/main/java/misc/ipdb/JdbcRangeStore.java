@@ -0,0 +1,222 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.IpAddress;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.IpSpace;
+import misc.ipdb.IpDbService.IpVersion;
+import misc.ipdb.IpDbService.RangeKey;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.jdbc.core.simple.JdbcClient;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+// ranges in a table per version, ip_range_v4 and ip_range_v6, indexed on (ip_space_id, min, max)
+class JdbcRangeStore implements RangeStore {
+    static final int SCAN_FETCH_SIZE = 1000;
+
+    private final JdbcClient jdbcClient;
+    private final NamedParameterJdbcTemplate namedParameterJdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+
+    JdbcRangeStore(JdbcClient jdbcClient, NamedParameterJdbcTemplate namedParameterJdbcTemplate,
+                   TransactionTemplate transactionTemplate) {
+        this.jdbcClient = jdbcClient;
+        this.namedParameterJdbcTemplate = namedParameterJdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+    }
+
+    @Override
+    public void insertAll(IpVersion ipVersion, List<IpRange> ipRanges) {
+        if (ipRanges.size() == 1) {
+            var g = new GeneratedKeyHolder();
+            jdbcClient.sql(insertSql(ipVersion)).paramSource(insertParams(ipRanges.get(0))).update(g);
+            ipRanges.get(0).setId(Objects.requireNonNull(g.getKey()).intValue());
+            return;
+        }
+        var keyHolder = new GeneratedKeyHolder();
+        namedParameterJdbcTemplate.batchUpdate(insertSql(ipVersion),
+                ipRanges.stream().map(JdbcRangeStore::insertParams).toArray(SqlParameterSource[]::new),
+                keyHolder,
+                new String[]{"id"});
+        List<Map<String, Object>> keys = keyHolder.getKeyList();
+        for (int i = 0; i < ipRanges.size(); i++)
+            ipRanges.get(i).setId(((Number) keys.get(i).get("id")).intValue());
+    }
+
+    @Override
+    public int deleteAll(IpVersion ipVersion, Collection<Integer> ids) {
+        if (ids.isEmpty())
+            return 0;
+        return namedParameterJdbcTemplate.update("delete from " + table(ipVersion) + " where id in (:ids)", Map.of("ids", ids));
+    }
+
+    @Override
+    public IpRange find(IpSpace ipSpace, int id) {
+        return jdbcClient.sql("select * from " + table(ipSpace.getIpVersion()) + " where id = ? and ip_space_id = ?")
+                .params(id, ipSpace.getId())
+                .query(rangeRowMapper(ipSpace))
+                .optional()
+                .orElse(null);
+    }
+
+    // keyset pagination, so every page costs an index seek regardless of how deep it is
+    @Override
+    public List<IpRange> list(IpSpace ipSpace, RangeKey after, int limit) {
+        String table = table(ipSpace.getIpVersion());
+        if (after == null)
+            return jdbcClient.sql("select * from " + table + " where ip_space_id = ? order by ip_space_id, min, max limit ?")
+                    .params(ipSpace.getId(), limit)
+                    .query(rangeRowMapper(ipSpace))
+                    .list();
+        Object min = toSqlValue(after.min());
+        // nothing with the same min comes after a range to the end
+        if (after.max().end())
+            return jdbcClient
+                    .sql("select * from " + table + " where ip_space_id = ? and min > ? order by ip_space_id, min, max limit ?")
+                    .params(ipSpace.getId(), min, limit)
+                    .query(rangeRowMapper(ipSpace))
+                    .list();
+        return jdbcClient
+                .sql("select * from " + table +
+                        // min >= ? seeks the (ip_space_id, min, max) index and ordering by its columns reads it
+                        // in order without sorting
+                        " where ip_space_id = ? and min >= ? and (min > ? or max is null or max > ?) " +
+                        "order by ip_space_id, min, max " +
+                        "limit ?")
+                .params(ipSpace.getId(), min, min, toSqlValue(after.max()), limit)
+                .query(rangeRowMapper(ipSpace))
+                .list();
+    }
+
+    @Override
+    public List<IpRange> list(IpSpace ipSpace, long offset, int limit) {
+        return jdbcClient
+                .sql("select * from " + table(ipSpace.getIpVersion()) +
+                        " where ip_space_id = ? " +
+                        "order by ip_space_id, min, max " +
+                        "limit ? offset ?")
+                .params(ipSpace.getId(), limit, offset)
+                .query(rangeRowMapper(ipSpace))
+                .list();
+    }
+
+    // reads from a forward-only cursor; some drivers (postgres) only stream results within a transaction
+    @Override
+    public void scan(IpSpace ipSpace, Consumer<IpRange> consumer) {
+        RowMapper<IpRange> rowMapper = rangeRowMapper(ipSpace);
+        String sql = "select * from " + table(ipSpace.getIpVersion()) + " where ip_space_id = ? order by ip_space_id, min, max";
+        transactionTemplate.executeWithoutResult(status -> namedParameterJdbcTemplate.getJdbcTemplate().query(connection -> {
+            PreparedStatement statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(SCAN_FETCH_SIZE);
+            statement.setInt(1, ipSpace.getId());
+            return statement;
+        }, (RowCallbackHandler) resultSet -> consumer.accept(rowMapper.mapRow(resultSet, resultSet.getRow()))));
+    }
+
+    @Override
+    public List<IpRange> overlapping(IpSpace ipSpace, IpAddress min, IpAddress max) {
+        var params = new HashMap<String, Object>(Map.of("ip_space", ipSpace.getId(), "min", toSqlValue(min)));
+        if (!max.end())
+            params.put("max", toSqlValue(max));
+        return jdbcClient.sql("select * from (" + overlappingSql(ipSpace, max.end()) + ") as overlapping order by min, max")
+                .params(params)
+                .query(rangeRowMapper(ipSpace))
+                .list();
+    }
+
+    @SuppressWarnings({"SqlDialectInspection"})
+    private static String overlappingSql(IpSpace ipSpace, boolean toEnd) {
+        /*
+            --------|_----1---|_----2---|_--------
+            -----X--|_------X-|_--------|_-------- - find 1 - 1 starts within, nothing starts before and reaches min
+            --------|_--------|_-------X|_-X------ - find 2 - nothing starts within, 2 starts before and reaches min
+            --------|_--------|_----X-X-|_-------- - find 2 - nothing starts within, 2 starts before and reaches min
+            --------|_--------|_--------|x---x---- - find null - max is exclusive
+            -----X--|X--------|_--------|_-------- - find 1 - min is inclusive
+            --------|_--------|_--------|_---X---X - find null
+            -----X--|_--------|_--------|_-X------ - find 1, 2 - both start within
+
+            ranges in a space never overlap, so only the last range starting before min can reach into [min, max).
+            both halves are range scans of the (ip_space_id, min, max) index. a null max is the end of the address
+            space, which every range starts before.
+         */
+        String table = table(ipSpace.getIpVersion());
+        String beforeMax = toEnd ? "" : " and min < :max";
+        // in nested spaces any number of ranges starting before min may contain it
+        if (ipSpace.isNested())
+            return "select * from " + table + " where ip_space_id = :ip_space" + beforeMax + " and (max is null or max > :min)";
+        return "select * from " + table + " where ip_space_id = :ip_space and min >= :min" + beforeMax + " " +
+                "union all " +
+                "select * from (select * from " + table + " where ip_space_id = :ip_space and min < :min " +
+                "order by min desc limit 1) as preceding where max is null or max > :min";
+    }
+
+    private static String table(IpVersion ipVersion) {
+        return "ip_range_v" + ipVersion.getVersion();
+    }
+
+    private static String insertSql(IpVersion ipVersion) {
+        return "insert into " + table(ipVersion) +
+                "(ip_space_id, name, description, min, max) " +
+                "values (:ipSpaceId, :name, :description, :min, :max)";
+    }
+
+    private static SqlParameterSource insertParams(IpRange ipRange) {
+        return new MapSqlParameterSource()
+                .addValue("ipSpaceId", ipRange.getIpSpaceId())
+                .addValue("name", ipRange.getName())
+                .addValue("description", ipRange.getDescription())
+                .addValue("min", toSqlValue(ipRange.minAddress()))
+                .addValue("max", toSqlValue(ipRange.maxAddress()));
+    }
+
+    // range bounds are stored as bigint (v4) and binary(16) (v6), which both sort the same as the addresses, and a max
+    // at the end of the address space as null, which sorts last
+    static Object toSqlValue(IpAddress ipAddress) {
+        if (ipAddress.end())
+            return null;
+        return switch (ipAddress.version()) {
+            case V4 -> ipAddress.lo();
+            case V6 -> ipAddress.toByteArray();
+        };
+    }
+
+    static IpAddress fromSqlValue(ResultSet resultSet, String column, IpVersion ipVersion) throws SQLException {
+        return switch (ipVersion) {
+            case V4 -> {
+                long value = resultSet.getLong(column);
+                yield resultSet.wasNull() ? ipVersion.end() : IpAddress.v4(value);
+            }
+            case V6 -> {
+                byte[] value = resultSet.getBytes(column);
+                yield value == null ? ipVersion.end() : IpAddress.v6(value);
+            }
+        };
+    }
+
+    static RowMapper<IpRange> rangeRowMapper(IpSpace ipSpace) {
+        IpVersion ipVersion = ipSpace.getIpVersion();
+        return (resultSet, rowNum) -> new IpRange()
+                .setId(resultSet.getInt("id"))
+                .setIpSpaceId(resultSet.getInt("ip_space_id"))
+                .setName(resultSet.getString("name"))
+                .setDescription(resultSet.getString("description"))
+                .setMinFromIp(fromSqlValue(resultSet, "min", ipVersion))
+                .setMaxFromIp(fromSqlValue(resultSet, "max", ipVersion))
+                .setIpSpace(ipSpace);
+    }
+}
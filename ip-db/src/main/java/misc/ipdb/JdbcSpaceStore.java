@@ -0,0 +1,73 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.IpSpace;
+import org.springframework.jdbc.core.simple.JdbcClient;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+
+import java.util.List;
+import java.util.Objects;
+
+class JdbcSpaceStore implements SpaceStore {
+    private final JdbcClient jdbcClient;
+
+    JdbcSpaceStore(JdbcClient jdbcClient) {
+        this.jdbcClient = jdbcClient;
+    }
+
+    @Override
+    public IpSpace insert(IpSpace ipSpace) {
+        var g = new GeneratedKeyHolder();
+        jdbcClient.sql("""
+                        insert into ip_space(name, description, version, min, max, nested)\s
+                        values(:name, :description, :version, :min, :max, :nested)
+                        """)
+                .paramSource(ipSpace)
+                .update(g);
+        return ipSpace.setId(Objects.requireNonNull(g.getKey()).intValue());
+    }
+
+    @Override
+    public int update(IpSpace ipSpace) {
+        return jdbcClient.sql("""
+                        update ip_space\s
+                        set name = :name,\s
+                            description = :description,\s
+                            version = :version,\s
+                            min = :min,\s
+                            max = :max,\s
+                            nested = :nested\s
+                        where id = :id
+                        """)
+                .paramSource(ipSpace)
+                .update();
+    }
+
+    @Override
+    public int delete(int id) {
+        return jdbcClient.sql("delete from ip_space where id = ?")
+                .param(id)
+                .update();
+    }
+
+    @Override
+    public void lock(int id) {
+        jdbcClient.sql("select id from ip_space where id = ? for update").params(id).query(Integer.class).optional();
+    }
+
+    @Override
+    public IpSpace find(int id) {
+        return jdbcClient.sql("select * from ip_space where id = ?").params(id).query(IpSpace.class).optional().orElse(null);
+    }
+
+    @Override
+    public List<IpSpace> list(Integer afterId, int limit) {
+        return afterId == null
+                ? jdbcClient.sql("select * from ip_space order by id limit ?").params(limit).query(IpSpace.class).list()
+                : jdbcClient.sql("select * from ip_space where id > ? order by id limit ?").params(afterId, limit).query(IpSpace.class).list();
+    }
+
+    @Override
+    public List<IpSpace> list(long offset, int limit) {
+        return jdbcClient.sql("select * from ip_space limit ? offset ?").params(limit, offset).query(IpSpace.class).list();
+    }
+}
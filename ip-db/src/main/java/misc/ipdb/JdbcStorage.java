@@ -0,0 +1,69 @@
+package misc.ipdb;
+
+import misc.ipdb.util.DbMigrator;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.simple.JdbcClient;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.util.function.Supplier;
+
+// spaces, ranges and the change journal in tables of a database (see DbMigrator)
+class JdbcStorage implements IpDbStorage {
+    final DataSource dataSource;
+    private final TransactionTemplate transactionTemplate;
+    private final JdbcSpaceStore spaces;
+    private final JdbcRangeStore ranges;
+    private final ChangeJournal changes;
+
+    JdbcStorage(DataSource dataSource) {
+        this(dataSource, JdbcClient.create(dataSource));
+    }
+
+    JdbcStorage(DataSource dataSource, JdbcClient jdbcClient) {
+        this.dataSource = dataSource;
+        // for what JdbcClient can't do: batches
+        var namedParameterJdbcTemplate = new NamedParameterJdbcTemplate(dataSource);
+        var transactionManager = new DataSourceTransactionManager(dataSource);
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.spaces = new JdbcSpaceStore(jdbcClient);
+        this.ranges = new JdbcRangeStore(jdbcClient, namedParameterJdbcTemplate, transactionTemplate);
+        this.changes = new ChangeJournal(jdbcClient, namedParameterJdbcTemplate, transactionManager);
+    }
+
+    @Override
+    public SpaceStore spaces() {
+        return spaces;
+    }
+
+    @Override
+    public RangeStore ranges() {
+        return ranges;
+    }
+
+    @Override
+    public ChangeStore changes() {
+        return changes;
+    }
+
+    @Override
+    public <T> T inTransaction(Supplier<T> action) {
+        return transactionTemplate.execute(status -> action.get());
+    }
+
+    @Override
+    public boolean rollsBack() {
+        return true;
+    }
+
+    @Override
+    public boolean shared() {
+        return true;
+    }
+
+    @Override
+    public void migrate() {
+        new DbMigrator(dataSource).migrate();
+    }
+}
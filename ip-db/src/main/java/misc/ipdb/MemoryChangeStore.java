@@ -0,0 +1,146 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.Change;
+import misc.ipdb.IpDbService.ChangePage;
+import misc.ipdb.IpDbService.ChangeType;
+import misc.ipdb.IpDbService.IpAddress;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.IpSpace;
+
+import java.math.BigInteger;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// the journal as a list, the sequence number of a change is its position plus one plus the changes trimmed before
+// it; appends are visible at once, so there are no gaps to wait for
+class MemoryChangeStore implements ChangeStore {
+    private final List<Change> changes = new ArrayList<>();
+    // the sequence number of the last change trimmed, the list starts after it
+    private long horizon;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+
+    @Override
+    public void append(ChangeType type, IpSpace ipSpace) {
+        lock.lock();
+        try {
+            changes.add(new Change(horizon + changes.size() + 1, type, ipSpace.getId(), null, ipSpace.getName(),
+                    ipSpace.getDescription(), address(ipSpace.getMin(), ipSpace), address(ipSpace.getMax(), ipSpace),
+                    Instant.now()));
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void append(ChangeType type, IpRange ipRange) {
+        appendAll(type, List.of(ipRange));
+    }
+
+    @Override
+    public void appendAll(ChangeType type, List<IpRange> ipRanges) {
+        lock.lock();
+        try {
+            Instant now = Instant.now();
+            for (IpRange ipRange : ipRanges)
+                changes.add(new Change(horizon + changes.size() + 1, type, ipRange.getIpSpaceId(), ipRange.getId(),
+                        ipRange.getName(), ipRange.getDescription(), ipRange.minAddress(), ipRange.maxAddress(), now));
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // a change that has its sequence number already, like one loaded from a file, which must be the next one
+    void put(Change change) {
+        lock.lock();
+        try {
+            if (change.seq() != horizon + changes.size() + 1)
+                throw new IllegalStateException("change " + change.seq() + " after " + (horizon + changes.size()));
+            changes.add(change);
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // drops the changes up to this sequence number; the ones after it keep theirs
+    void trim(long before) {
+        lock.lock();
+        try {
+            if (before <= horizon)
+                return;
+            changes.subList(0, (int) Math.min(before - horizon, changes.size())).clear();
+            horizon = before;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the sequence number of the last change trimmed (0 if none was)
+    long horizon() {
+        lock.lock();
+        try {
+            return horizon;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // reading from the start (after 0) reads from the oldest change kept; reading on from a position that was
+    // trimmed since throws, the changes in between are lost
+    @Override
+    public ChangePage read(long after, Integer ipSpaceId, int limit) {
+        lock.lock();
+        try {
+            if (after > 0 && after < horizon)
+                throw new IllegalStateException("changes up to " + horizon + " are no longer kept, can't read after " + after);
+            List<Change> page = new ArrayList<>();
+            for (int i = (int) Math.max(after - horizon, 0); i < changes.size() && page.size() < limit; i++)
+                if (ipSpaceId == null || changes.get(i).ipSpaceId() == ipSpaceId)
+                    page.add(changes.get(i));
+            return new ChangePage(page, page.size() == limit ? page.get(limit - 1).seq() : Math.max(after, horizon + changes.size()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public ChangePage await(long after, Integer ipSpaceId, int limit, Duration timeout) {
+        long remaining = timeout.toNanos();
+        lock.lock();
+        try {
+            while (true) {
+                ChangePage page = read(after, ipSpaceId, limit);
+                if (!page.changes().isEmpty() || remaining <= 0)
+                    return page;
+                after = page.next();
+                remaining = appended.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ChangePage(List.of(), after);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long head() {
+        lock.lock();
+        try {
+            return horizon + changes.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static IpAddress address(BigInteger value, IpSpace ipSpace) {
+        return value == null ? null : IpAddress.from(value, ipSpace.getIpVersion());
+    }
+}
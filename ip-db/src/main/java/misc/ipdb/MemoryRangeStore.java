@@ -0,0 +1,240 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.IpAddress;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.IpSpace;
+import misc.ipdb.IpDbService.IpVersion;
+import misc.ipdb.IpDbService.RangeKey;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Ranges in memory, each space in {@link SortedRanges}: a map sorted by {@code (min, max)} like the index of the
+ * ranges tables, so seeks, inserts and deletes are {@code O(log n)} and bulk imports stay {@code O(n log n)}.
+ * <p>
+ * Ids are taken per version, like the identity columns of the two tables.
+ */
+class MemoryRangeStore implements RangeStore {
+    static final int SCAN_CHUNK_SIZE = 1000;
+
+    private final Map<Integer, SortedRanges> bySpace = new ConcurrentHashMap<>();
+    private final Map<IpVersion, Map<Integer, Row>> byId = new EnumMap<>(IpVersion.class);
+    private final Map<IpVersion, AtomicInteger> lastIds = new EnumMap<>(IpVersion.class);
+
+    MemoryRangeStore() {
+        for (IpVersion ipVersion : IpVersion.values()) {
+            byId.put(ipVersion, new ConcurrentHashMap<>());
+            lastIds.put(ipVersion, new AtomicInteger());
+        }
+    }
+
+    @Override
+    public void insertAll(IpVersion ipVersion, List<IpRange> ipRanges) {
+        for (IpRange ipRange : ipRanges) {
+            ipRange.setId(lastIds.get(ipVersion).incrementAndGet());
+            add(ipVersion, ipRange);
+        }
+    }
+
+    // a range that has its id already, like one loaded from a file; later ids are taken after it
+    void put(IpVersion ipVersion, IpRange ipRange) {
+        lastIds.get(ipVersion).accumulateAndGet(ipRange.getId(), Math::max);
+        add(ipVersion, ipRange);
+    }
+
+    private void add(IpVersion ipVersion, IpRange ipRange) {
+        var row = new Row(ipRange.getIpSpaceId(), ipRange.minAddress(), ipRange.maxAddress(), ipRange.copy().setIpSpace(null));
+        bySpace.computeIfAbsent(row.ipSpaceId(), id -> new SortedRanges()).insert(row);
+        byId.get(ipVersion).put(ipRange.getId(), row);
+    }
+
+    @Override
+    public int deleteAll(IpVersion ipVersion, Collection<Integer> ids) {
+        int deleted = 0;
+        for (Integer id : ids) {
+            Row row = byId.get(ipVersion).remove(id);
+            if (row != null) {
+                bySpace.get(row.ipSpaceId()).remove(row);
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    @Override
+    public IpRange find(IpSpace ipSpace, int id) {
+        Row row = byId.get(ipSpace.getIpVersion()).get(id);
+        return row == null || row.ipSpaceId() != ipSpace.getId() ? null : row.range().copy().setIpSpace(ipSpace);
+    }
+
+    @Override
+    public List<IpRange> list(IpSpace ipSpace, RangeKey after, int limit) {
+        SortedRanges ranges = bySpace.get(ipSpace.getId());
+        return ranges == null ? List.of() : ranges.list(ipSpace, after, limit);
+    }
+
+    @Override
+    public List<IpRange> list(IpSpace ipSpace, long offset, int limit) {
+        SortedRanges ranges = bySpace.get(ipSpace.getId());
+        return ranges == null ? List.of() : ranges.list(ipSpace, offset, limit);
+    }
+
+    // a chunk at a time, so a slow consumer doesn't hold up writes to the space
+    @Override
+    public void scan(IpSpace ipSpace, Consumer<IpRange> consumer) {
+        RangeKey after = null;
+        for (List<IpRange> chunk = list(ipSpace, after, SCAN_CHUNK_SIZE); !chunk.isEmpty(); chunk = list(ipSpace, after, SCAN_CHUNK_SIZE)) {
+            chunk.forEach(consumer);
+            after = RangeKey.of(chunk.get(chunk.size() - 1));
+        }
+    }
+
+    @Override
+    public List<IpRange> overlapping(IpSpace ipSpace, IpAddress min, IpAddress max) {
+        SortedRanges ranges = bySpace.get(ipSpace.getId());
+        return ranges == null ? List.of() : ranges.overlapping(ipSpace, min, max);
+    }
+
+    // the number of ranges of the space
+    int count(int ipSpaceId) {
+        SortedRanges ranges = bySpace.get(ipSpaceId);
+        return ranges == null ? 0 : ranges.size();
+    }
+
+    // every range of the version in no particular order, without their space; the instances held, not to be changed
+    List<IpRange> all(IpVersion ipVersion) {
+        return byId.get(ipVersion).values().stream().map(Row::range).toList();
+    }
+
+    int lastId(IpVersion ipVersion) {
+        return lastIds.get(ipVersion).get();
+    }
+
+    void lastId(IpVersion ipVersion, int lastId) {
+        lastIds.get(ipVersion).accumulateAndGet(lastId, Math::max);
+    }
+
+    private record Row(int ipSpaceId, IpAddress min, IpAddress max, IpRange range) {
+    }
+
+    private record Key(IpAddress min, IpAddress max, int id) implements Comparable<Key> {
+        private static final Comparator<Key> ORDER = Comparator.comparing(Key::min).thenComparing(Key::max).thenComparingInt(Key::id);
+
+        @Override
+        public int compareTo(Key o) {
+            return ORDER.compare(this, o);
+        }
+    }
+
+    /**
+     * The ranges of one space in a map sorted by {@code (min, max, id)}, so inserts, deletes and seeks are
+     * {@code O(log n)}. A range starting before a query overlaps it only if it contains the query's min: in a space
+     * that isn't nested that can only be the range right before, in a nested space it is one of the blocks the min
+     * is in, whose mins are the min masked to each prefix length.
+     */
+    static class SortedRanges {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final TreeMap<Key, IpRange> ranges = new TreeMap<>();
+
+        private void insert(Row row) {
+            lock.writeLock().lock();
+            try {
+                ranges.put(new Key(row.min(), row.max(), row.range().getId()), row.range());
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private void remove(Row row) {
+            lock.writeLock().lock();
+            try {
+                ranges.remove(new Key(row.min(), row.max(), row.range().getId()));
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        int size() {
+            lock.readLock().lock();
+            try {
+                return ranges.size();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private List<IpRange> list(IpSpace ipSpace, RangeKey after, int limit) {
+            lock.readLock().lock();
+            try {
+                // ids are positive, so this is the first range after (min, max)
+                var from = after == null ? ranges : ranges.tailMap(new Key(after.min(), after.max(), Integer.MAX_VALUE), false);
+                return copy(ipSpace, from.values().iterator(), limit);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        // walks over the skipped ranges, offsets are for small pages only (keysets are for the rest)
+        private List<IpRange> list(IpSpace ipSpace, long offset, int limit) {
+            lock.readLock().lock();
+            try {
+                Iterator<IpRange> iterator = ranges.values().iterator();
+                for (long i = 0; i < offset && iterator.hasNext(); i++)
+                    iterator.next();
+                return copy(ipSpace, iterator, limit);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        // the ranges containing min, then those starting within [min, max)
+        private List<IpRange> overlapping(IpSpace ipSpace, IpAddress min, IpAddress max) {
+            lock.readLock().lock();
+            try {
+                IpAddress first = ipSpace.getIpVersion().first();
+                Key start = new Key(min, first, 0);
+                List<IpRange> result = new ArrayList<>();
+                if (ipSpace.isNested()) {
+                    IpAddress previous = null;
+                    for (int prefixLength = 0; prefixLength <= ipSpace.getIpVersion().getBits(); prefixLength++) {
+                        IpAddress network = min.mask(prefixLength);
+                        if (network.equals(previous) || network.equals(min)) continue;
+                        previous = network;
+                        for (var entry : ranges.tailMap(new Key(network, first, 0)).entrySet()) {
+                            if (!entry.getKey().min().equals(network)) break;
+                            if (entry.getKey().max().compareTo(min) > 0)
+                                result.add(entry.getValue().copy().setIpSpace(ipSpace));
+                        }
+                    }
+                } else {
+                    var before = ranges.lowerEntry(start);
+                    if (before != null && before.getKey().max().compareTo(min) > 0)
+                        result.add(before.getValue().copy().setIpSpace(ipSpace));
+                }
+                for (IpRange ipRange : ranges.subMap(start, new Key(max, first, 0)).values())
+                    result.add(ipRange.copy().setIpSpace(ipSpace));
+                return result;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private static List<IpRange> copy(IpSpace ipSpace, Iterator<IpRange> iterator, int limit) {
+            List<IpRange> result = new ArrayList<>();
+            while (result.size() < limit && iterator.hasNext())
+                result.add(iterator.next().copy().setIpSpace(ipSpace));
+            return result;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.IpSpace;
+import org.springframework.dao.DataIntegrityViolationException;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// spaces by id, handed out as copies like rows read from a table
+class MemorySpaceStore implements SpaceStore {
+    private final ConcurrentSkipListMap<Integer, IpSpace> spaces = new ConcurrentSkipListMap<>();
+    private final AtomicInteger lastId = new AtomicInteger();
+    private final MemoryRangeStore ranges;
+
+    MemorySpaceStore(MemoryRangeStore ranges) {
+        this.ranges = ranges;
+    }
+
+    @Override
+    public IpSpace insert(IpSpace ipSpace) {
+        ipSpace.setId(lastId.incrementAndGet());
+        spaces.put(ipSpace.getId(), ipSpace.copy());
+        return ipSpace;
+    }
+
+    // a space that has its id already, like one loaded from a file, added or replaced; later ids are taken after it
+    void put(IpSpace ipSpace) {
+        lastId.accumulateAndGet(ipSpace.getId(), Math::max);
+        spaces.put(ipSpace.getId(), ipSpace.copy());
+    }
+
+    int lastId() {
+        return lastId.get();
+    }
+
+    void lastId(int lastId) {
+        this.lastId.accumulateAndGet(lastId, Math::max);
+    }
+
+    @Override
+    public int update(IpSpace ipSpace) {
+        return spaces.replace(ipSpace.getId(), ipSpace.copy()) == null ? 0 : 1;
+    }
+
+    // like the foreign key of the ranges tables
+    @Override
+    public int delete(int id) {
+        if (ranges.count(id) > 0)
+            throw new DataIntegrityViolationException("ip space " + id + " has ranges");
+        return spaces.remove(id) == null ? 0 : 1;
+    }
+
+    @Override
+    public IpSpace find(int id) {
+        IpSpace ipSpace = spaces.get(id);
+        return ipSpace == null ? null : ipSpace.copy();
+    }
+
+    @Override
+    public List<IpSpace> list(Integer afterId, int limit) {
+        var after = afterId == null ? spaces : spaces.tailMap(afterId, false);
+        return after.values().stream().limit(limit).map(IpSpace::copy).toList();
+    }
+
+    @Override
+    public List<IpSpace> list(long offset, int limit) {
+        return spaces.values().stream().skip(offset).limit(limit).map(IpSpace::copy).toList();
+    }
+}
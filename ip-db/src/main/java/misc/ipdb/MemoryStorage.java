@@ -0,0 +1,35 @@
+package misc.ipdb;
+
+import java.util.function.Supplier;
+
+// spaces, ranges and the change journal in the heap of this process, gone when it ends
+class MemoryStorage implements IpDbStorage {
+    private final MemoryRangeStore ranges = new MemoryRangeStore();
+    private final MemorySpaceStore spaces = new MemorySpaceStore(ranges);
+    private final MemoryChangeStore changes = new MemoryChangeStore();
+
+    @Override
+    public SpaceStore spaces() {
+        return spaces;
+    }
+
+    @Override
+    public RangeStore ranges() {
+        return ranges;
+    }
+
+    @Override
+    public ChangeStore changes() {
+        return changes;
+    }
+
+    // writes are checked by the service before they are made, there is nothing to roll back
+    @Override
+    public <T> T inTransaction(Supplier<T> action) {
+        return action.get();
+    }
+
+    @Override
+    public void migrate() {
+    }
+}
@@ -0,0 +1,324 @@
+package misc.ipdb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable sorted map: an AVL tree whose updates copy the path to the changed node and share every other node with
+ * the map they were made on. Updates are {@code O(log n)}, keeping the map from before an update is free.
+ * <p>
+ * Maps derived from one another share most of their nodes, which {@link #diff} skips by identity, so comparing a map
+ * with the one it was derived from costs about the number of updates between them rather than their size.
+ */
+final class PersistentSortedMap<K extends Comparable<? super K>, V> {
+    @SuppressWarnings("rawtypes")
+    private static final PersistentSortedMap EMPTY = new PersistentSortedMap<>(null);
+
+    private final Node<K, V> root;
+
+    private PersistentSortedMap(Node<K, V> root) {
+        this.root = root;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K extends Comparable<? super K>, V> PersistentSortedMap<K, V> empty() {
+        return EMPTY;
+    }
+
+    // a balanced tree of these entries, in O(n) as they are in ascending key order already
+    static <K extends Comparable<? super K>, V> PersistentSortedMap<K, V> ofSorted(List<K> keys, List<V> values) {
+        return new PersistentSortedMap<>(build(keys, values, 0, keys.size()));
+    }
+
+    private static <K, V> Node<K, V> build(List<K> keys, List<V> values, int from, int to) {
+        if (from >= to)
+            return null;
+        int mid = (from + to) >>> 1;
+        return Node.of(keys.get(mid), values.get(mid), build(keys, values, from, mid), build(keys, values, mid + 1, to));
+    }
+
+    int size() {
+        return Node.size(root);
+    }
+
+    V get(K key) {
+        for (Node<K, V> n = root; n != null; ) {
+            int c = key.compareTo(n.key);
+            if (c == 0)
+                return n.value;
+            n = c < 0 ? n.left : n.right;
+        }
+        return null;
+    }
+
+    // the entry with the greatest key less than or equal to key (or null if there is none)
+    Map.Entry<K, V> floorEntry(K key) {
+        Node<K, V> floor = null;
+        for (Node<K, V> n = root; n != null; ) {
+            int c = key.compareTo(n.key);
+            if (c == 0)
+                return n;
+            if (c < 0) {
+                n = n.left;
+            } else {
+                floor = n;
+                n = n.right;
+            }
+        }
+        return floor;
+    }
+
+    // the entry with the least key greater than key (or null if there is none)
+    Map.Entry<K, V> higherEntry(K key) {
+        Node<K, V> higher = null;
+        for (Node<K, V> n = root; n != null; ) {
+            if (key.compareTo(n.key) < 0) {
+                higher = n;
+                n = n.left;
+            } else {
+                n = n.right;
+            }
+        }
+        return higher;
+    }
+
+    // the values of the keys between after and before (both exclusive, null for no bound) in key order, up to limit
+    List<V> values(K after, K before, int limit) {
+        List<V> values = new ArrayList<>();
+        Deque<Node<K, V>> path = new ArrayDeque<>();
+        pushLeft(path, root, after);
+        while (!path.isEmpty() && values.size() < limit) {
+            Node<K, V> n = path.pop();
+            if (before != null && n.key.compareTo(before) >= 0)
+                break;
+            values.add(n.value);
+            pushLeft(path, n.right, after);
+        }
+        return values;
+    }
+
+    // the path to the least key after the bound, through the nodes still to visit
+    private static <K extends Comparable<? super K>, V> void pushLeft(Deque<Node<K, V>> path, Node<K, V> n, K after) {
+        while (n != null) {
+            if (after != null && n.key.compareTo(after) <= 0) {
+                n = n.right;
+            } else {
+                path.push(n);
+                n = n.left;
+            }
+        }
+    }
+
+    PersistentSortedMap<K, V> put(K key, V value) {
+        return new PersistentSortedMap<>(put(root, key, value));
+    }
+
+    private static <K extends Comparable<? super K>, V> Node<K, V> put(Node<K, V> n, K key, V value) {
+        if (n == null)
+            return Node.of(key, value, null, null);
+        int c = key.compareTo(n.key);
+        if (c == 0)
+            return Node.of(key, value, n.left, n.right);
+        return c < 0
+                ? balance(n.key, n.value, put(n.left, key, value), n.right)
+                : balance(n.key, n.value, n.left, put(n.right, key, value));
+    }
+
+    PersistentSortedMap<K, V> remove(K key) {
+        Node<K, V> removed = remove(root, key);
+        return removed == root ? this : new PersistentSortedMap<>(removed);
+    }
+
+    private static <K extends Comparable<? super K>, V> Node<K, V> remove(Node<K, V> n, K key) {
+        if (n == null)
+            return null;
+        int c = key.compareTo(n.key);
+        if (c < 0) {
+            Node<K, V> left = remove(n.left, key);
+            return left == n.left ? n : balance(n.key, n.value, left, n.right);
+        }
+        if (c > 0) {
+            Node<K, V> right = remove(n.right, key);
+            return right == n.right ? n : balance(n.key, n.value, n.left, right);
+        }
+        if (n.left == null)
+            return n.right;
+        if (n.right == null)
+            return n.left;
+        Node<K, V> successor = n.right;
+        while (successor.left != null)
+            successor = successor.left;
+        return balance(successor.key, successor.value, n.left, removeFirst(n.right));
+    }
+
+    private static <K, V> Node<K, V> removeFirst(Node<K, V> n) {
+        if (n.left == null)
+            return n.right;
+        return balance(n.key, n.value, removeFirst(n.left), n.right);
+    }
+
+    // a node of these children, rotated once or twice if their heights differ by two
+    private static <K, V> Node<K, V> balance(K key, V value, Node<K, V> left, Node<K, V> right) {
+        int hl = Node.height(left), hr = Node.height(right);
+        if (hl > hr + 1) {
+            if (Node.height(left.left) >= Node.height(left.right))
+                return Node.of(left.key, left.value, left.left, Node.of(key, value, left.right, right));
+            Node<K, V> lr = left.right;
+            return Node.of(lr.key, lr.value, Node.of(left.key, left.value, left.left, lr.left), Node.of(key, value, lr.right, right));
+        }
+        if (hr > hl + 1) {
+            if (Node.height(right.right) >= Node.height(right.left))
+                return Node.of(right.key, right.value, Node.of(key, value, left, right.left), right.right);
+            Node<K, V> rl = right.left;
+            return Node.of(rl.key, rl.value, Node.of(key, value, left, rl.left), Node.of(right.key, right.value, rl.right, right.right));
+        }
+        return Node.of(key, value, left, right);
+    }
+
+    interface DiffConsumer<K, V> {
+        // before is null for keys only in the second map, after for keys only in the first
+        void accept(K key, V before, V after);
+    }
+
+    // the keys whose values differ (by identity) between the maps, in key order; subtrees both maps share are skipped
+    static <K extends Comparable<? super K>, V> void diff(PersistentSortedMap<K, V> a, PersistentSortedMap<K, V> b,
+                                                           DiffConsumer<K, V> consumer) {
+        var x = new Cursor<>(a.root);
+        var y = new Cursor<>(b.root);
+        while (!x.isEmpty() && !y.isEmpty()) {
+            if (x.node() == y.node() && x.whole() == y.whole()) {
+                x.pop();
+                y.pop();
+            } else if (x.whole() || y.whole()) {
+                // the larger subtree is split, so subtrees both maps share line up at the front of both
+                if (x.whole() && (!y.whole() || Node.size(x.node()) >= Node.size(y.node())))
+                    x.split();
+                else
+                    y.split();
+            } else {
+                Node<K, V> nx = x.node(), ny = y.node();
+                int c = nx.key.compareTo(ny.key);
+                if (c <= 0)
+                    x.pop();
+                if (c >= 0)
+                    y.pop();
+                if (c < 0)
+                    consumer.accept(nx.key, nx.value, null);
+                else if (c > 0)
+                    consumer.accept(ny.key, null, ny.value);
+                else if (nx.value != ny.value)
+                    consumer.accept(nx.key, nx.value, ny.value);
+            }
+        }
+        for (Node<K, V> n : x.rest())
+            consumer.accept(n.key, n.value, null);
+        for (Node<K, V> n : y.rest())
+            consumer.accept(n.key, null, n.value);
+    }
+
+    // an in-order walk that takes subtrees whole until they're split: the front is either a subtree still to walk
+    // or a single node whose left subtree was walked
+    private static class Cursor<K, V> {
+        private final Deque<Node<K, V>> nodes = new ArrayDeque<>();
+        private final Deque<Boolean> whole = new ArrayDeque<>();
+
+        Cursor(Node<K, V> root) {
+            if (root != null)
+                push(root, true);
+        }
+
+        boolean isEmpty() {
+            return nodes.isEmpty();
+        }
+
+        Node<K, V> node() {
+            return nodes.peek();
+        }
+
+        boolean whole() {
+            return Boolean.TRUE.equals(whole.peek());
+        }
+
+        void pop() {
+            nodes.pop();
+            whole.pop();
+        }
+
+        void split() {
+            Node<K, V> n = nodes.peek();
+            pop();
+            if (n.right != null)
+                push(n.right, true);
+            push(n, false);
+            if (n.left != null)
+                push(n.left, true);
+        }
+
+        // the single nodes left, in order
+        List<Node<K, V>> rest() {
+            List<Node<K, V>> rest = new ArrayList<>();
+            while (!isEmpty()) {
+                if (whole())
+                    split();
+                else {
+                    rest.add(node());
+                    pop();
+                }
+            }
+            return rest;
+        }
+
+        private void push(Node<K, V> n, boolean isWhole) {
+            nodes.push(n);
+            whole.push(isWhole);
+        }
+    }
+
+    private static final class Node<K, V> implements Map.Entry<K, V> {
+        final K key;
+        final V value;
+        final Node<K, V> left;
+        final Node<K, V> right;
+        final int height;
+        final int size;
+
+        private Node(K key, V value, Node<K, V> left, Node<K, V> right) {
+            this.key = key;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            this.height = Math.max(height(left), height(right)) + 1;
+            this.size = size(left) + size(right) + 1;
+        }
+
+        static <K, V> Node<K, V> of(K key, V value, Node<K, V> left, Node<K, V> right) {
+            return new Node<>(key, value, left, right);
+        }
+
+        static int height(Node<?, ?> n) {
+            return n == null ? 0 : n.height;
+        }
+
+        static int size(Node<?, ?> n) {
+            return n == null ? 0 : n.size;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
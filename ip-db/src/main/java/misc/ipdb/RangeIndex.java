@@ -0,0 +1,65 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.AllocationStrategy;
+import misc.ipdb.IpDbService.FreeGap;
+import misc.ipdb.IpDbService.IpAddress;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.IpSpace;
+import misc.ipdb.IpDbService.IpVersion;
+import misc.ipdb.IpDbService.RangeKey;
+import misc.ipdb.IpDbService.SpaceStats;
+
+import java.math.BigInteger;
+import java.util.List;
+
+/**
+ * In-memory index of the ranges of one {@link IpSpace}: {@link IpRangeIndex} for spaces whose ranges don't overlap,
+ * {@link IpPrefixTrie} for nested spaces. Reads are safe alongside writes, writes are serialized by the caller.
+ */
+abstract class RangeIndex {
+    abstract void add(IpRange ipRange);
+
+    abstract IpRange remove(int id);
+
+    abstract IpRange get(int id);
+
+    abstract int size();
+
+    abstract IpVersion ipVersion();
+
+    // whether [min, max) is within the bounds of the space
+    abstract boolean withinSpace(IpAddress min, IpAddress max);
+
+    // whether [min, max) can't be added as a range
+    abstract boolean conflicts(IpAddress min, IpAddress max);
+
+    // the (most specific) range containing this address (or null if not found)
+    abstract IpRange rangeOf(IpAddress address);
+
+    // the ranges containing each of these (ascending) addresses, null where there is none
+    abstract IpRange[] rangesOf(IpAddress[] sorted);
+
+    // whether any range has addresses within [min, max)
+    abstract boolean overlaps(IpAddress min, IpAddress max);
+
+    // all ranges having addresses within [min, max), ordered by min
+    abstract List<IpRange> overlapping(IpAddress min, IpAddress max);
+
+    // the ranges after this position (or from the start if null) in (min, max) order, as listed by the database
+    abstract List<IpRange> list(RangeKey after, int limit);
+
+    // the ranges as they are now, for branches that share them (see IpSpaceBranch)
+    abstract RangeSnapshot snapshot();
+
+    // a free, aligned block with this prefix length (or null if there is none)
+    abstract Block findFree(int prefixLength, AllocationStrategy strategy);
+
+    abstract SpaceStats stats();
+
+    // the gaps between ranges within the bounds of the space that start after this address (or from the start if
+    // null) and have at least minSize addresses (or any size if null), ordered by address, up to limit
+    abstract List<FreeGap> free(IpAddress after, BigInteger minSize, int limit);
+
+    record Block(IpAddress min, IpAddress max) {
+    }
+}
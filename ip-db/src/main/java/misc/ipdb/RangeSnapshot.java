@@ -0,0 +1,73 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.IpAddress;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.RangeKey;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ranges of a space that isn't nested at one point in time, by min and by id, in persistent maps: a snapshot
+ * is never modified, a change makes a new one that shares all but {@code O(log n)} nodes with it.
+ * <p>
+ * Lookups work like those of {@link IpRangeIndex}, as ranges don't overlap.
+ */
+record RangeSnapshot(PersistentSortedMap<IpAddress, IpRange> byMin, PersistentSortedMap<Integer, IpRange> byId) {
+    static final RangeSnapshot EMPTY = new RangeSnapshot(PersistentSortedMap.empty(), PersistentSortedMap.empty());
+
+    // from ranges ordered by min
+    static RangeSnapshot of(List<IpAddress> mins, List<IpRange> ipRanges) {
+        List<IpRange> sortedById = new ArrayList<>(ipRanges);
+        sortedById.sort(Comparator.comparing(IpRange::getId));
+        return new RangeSnapshot(
+                PersistentSortedMap.ofSorted(mins, ipRanges),
+                PersistentSortedMap.ofSorted(sortedById.stream().map(IpRange::getId).toList(), sortedById));
+    }
+
+    RangeSnapshot with(IpAddress min, IpRange ipRange) {
+        return new RangeSnapshot(byMin.put(min, ipRange), byId.put(ipRange.getId(), ipRange));
+    }
+
+    RangeSnapshot without(IpAddress min, int id) {
+        return new RangeSnapshot(byMin.remove(min), byId.remove(id));
+    }
+
+    int size() {
+        return byId.size();
+    }
+
+    IpRange get(int id) {
+        return byId.get(id);
+    }
+
+    IpRange rangeOf(IpAddress address) {
+        Map.Entry<IpAddress, IpRange> floor = byMin.floorEntry(address);
+        return floor != null && floor.getValue().maxAddress().compareTo(address) > 0 ? floor.getValue() : null;
+    }
+
+    boolean overlaps(IpAddress min, IpAddress max) {
+        if (rangeOf(min) != null)
+            return true;
+        Map.Entry<IpAddress, IpRange> next = byMin.higherEntry(min);
+        return next != null && next.getKey().compareTo(max) < 0;
+    }
+
+    // ordered by min
+    List<IpRange> overlapping(IpAddress min, IpAddress max) {
+        List<IpRange> result = new ArrayList<>();
+        IpRange floor = rangeOf(min);
+        if (floor != null)
+            result.add(floor);
+        if (min.compareTo(max) < 0)
+            result.addAll(byMin.values(min, max, Integer.MAX_VALUE));
+        return result;
+    }
+
+    // min alone orders ranges that don't overlap
+    List<IpRange> list(RangeKey after, int limit) {
+        return byMin.values(after == null ? null : after.min(), null, limit);
+    }
+}
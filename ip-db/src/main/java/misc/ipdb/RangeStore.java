@@ -0,0 +1,34 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.IpAddress;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.IpSpace;
+import misc.ipdb.IpDbService.IpVersion;
+import misc.ipdb.IpDbService.RangeKey;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+// the ranges of an IpDbStorage, kept per version; ranges read are new instances with their space set
+public interface RangeStore {
+    // sets the ids of the ranges, which have their space id set
+    void insertAll(IpVersion ipVersion, List<IpRange> ipRanges);
+
+    // the number of ranges deleted
+    int deleteAll(IpVersion ipVersion, Collection<Integer> ids);
+
+    // the range with this id in this space (or null if there is none)
+    IpRange find(IpSpace ipSpace, int id);
+
+    // the ranges after this position (or from the start if null), ordered by (min, max)
+    List<IpRange> list(IpSpace ipSpace, RangeKey after, int limit);
+
+    List<IpRange> list(IpSpace ipSpace, long offset, int limit);
+
+    // every range of the space, ordered by (min, max), without holding all of them
+    void scan(IpSpace ipSpace, Consumer<IpRange> consumer);
+
+    // the ranges having addresses within [min, max), ordered by (min, max)
+    List<IpRange> overlapping(IpSpace ipSpace, IpAddress min, IpAddress max);
+}
@@ -0,0 +1,177 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.IpRange;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Group commit of reservations and releases: the requests to a space queue up and are committed in batches, one
+ * transaction each, so concurrent callers share a commit instead of making one each (see
+ * {@link IpDbService#commit}). A request to a space with nothing queued is committed at once; the batches of a space
+ * commit one at a time, and the requests arriving meanwhile are taken as the next batch once the first of them has
+ * waited for the window, or at once when a whole batch is queued. Requests are checked and completed in the order
+ * they were submitted. A space has a queue while it has requests, it is dropped once they are all committed.
+ */
+class ReservationPipeline {
+    static final int MAX_BATCH_SIZE = 256;
+    static final Duration WINDOW = Duration.ofMillis(1);
+
+    // a range to reserve (with its bounds set) or release, and the caller's future of its outcome
+    record Request(IpRange ipRange, boolean release, CompletableFuture<IpRange> future) {
+    }
+
+    private final IpDbService ipDbService;
+    private final int maxBatchSize;
+    private final long windowNanos;
+    private final Map<Integer, SpaceQueue> queues = new ConcurrentHashMap<>();
+    // commits block on storage, there are threads for a few spaces committing at a time; none while idle
+    private final ScheduledThreadPoolExecutor executor;
+    // set by shutdown, queues take no more requests
+    private volatile boolean closed;
+    private final CompletableFuture<Void> drained = new CompletableFuture<>();
+
+    ReservationPipeline(IpDbService ipDbService, int maxBatchSize, Duration window) {
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException("max batch size must be positive: " + maxBatchSize);
+        this.ipDbService = ipDbService;
+        this.maxBatchSize = maxBatchSize;
+        this.windowNanos = window.toNanos();
+        executor = new ScheduledThreadPoolExecutor(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "ipdb-group-commit");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setKeepAliveTime(1, TimeUnit.MINUTES);
+        executor.allowCoreThreadTimeOut(true);
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    // null once shut down, the request goes to another pipeline
+    CompletableFuture<IpRange> submit(int ipSpaceId, IpRange ipRange, boolean release) {
+        var request = new Request(ipRange, release, new CompletableFuture<>());
+        while (true) {
+            Boolean added = queues.computeIfAbsent(ipSpaceId, SpaceQueue::new).add(request);
+            if (added == null)
+                return null;
+            // a queue dropped meanwhile takes no more requests, they go to the next one
+            if (added)
+                return request.future();
+        }
+    }
+
+    // takes no more requests, and waits for the ones queued to be committed, without waiting for the window
+    void shutdown() {
+        closed = true;
+        // a request added before closed was set is in a queue by now
+        queues.values().forEach(SpaceQueue::flush);
+        if (queues.isEmpty())
+            drained.complete(null);
+        drained.join();
+        executor.shutdown();
+    }
+
+    private class SpaceQueue {
+        private final int ipSpaceId;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final List<Request> pending = new ArrayList<>();
+        // a batch is waiting for the window or committing, the queue is taken after it
+        private boolean busy;
+        private boolean dropped;
+        private ScheduledFuture<?> window;
+
+        SpaceQueue(int ipSpaceId) {
+            this.ipSpaceId = ipSpaceId;
+        }
+
+        // false if the queue was dropped, null if the pipeline was shut down
+        Boolean add(Request request) {
+            lock.lock();
+            try {
+                if (dropped)
+                    return false;
+                if (closed) {
+                    // not to hold up shutdown, a queue made for this request
+                    if (!busy)
+                        drop();
+                    return null;
+                }
+                pending.add(request);
+                if (!busy) {
+                    // nothing to wait for, a lone request commits at once
+                    busy = true;
+                    executor.execute(this::commit);
+                } else if (pending.size() >= maxBatchSize && window != null && window.cancel(false)) {
+                    // a whole batch, no need to wait for more
+                    window = null;
+                    executor.execute(this::commit);
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void commit() {
+            List<Request> batch;
+            lock.lock();
+            try {
+                window = null;
+                List<Request> taken = pending.subList(0, Math.min(pending.size(), maxBatchSize));
+                batch = new ArrayList<>(taken);
+                taken.clear();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                ipDbService.commit(ipSpaceId, batch);
+            } catch (Throwable e) {
+                // errors too, or their callers would wait forever
+                batch.forEach(request -> request.future().completeExceptionally(e));
+            } finally {
+                lock.lock();
+                try {
+                    if (pending.isEmpty()) {
+                        drop();
+                    } else if (pending.size() >= maxBatchSize || windowNanos <= 0 || closed) {
+                        executor.execute(this::commit);
+                    } else {
+                        // others are committing to the space, wait for more of them to share the next commit
+                        window = executor.schedule(this::commit, windowNanos, TimeUnit.NANOSECONDS);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        // commits the requests waiting for the window at once
+        void flush() {
+            lock.lock();
+            try {
+                if (window != null && window.cancel(false)) {
+                    window = null;
+                    executor.execute(this::commit);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // under the lock
+        private void drop() {
+            dropped = true;
+            queues.remove(ipSpaceId, this);
+            if (closed && queues.isEmpty())
+                drained.complete(null);
+        }
+    }
+}
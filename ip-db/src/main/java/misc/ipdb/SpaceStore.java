@@ -0,0 +1,29 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.IpSpace;
+
+import java.util.List;
+
+// the spaces of an IpDbStorage
+public interface SpaceStore {
+    // sets the id of the space
+    IpSpace insert(IpSpace ipSpace);
+
+    // the number of spaces updated (0 if there is none with its id)
+    int update(IpSpace ipSpace);
+
+    // the number of spaces deleted; a space with ranges can't be deleted
+    int delete(int id);
+
+    // or null if there is none
+    IpSpace find(int id);
+
+    // the spaces with an id after this one (or from the start if null), ordered by id
+    List<IpSpace> list(Integer afterId, int limit);
+
+    List<IpSpace> list(long offset, int limit);
+
+    // within a transaction, makes writers of the space in other processes wait until it ends (see IpDbStorage#shared)
+    default void lock(int id) {
+    }
+}
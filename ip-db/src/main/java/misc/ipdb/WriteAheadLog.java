@@ -0,0 +1,203 @@
+package misc.ipdb;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of records in numbered segment files, {@code wal-<segment>.log}. A record is framed as its length,
+ * a CRC of its bytes and the bytes, so a record torn by a crash is recognized when the log is read back.
+ * <p>
+ * Appending only writes, {@link #sync} makes the log durable up to a position: threads syncing at the same time share
+ * one {@code fsync}, the first one forces the file while the others wait, then every position written by then is
+ * durable (group commit). Positions count bytes across segments.
+ */
+class WriteAheadLog implements Closeable {
+    static final int HEADER_SIZE = 8;
+
+    private final Path directory;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition synced = lock.newCondition();
+    private FileChannel channel;
+    private long segment;
+    private long written;
+    private long durable;
+    private boolean syncing;
+
+    // appends to the end of this segment, which must have been read (and truncated after its last whole record)
+    WriteAheadLog(Path directory, long segment) {
+        this.directory = directory;
+        open(segment);
+    }
+
+    // writes the record, returns the position after it
+    long append(byte[] record) {
+        ByteBuffer buffer = frame(record);
+        lock.lock();
+        try {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            return written += buffer.capacity();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // returns once the log is durable up to this position, forcing it to disk unless another thread is already
+    void sync(long position) {
+        lock.lock();
+        try {
+            while (durable < position) {
+                if (syncing) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                long target = written;
+                FileChannel forced = channel;
+                lock.unlock();
+                try {
+                    forced.force(false);
+                } finally {
+                    lock.lock();
+                    syncing = false;
+                    synced.signalAll();
+                }
+                durable = Math.max(durable, target);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // makes the current segment durable and continues in the next one, returns the number of the next one
+    long roll() {
+        lock.lock();
+        try {
+            while (syncing)
+                synced.awaitUninterruptibly();
+            channel.force(false);
+            channel.close();
+            durable = written;
+            open(segment + 1);
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the size of the current segment
+    long segmentSize() {
+        lock.lock();
+        try {
+            return channel.size();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            channel.force(false);
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void open(long segment) {
+        try {
+            this.segment = segment;
+            this.channel = FileChannel.open(segmentPath(directory, segment),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static Path segmentPath(Path directory, long segment) {
+        return directory.resolve("wal-%016d.log".formatted(segment));
+    }
+
+    static ByteBuffer frame(byte[] record) {
+        var crc = new CRC32C();
+        crc.update(record);
+        return ByteBuffer.allocate(HEADER_SIZE + record.length)
+                .putInt(record.length)
+                .putInt((int) crc.getValue())
+                .put(record)
+                .flip();
+    }
+
+    /**
+     * Passes the whole records of a file to consumer, in order, and returns the length of the file up to the end of
+     * the last one: a record cut short or failing its CRC ends the file, as a crash may have left it there.
+     */
+    static long read(Path path, Consumer<byte[]> consumer) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size(), position = 0;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (position + HEADER_SIZE <= size) {
+                readFully(channel, header.clear(), position);
+                int length = header.getInt(0), checksum = header.getInt(4);
+                if (length < 0 || position + HEADER_SIZE + length > size)
+                    break;
+                ByteBuffer record = ByteBuffer.allocate(length);
+                readFully(channel, record, position + HEADER_SIZE);
+                var crc = new CRC32C();
+                crc.update(record.array());
+                if ((int) crc.getValue() != checksum)
+                    break;
+                consumer.accept(record.array());
+                position += HEADER_SIZE + length;
+            }
+            return position;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // cuts the file after its last whole record (see read)
+    static void truncate(Path path, long size) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            if (channel.size() > size) {
+                channel.truncate(size);
+                channel.force(true);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0)
+                throw new EOFException();
+        }
+    }
+
+    static boolean exists(Path directory, long segment) {
+        return Files.exists(segmentPath(directory, segment));
+    }
+}
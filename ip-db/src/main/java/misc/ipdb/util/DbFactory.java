@@ -1,19 +1,42 @@
 package misc.ipdb.util;
 
+import com.zaxxer.hikari.HikariDataSource;
 import org.springframework.boot.jdbc.DataSourceBuilder;
 
 import javax.sql.DataSource;
 
 public class DbFactory {
-    public static final DbFactory INSTANCE = new DbFactory();
+    public static final DbFactory INSTANCE = new DbFactory(false);
+    // connections per processor when requests run on virtual threads
+    static final int VIRTUAL_THREAD_CONNECTIONS_PER_CPU = 4;
+    // how long a request waits for a connection when requests run on virtual threads
+    static final long VIRTUAL_THREAD_CONNECTION_TIMEOUT_MS = 10_000;
+
+    private final boolean virtualThreads;
+
+    public DbFactory(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
 
     public DataSource dataSource() {
         return dataSource("jdbc:h2:mem:ipdb;MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH");
     }
 
     public DataSource dataSource(String url) {
-        return DataSourceBuilder.create()
+        return configure(DataSourceBuilder.create()
+                .type(HikariDataSource.class)
                 .url(url)
-                .build();
+                .build());
+    }
+
+    // the hikari defaults suit a pool of platform threads, which bounds how many requests wait for a connection;
+    // with virtual threads every request may wait at once, so the pool gets a few connections per processor
+    // and requests wait longer for one rather than fail. also applies to a pool that's running already
+    public HikariDataSource configure(HikariDataSource dataSource) {
+        if (virtualThreads) {
+            dataSource.setMaximumPoolSize(Runtime.getRuntime().availableProcessors() * VIRTUAL_THREAD_CONNECTIONS_PER_CPU);
+            dataSource.setConnectionTimeout(VIRTUAL_THREAD_CONNECTION_TIMEOUT_MS);
+        }
+        return dataSource;
     }
 }
@@ -6,7 +6,10 @@ import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.sql.DataSource;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
@@ -14,11 +17,20 @@ import java.sql.Statement;
 @Slf4j
 @RequiredArgsConstructor
 public class DbMigrator {
+    private static final BigInteger IPV4_END = BigInteger.ONE.shiftLeft(32);
+    private static final BigInteger IPV6_END = BigInteger.ONE.shiftLeft(128);
+
     private final DataSource dataSource;
 
+    public void migrate() {
+        Migration[] values = Migration.values();
+        migrate(values[values.length - 1]);
+    }
+
+    // applies migrations up to and including target
     @SuppressWarnings("SqlSourceToSinkFlow")
     @SneakyThrows
-    public void migrate() {
+    void migrate(Migration target) {
         try (Connection connection = dataSource.getConnection()) {
             int current;
             try {
@@ -32,13 +44,19 @@ public class DbMigrator {
             try {
                 try (Statement statement = connection.createStatement()) {
                     for (Migration value : Migration.values()) {
+                        if (value.ordinal() > target.ordinal()) break;
                         if (current >= value.ordinal()) {
                             log.info("skipping migration {} because db is at {}", value, current);
                             continue;
                         }
                         for (String query : value.getSql().split(";")) {
+                            if (query.isBlank()) continue;
                             statement.execute(query);
                         }
+                        if (value.getDataMigration() != null) {
+                            log.info("migrating data for {}", value);
+                            value.getDataMigration().migrate(connection);
+                        }
                         statement.execute("insert into migrations(id) values(%d)".formatted(value.ordinal()));
                     }
                 }
@@ -63,12 +81,99 @@ public class DbMigrator {
         return resultSet.getInt(1);
     }
 
+    // copies numeric(39) bounds of ipv6 ranges into the binary(16) columns, as 16 big endian bytes sort like numbers;
+    // a max of 2^128, the end of the address space, doesn't fit and is null (see IP_RANGE_END)
+    private static void copyIpV6Bounds(Connection connection) throws SQLException {
+        try (Statement select = connection.createStatement();
+             PreparedStatement update = connection.prepareStatement("update ip_range_v6 set min_bytes = ?, max_bytes = ? where id = ?")) {
+            ResultSet resultSet = select.executeQuery("select id, min, max from ip_range_v6");
+            int batched = 0;
+            while (resultSet.next()) {
+                int id = resultSet.getInt("id");
+                BigInteger max = resultSet.getBigDecimal("max").toBigIntegerExact();
+                update.setBytes(1, toFixedWidth(id, "min", resultSet.getBigDecimal("min").toBigIntegerExact()));
+                update.setBytes(2, max.equals(IPV6_END) ? null : toFixedWidth(id, "max", max));
+                update.setInt(3, id);
+                update.addBatch();
+                if (++batched % 1000 == 0)
+                    update.executeBatch();
+            }
+            update.executeBatch();
+            log.info("migrated bounds of {} ipv6 ranges", batched);
+        }
+    }
+
+    // copies numeric(39) journal bounds as 4 (ipv4) or 16 (ipv6) big endian bytes; the end of the address space
+    // (a max of 2^32 or 2^128) is null
+    private static void copyJournalBounds(Connection connection) throws SQLException {
+        try (Statement select = connection.createStatement();
+             PreparedStatement update = connection.prepareStatement("update change_journal set min_bytes = ?, max_bytes = ? where seq = ?")) {
+            ResultSet resultSet = select.executeQuery("select seq, version, min, max from change_journal where min is not null or max is not null");
+            int batched = 0;
+            while (resultSet.next()) {
+                long seq = resultSet.getLong("seq");
+                int width = resultSet.getInt("version") == 4 ? 4 : 16;
+                update.setBytes(1, journalBound(seq, "min", resultSet.getBigDecimal("min"), width));
+                update.setBytes(2, journalBound(seq, "max", resultSet.getBigDecimal("max"), width));
+                update.setLong(3, seq);
+                update.addBatch();
+                if (++batched % 1000 == 0)
+                    update.executeBatch();
+            }
+            update.executeBatch();
+            log.info("migrated bounds of {} journal events", batched);
+        }
+    }
+
+    private static byte[] journalBound(long seq, String column, BigDecimal value, int width) throws SQLException {
+        if (value == null)
+            return null;
+        BigInteger bound = value.toBigIntegerExact();
+        if (column.equals("max") && bound.equals(BigInteger.ONE.shiftLeft(width * 8)))
+            return null;
+        if (bound.signum() < 0 || bound.bitLength() > width * 8)
+            throw new SQLException("journal event " + seq + " has a " + column + " out of the address space: " + bound);
+        return toFixedWidth(bound, width);
+    }
+
+    // v4 bounds kept their values as bigint, the end of the address space becomes null like for ipv6
+    private static void nullIpV4Ends(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            ResultSet resultSet = statement.executeQuery("select id, min, max from ip_range_v4 " +
+                    "where min < 0 or min >= " + IPV4_END + " or max < 0 or max > " + IPV4_END + " order by id");
+            if (resultSet.next())
+                throw new SQLException("ipv4 range " + resultSet.getInt("id") + " has bounds out of the address space: " +
+                        resultSet.getLong("min") + " - " + resultSet.getLong("max"));
+            int updated = statement.executeUpdate("update ip_range_v4 set max = null where max = " + IPV4_END);
+            log.info("migrated {} ipv4 ranges ending at the end of the address space", updated);
+        }
+    }
+
+    // fails the migration (and rolls it back) rather than cutting off a bound that doesn't fit
+    private static byte[] toFixedWidth(int id, String column, BigInteger value) throws SQLException {
+        if (value.signum() < 0 || value.bitLength() > 128)
+            throw new SQLException("ipv6 range " + id + " has a " + column + " out of the address space: " + value);
+        return toFixedWidth(value, 16);
+    }
+
+    private static byte[] toFixedWidth(BigInteger value, int width) {
+        byte[] bytes = value.toByteArray();
+        byte[] result = new byte[width];
+        // toByteArray may have a leading sign byte
+        int length = Math.min(bytes.length, width);
+        System.arraycopy(bytes, bytes.length - length, result, width - length, length);
+        return result;
+    }
+
     public static void main(String[] args) {
         new DbMigrator(DbFactory.INSTANCE.dataSource()).migrate();
     }
 
+    interface DataMigration {
+        void migrate(Connection connection) throws SQLException;
+    }
+
     @SuppressWarnings("SqlDialectInspection")
-    @RequiredArgsConstructor
     @Getter
     enum Migration {
         IP_SPACE("create ip space",
@@ -107,9 +212,102 @@ public class DbMigrator {
                             unique (ip_space_id, name)
                         )
                         """),
+
+        IP_RANGE_BOUNDS("store range bounds as bigint (v4) and binary(16) (v6)",
+                // language=sql
+                """
+                        alter table ip_range_v4 alter column min set data type bigint;
+                        alter table ip_range_v4 alter column max set data type bigint;
+
+                        alter table ip_range_v6 add column min_bytes binary(16);
+                        alter table ip_range_v6 add column max_bytes binary(16)
+                        """,
+                DbMigrator::copyIpV6Bounds),
+
+        IP_RANGE_BOUNDS_INDEX("index range bounds",
+                // language=sql
+                """
+                        alter table ip_range_v6 drop column min;
+                        alter table ip_range_v6 drop column max;
+                        alter table ip_range_v6 alter column min_bytes rename to min;
+                        alter table ip_range_v6 alter column max_bytes rename to max;
+                        alter table ip_range_v6 alter column min set not null;
+
+                        create index ip_range_v4_bounds on ip_range_v4(ip_space_id, min, max);
+                        create index ip_range_v6_bounds on ip_range_v6(ip_space_id, min, max)
+                        """),
+
+        IP_SPACE_NESTED("spaces whose ranges nest",
+                // language=sql
+                """
+                        alter table ip_space add column nested boolean not null default false
+                        """),
+
+        CHANGE_JOURNAL("journal of changes to spaces and ranges",
+                // language=sql
+                """
+                        create table change_journal(
+                            seq         bigserial    primary key,
+                            type        varchar(20)  not null,
+                            ip_space_id integer      not null, -- no reference, events outlive their space
+                            ip_range_id integer      null,
+                            name        varchar(500) null,
+                            version     smallint     not null,
+                            min         numeric(39)  null,
+                            max         numeric(39)  null,
+                            created_at  timestamp    not null default localtimestamp
+                        );
+
+                        create index change_journal_space on change_journal(ip_space_id, seq)
+                        """),
+
+        CHANGE_JOURNAL_REPLICAS("journal descriptions, so replicas have whole ranges",
+                // language=sql
+                """
+                        alter table change_journal add column description varchar(500) null;
+
+                        create index change_journal_created on change_journal(created_at)
+                        """),
+
+        IP_RANGE_END("a null max is the end of the address space, past what the columns hold",
+                // language=sql
+                """
+                        alter table ip_range_v4 alter column max drop not null;
+                        alter table ip_range_v6 alter column max drop not null
+                        """,
+                DbMigrator::nullIpV4Ends),
+
+        CHANGE_JOURNAL_BOUNDS("journal bounds as the bytes of the address, like range bounds",
+                // language=sql
+                """
+                        alter table change_journal add column min_bytes varbinary(16);
+                        alter table change_journal add column max_bytes varbinary(16)
+                        """,
+                DbMigrator::copyJournalBounds),
+
+        CHANGE_JOURNAL_BOUNDS_SWAP("drop numeric journal bounds, and the index for gaps that timed out",
+                // language=sql
+                """
+                        alter table change_journal drop column min;
+                        alter table change_journal drop column max;
+                        alter table change_journal alter column min_bytes rename to min;
+                        alter table change_journal alter column max_bytes rename to max;
+                        drop index change_journal_created
+                        """),
         ;
 
         final String description;
         final String sql;
+        final DataMigration dataMigration;
+
+        Migration(String description, String sql) {
+            this(description, sql, null);
+        }
+
+        Migration(String description, String sql, DataMigration dataMigration) {
+            this.description = description;
+            this.sql = sql;
+            this.dataMigration = dataMigration;
+        }
     }
 }
@@ -0,0 +1,5 @@
+package misc.ipdb.util;
+
+// the range is not within the bounds of its space, which conflicts like an overlapping range does
+public class IpRangeOutOfBoundsException extends IpRangeConflictsException {
+}
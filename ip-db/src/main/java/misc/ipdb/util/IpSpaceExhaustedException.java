@@ -0,0 +1,4 @@
+package misc.ipdb.util;
+
+public class IpSpaceExhaustedException extends RuntimeException {
+}
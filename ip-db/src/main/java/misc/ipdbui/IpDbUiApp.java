@@ -1,24 +1,50 @@
 package misc.ipdbui;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.validation.Valid;
+import jakarta.validation.constraints.AssertTrue;
+import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.NotNull;
 import lombok.Data;
 import lombok.RequiredArgsConstructor;
 import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+import misc.ipdb.IpDbReplica;
 import misc.ipdb.IpDbService;
+import misc.ipdb.IpDbService.AllocationStrategy;
+import misc.ipdb.IpDbService.Change;
+import misc.ipdb.IpDbService.ChangePage;
+import misc.ipdb.IpDbService.ChangeType;
+import misc.ipdb.IpDbService.Cidr;
+import misc.ipdb.IpDbService.FreeGap;
+import misc.ipdb.IpDbService.IpAddress;
 import misc.ipdb.IpDbService.IpRange;
 import misc.ipdb.IpDbService.IpSpace;
+import misc.ipdb.IpDbService.IpVersion;
+import misc.ipdb.IpDbService.RangeKey;
+import misc.ipdb.IpDbStorage;
 import misc.ipdb.util.DbFactory;
 import misc.ipdb.util.IpDataNotFoundException;
+import misc.ipdb.util.IpDbReadOnlyException;
 import misc.ipdb.util.IpRangeConflictsException;
+import misc.ipdb.util.IpSpaceExhaustedException;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.thread.Threading;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
 import org.springframework.dao.DataIntegrityViolationException;
-import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.util.MultiValueMap;
@@ -26,15 +52,38 @@ import org.springframework.util.StringUtils;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.sql.DataSource;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.OptionalInt;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 
 import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.METHOD_NOT_ALLOWED;
 import static org.springframework.http.HttpStatus.NOT_FOUND;
 
+@Slf4j
 @SpringBootApplication
 class IpDbUiApp {
     public static void main(String[] args) {
@@ -44,11 +93,53 @@ class IpDbUiApp {
     @Configuration
     static class Config {
         @Bean
-        IpDbService ipDbService(Optional<DataSource> instance) {
-            IpDbService ipDbService = new IpDbService(instance.orElse(DbFactory.INSTANCE.dataSource()));
-            ipDbService.dbMigrator().migrate();
+        IpDbService ipDbService(IpDbStorage storage, MeterRegistry meterRegistry, Environment environment) {
+            var ipDbService = new IpDbService(storage, meterRegistry);
+            // group commit of single reservations and releases
+            ipDbService.setGroupCommit(environment.getProperty("ipdb.group-commit.max-batch-size", Integer.class, 256),
+                    environment.getProperty("ipdb.group-commit.window", Duration.class, Duration.ofMillis(1)));
             return ipDbService;
         }
+
+        // ipdb.storage: jdbc (default), file (in ipdb.file.directory) or memory
+        @Bean
+        IpDbStorage ipDbStorage(Optional<DataSource> instance, Environment environment) {
+            boolean replica = environment.getProperty("ipdb.replica.enabled", Boolean.class, false);
+            String engine = environment.getProperty("ipdb.storage", "jdbc");
+            if (replica && !engine.equals("jdbc"))
+                throw new IllegalArgumentException("replicas follow the database of their primary, they need jdbc storage");
+            IpDbStorage storage = switch (engine) {
+                case "jdbc" -> {
+                    var dbFactory = new DbFactory(virtualThreads(environment));
+                    yield IpDbStorage.jdbc(instance
+                            .map(d -> d instanceof HikariDataSource hikari ? dbFactory.configure(hikari) : d)
+                            .orElseGet(dbFactory::dataSource));
+                }
+                case "file" -> IpDbStorage.file(Path.of(environment.getRequiredProperty("ipdb.file.directory")));
+                case "memory" -> IpDbStorage.memory();
+                default -> throw new IllegalArgumentException("unknown ipdb.storage " + engine);
+            };
+            // replicas use the schema of their primary
+            if (!replica)
+                storage.migrate();
+            return storage;
+        }
+
+        // spring.threads.virtual.enabled, which spring only honours on java 21 and later; the build targets java 17,
+        // so this mode is not covered by the tests (VirtualThreadsLoadITest is skipped there)
+        static boolean virtualThreads(Environment environment) {
+            boolean active = Threading.VIRTUAL.isActive(environment);
+            if (!active && environment.getProperty("spring.threads.virtual.enabled", Boolean.class, false))
+                log.warn("spring.threads.virtual.enabled is ignored on java {}, it needs java 21", Runtime.version().feature());
+            return active;
+        }
+
+        // a read-only node serving lookups from memory, following the changes made through the primary
+        @Bean
+        @ConditionalOnProperty("ipdb.replica.enabled")
+        IpDbReplica ipDbReplica(IpDbService ipDbService) {
+            return new IpDbReplica(ipDbService);
+        }
     }
 
     @RequiredArgsConstructor
@@ -56,18 +147,26 @@ class IpDbUiApp {
     @RequestMapping("/")
     static class ViewRouter {
         final ApiRouter apiRouter;
+        final IpDbService ipDbService;
         final ObjectMapper objectMapper;
 
         @GetMapping("/")
-        String home(Model model, Pageable pageable) {
-            model.addAttribute("spaces", apiRouter.spaces(pageable).stream().map(IpSpaceDto::from).toList());
+        String home(Model model, Pageable pageable, @RequestParam(name = "next", required = false) String next) {
+            var page = apiRouter.spaces(pageable, next);
+            model.addAttribute("spaces", page.items().stream().map(IpSpaceDto::from).toList());
+            model.addAttribute("next", page.next());
             return "home";
         }
 
         @GetMapping("/spaces/{id}")
-        String home(Model model, Pageable pageable, @PathVariable("id") int id) {
-            model.addAttribute("ranges", apiRouter.ranges(id, pageable));
+        String home(Model model, Pageable pageable, @PathVariable("id") int id,
+                    @RequestParam(name = "next", required = false) String next) {
+            var page = apiRouter.ranges(id, pageable, next);
+            model.addAttribute("ranges", page.items());
+            model.addAttribute("next", page.next());
             model.addAttribute("space", apiRouter.getSpace(id));
+            // loads the index of the space if it isn't yet
+            model.addAttribute("stats", apiRouter.stats(id));
             return "space";
         }
 
@@ -103,15 +202,22 @@ class IpDbUiApp {
     @RestController
     @RequestMapping("/api/v1")
     static class ApiRouter {
-        final IpDbService ipDbService;
+        // addresses resolved (and results written) at a time by resolve
+        static final int RESOLVE_CHUNK_SIZE = 1024;
+        static final int CHANGES_MAX_LIMIT = 1000;
+        // longest a request waits for changes, a stream writes a keepalive as often
+        static final Duration CHANGES_MAX_WAIT = Duration.ofSeconds(30);
+        static final Duration CHANGES_STREAM_DURATION = Duration.ofMinutes(10);
 
-        private static PageRequest toPageReq(Pageable p) {
-            return PageRequest.of(p.getPageNumber(), p.getPageSize());
-        }
+        final IpDbService ipDbService;
+        final ObjectMapper objectMapper;
 
+        // keyset paged, pass the returned next token to continue after the last space
         @GetMapping("/spaces")
-        List<IpSpace> spaces(Pageable p) {
-            return ipDbService.listSpaces(toPageReq(p));
+        PageDto<IpSpace> spaces(Pageable p, @RequestParam(name = "next", required = false) String next) {
+            Integer afterId = next == null ? null : parseToken(next, Integer::parseInt);
+            List<IpSpace> ipSpaces = ipDbService.listSpaces(afterId, p.getPageSize() + 1);
+            return PageDto.of(ipSpaces, p.getPageSize(), last -> toToken(String.valueOf(last.getId())));
         }
 
         @PostMapping("/spaces")
@@ -137,9 +243,88 @@ class IpDbUiApp {
                     .orElseThrow(() -> new ResponseStatusException(NOT_FOUND));
         }
 
+        @GetMapping("/spaces/{id}/stats")
+        SpaceStatsDto stats(@PathVariable("id") int id) {
+            try {
+                return SpaceStatsDto.from(ipDbService.stats(id));
+            } catch (IpDataNotFoundException e) {
+                throw new ResponseStatusException(NOT_FOUND);
+            }
+        }
+
+        // the free gaps between the ranges of the space, keyset paged on the min of the last gap;
+        // minSize (a number of addresses) leaves out smaller gaps
+        @GetMapping("/spaces/{id}/free")
+        PageDto<FreeGapDto> free(@PathVariable("id") int id, Pageable p,
+                                 @RequestParam(name = "minSize", required = false) BigInteger minSize,
+                                 @RequestParam(name = "next", required = false) String next) {
+            IpSpace ipSpace = getSpace(id);
+            if (minSize != null && minSize.signum() < 0)
+                throw new ResponseStatusException(BAD_REQUEST, "minSize can't be negative");
+            IpAddress after = next == null ? null : parseToken(next, key -> IpAddress.from(key, ipSpace.getIpVersion()));
+            try {
+                List<FreeGap> gaps = ipDbService.listFree(id, after, minSize, p.getPageSize() + 1);
+                return PageDto.of(gaps, p.getPageSize(),
+                        last -> toToken(last.min().address())
+                ).map(FreeGapDto::from);
+            } catch (IpDataNotFoundException e) {
+                throw new ResponseStatusException(NOT_FOUND);
+            }
+        }
+
+        // keyset paged on (min, max), pass the returned next token to continue after the last range
         @GetMapping("/spaces/{id}/ranges")
-        List<IpRangeDto> ranges(@PathVariable("id") int id, Pageable p) {
-            return ipDbService.listRanges(getSpace(id), toPageReq(p)).stream().map(IpRangeDto::from).toList();
+        PageDto<IpRangeDto> ranges(@PathVariable("id") int id, Pageable p,
+                                   @RequestParam(name = "next", required = false) String next) {
+            IpSpace ipSpace = getSpace(id);
+            RangeKey after = next == null ? null : parseRangeToken(next, ipSpace.getIpVersion());
+            List<IpRange> ipRanges = ipDbService.listRanges(ipSpace, after, p.getPageSize() + 1);
+            return PageDto.of(ipRanges, p.getPageSize(), ApiRouter::toRangeToken).map(IpRangeDto::from);
+        }
+
+        private static String toRangeToken(IpRange last) {
+            return toToken(last.minAddress().address() + " " + last.maxAddress().address());
+        }
+
+        private static RangeKey parseRangeToken(String token, IpVersion ipVersion) {
+            return parseToken(token, key -> {
+                String[] parts = key.split(" ", -1);
+                if (parts.length != 2)
+                    throw new IllegalArgumentException("not a range key: " + key);
+                return new RangeKey(IpAddress.from(parts[0], ipVersion), IpAddress.from(parts[1], ipVersion));
+            });
+        }
+
+        // continuation tokens are opaque to clients: the url-safe base64 of the key of the last item of a page, its
+        // addresses as text
+        private static String toToken(String key) {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static <T> T parseToken(String token, Function<String, T> parser) {
+            try {
+                return parser.apply(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8));
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                throw new ResponseStatusException(BAD_REQUEST, "invalid continuation token");
+            }
+        }
+
+        // the top level ranges of a nested space
+        @GetMapping("/spaces/{id}/children")
+        List<IpRangeDto> children(@PathVariable("id") int id) {
+            return children(id, null);
+        }
+
+        // the ranges nested directly in this range of a nested space
+        @GetMapping("/spaces/{id}/ranges/{rangeId}/children")
+        List<IpRangeDto> children(@PathVariable("id") int id, @PathVariable("rangeId") Integer rangeId) {
+            try {
+                return ipDbService.children(id, rangeId).stream().map(IpRangeDto::from).toList();
+            } catch (IpDataNotFoundException e) {
+                throw new ResponseStatusException(NOT_FOUND);
+            } catch (IllegalArgumentException e) {
+                throw new ResponseStatusException(BAD_REQUEST, e.getMessage());
+            }
         }
 
         @GetMapping("/spaces/{id}/ranges/{rangeId}")
@@ -157,20 +342,225 @@ class IpDbUiApp {
         IpRangeDto createRange(@PathVariable("id") int id, @Valid @RequestBody IpRangeDto ipRange) {
             ipRange.setIpSpaceId(id);
             try {
-                // we would only know if its v4 or v6 at this stage if we include it as hidden inputs
-                // consider using hidden inputs instead
-                return IpRangeDto.from(ipDbService.reserve(ipRange.toIpRange(), ipRange.getMin(), ipRange.getMax()));
+                IpSpace ipSpace = Optional.ofNullable(ipDbService.findSpace(id)).orElseThrow(IpDataNotFoundException::new);
+                // committed together with the other reservations to the space made meanwhile
+                return IpRangeDto.from(await(ipDbService.reserveAsync(ipRange.toIpRange(ipSpace))));
             } catch (IpDataNotFoundException e) {
                 throw new ResponseStatusException(NOT_FOUND);
-            } catch (IpRangeConflictsException | DataIntegrityViolationException e) {
+            } catch (IllegalArgumentException | IpRangeConflictsException | DataIntegrityViolationException e) {
                 throw new ResponseStatusException(BAD_REQUEST);
             }
         }
 
+        // all or nothing - 400 with the conflicts if any range overlaps another one
+        @PostMapping("/spaces/{id}/ranges/bulk")
+        ResponseEntity<List<?>> createRanges(@PathVariable("id") int id, @Valid @RequestBody BulkRangesDto bulk) {
+            IpSpace ipSpace = getSpace(id);
+            try {
+                var reservation = ipDbService.reserveAll(id, bulk.getRanges().stream().map(r -> r.toIpRange(ipSpace)).toList());
+                if (!reservation.conflicts().isEmpty())
+                    return ResponseEntity.badRequest().body(reservation.conflicts().stream().map(ConflictDto::from).toList());
+                return ResponseEntity.ok(reservation.reserved().stream().map(IpRangeDto::from).toList());
+            } catch (IpDataNotFoundException e) {
+                throw new ResponseStatusException(NOT_FOUND);
+            } catch (IllegalArgumentException | DataIntegrityViolationException e) {
+                throw new ResponseStatusException(BAD_REQUEST);
+            }
+        }
+
+        @PostMapping("/spaces/{id}/allocations")
+        IpRangeDto allocate(@PathVariable("id") int id, @Valid @RequestBody AllocationDto allocation) {
+            IpSpace ipSpace = getSpace(id);
+            try {
+                int prefixLength = allocation.getPrefixLength() != null
+                        ? allocation.getPrefixLength()
+                        : ipSpace.getIpVersion().prefixLength(allocation.getSize());
+                IpRange ipRange = new IpRange()
+                        .setIpSpaceId(id)
+                        .setIpSpace(ipSpace)
+                        .setName(allocation.getName())
+                        .setDescription(allocation.getDescription());
+                return IpRangeDto.from(ipDbService.allocate(ipRange, prefixLength, allocation.getStrategy()));
+            } catch (IpDataNotFoundException e) {
+                throw new ResponseStatusException(NOT_FOUND);
+            } catch (IllegalArgumentException | IpSpaceExhaustedException | IpRangeConflictsException |
+                     DataIntegrityViolationException e) {
+                throw new ResponseStatusException(BAD_REQUEST);
+            }
+        }
+
+        // the range of each address (null if there is none), in the order of the request
+        @PostMapping("/spaces/{id}/lookup")
+        List<LookupResultDto> lookup(@PathVariable("id") int id, @Valid @RequestBody LookupDto lookup) {
+            IpSpace ipSpace = getSpace(id);
+            try {
+                List<IpAddress> ipAddresses = lookup.getAddresses().stream()
+                        .map(a -> IpAddress.from(a, ipSpace.getIpVersion()))
+                        .toList();
+                Map<IpAddress, IpRange> ranges = ipDbService.rangeOf(id, ipAddresses);
+                // the index hands out the same instance for every address in a range
+                Map<IpRange, IpRangeDto> dtos = new IdentityHashMap<>();
+                List<LookupResultDto> results = new ArrayList<>(ipAddresses.size());
+                for (int i = 0; i < ipAddresses.size(); i++) {
+                    IpRange ipRange = ranges.get(ipAddresses.get(i));
+                    results.add(new LookupResultDto(lookup.getAddresses().get(i),
+                            ipRange == null ? null : dtos.computeIfAbsent(ipRange, IpRangeDto::from)));
+                }
+                return results;
+            } catch (IpDataNotFoundException e) {
+                throw new ResponseStatusException(NOT_FOUND);
+            } catch (IllegalArgumentException e) {
+                throw new ResponseStatusException(BAD_REQUEST, e.getMessage());
+            }
+        }
+
+        // resolves an ndjson stream of addresses (json strings, or objects with an address) into a stream of lookup
+        // results in the same order, a chunk at a time: only one chunk is held and a slow reader slows the sender down.
+        // a bad address is a 400 within the first chunk, after that it ends the response early
+        @PostMapping(path = "/spaces/{id}/resolve", consumes = "application/x-ndjson")
+        void resolve(@PathVariable("id") int id, HttpServletRequest request, HttpServletResponse response) throws IOException {
+            IpSpace ipSpace = getSpace(id);
+            var reader = new BufferedReader(new InputStreamReader(request.getInputStream(), StandardCharsets.UTF_8));
+            response.setContentType("application/x-ndjson");
+            response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+            var writer = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+            List<String> addresses = new ArrayList<>(RESOLVE_CHUNK_SIZE);
+            List<IpAddress> ipAddresses = new ArrayList<>(RESOLVE_CHUNK_SIZE);
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.isBlank())
+                    continue;
+                addresses.add(parseAddress(line));
+                if (addresses.size() == RESOLVE_CHUNK_SIZE) {
+                    resolveChunk(ipSpace, addresses, ipAddresses, writer);
+                    writer.flush();
+                }
+            }
+            resolveChunk(ipSpace, addresses, ipAddresses, writer);
+            writer.flush();
+        }
+
+        private String parseAddress(String line) throws IOException {
+            try {
+                return switch (line.strip().charAt(0)) {
+                    case '"' -> objectMapper.readValue(line, String.class);
+                    case '{' -> objectMapper.readTree(line).path("address").asText();
+                    default -> line.strip();
+                };
+            } catch (IOException e) {
+                throw new ResponseStatusException(BAD_REQUEST, e.getMessage());
+            }
+        }
+
+        private void resolveChunk(IpSpace ipSpace, List<String> addresses, List<IpAddress> ipAddresses, Writer writer) throws IOException {
+            Map<IpAddress, IpRange> ranges;
+            try {
+                for (String address : addresses)
+                    ipAddresses.add(IpAddress.from(address, ipSpace.getIpVersion()));
+                ranges = ipDbService.rangeOf(ipSpace.getId(), ipAddresses);
+            } catch (IpDataNotFoundException e) {
+                throw new ResponseStatusException(NOT_FOUND);
+            } catch (IllegalArgumentException e) {
+                throw new ResponseStatusException(BAD_REQUEST, e.getMessage());
+            }
+            Map<IpRange, IpRangeDto> dtos = new IdentityHashMap<>();
+            for (int i = 0; i < addresses.size(); i++) {
+                IpRange ipRange = ranges.get(ipAddresses.get(i));
+                writer.write(objectMapper.writeValueAsString(new LookupResultDto(addresses.get(i),
+                        ipRange == null ? null : dtos.computeIfAbsent(ipRange, IpRangeDto::from))));
+                writer.write('\n');
+            }
+            addresses.clear();
+            ipAddresses.clear();
+        }
+
+        // the ranges of the space summarized into the fewest cidr blocks, one per line, e.g. for route aggregation
+        @GetMapping(path = "/spaces/{id}/aggregate", produces = MediaType.TEXT_PLAIN_VALUE)
+        StreamingResponseBody aggregateRanges(@PathVariable("id") int id) {
+            IpSpace ipSpace = getSpace(id);
+            return out -> {
+                var writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                ipDbService.aggregateRanges(ipSpace, cidr -> {
+                    try {
+                        writer.write(cidr.toString());
+                        writer.write('\n');
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                writer.flush();
+            };
+        }
+
+        // streams every range of the space, ordered by min, without loading them all
+        @GetMapping("/spaces/{id}/export")
+        ResponseEntity<StreamingResponseBody> exportRanges(@PathVariable("id") int id,
+                                                           @RequestParam(name = "format", defaultValue = "ndjson") String format) {
+            IpSpace ipSpace = getSpace(id);
+            RangeFormat rangeFormat = toRangeFormat(format);
+            StreamingResponseBody body = out -> {
+                var writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                rangeFormat.writeHeader(writer);
+                ipDbService.exportRanges(ipSpace, ipRange -> {
+                    try {
+                        rangeFormat.write(writer, IpRangeDto.from(ipRange), objectMapper);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                writer.flush();
+            };
+            return ResponseEntity.ok()
+                    .contentType(MediaType.parseMediaType(rangeFormat.getContentType()))
+                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"space-" + id + "." + rangeFormat.name().toLowerCase() + "\"")
+                    .body(body);
+        }
+
+        // reads the body a record at a time (ndjson or csv, by content type), reserving in batches;
+        // on a conflict the batches before it stay imported and the conflicts are returned with a 400
+        @PostMapping(path = "/spaces/{id}/import", consumes = {"application/x-ndjson", "text/csv"})
+        ResponseEntity<ImportDto> importRanges(@PathVariable("id") int id, HttpServletRequest request) throws IOException {
+            IpSpace ipSpace = getSpace(id);
+            RangeFormat rangeFormat = RangeFormat.fromContentType(request.getContentType());
+            var reader = new BufferedReader(new InputStreamReader(request.getInputStream(), StandardCharsets.UTF_8));
+            Iterator<IpRangeDto> records = rangeFormat.read(reader, objectMapper);
+            Iterator<IpRange> ipRanges = new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return records.hasNext();
+                }
+
+                @Override
+                public IpRange next() {
+                    IpRangeDto dto = records.next();
+                    if (dto.getName() == null || !dto.isCidrOrBounds())
+                        throw new IllegalArgumentException("name and either cidr or min and max are required");
+                    // ids of an export are not kept
+                    return dto.setId(null).toIpRange(ipSpace);
+                }
+            };
+            try {
+                var result = ipDbService.importRanges(id, ipRanges);
+                var importDto = new ImportDto(result.imported(), result.conflicts().stream().map(ConflictDto::from).toList());
+                return result.conflicts().isEmpty() ? ResponseEntity.ok(importDto) : ResponseEntity.badRequest().body(importDto);
+            } catch (IpDataNotFoundException e) {
+                throw new ResponseStatusException(NOT_FOUND);
+            } catch (IllegalArgumentException | UncheckedIOException | DataIntegrityViolationException e) {
+                throw new ResponseStatusException(BAD_REQUEST, e.getMessage());
+            }
+        }
+
+        private static RangeFormat toRangeFormat(String format) {
+            try {
+                return RangeFormat.valueOf(format.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new ResponseStatusException(BAD_REQUEST, "unknown format " + format);
+            }
+        }
+
         @DeleteMapping("/spaces/{id}/ranges/{rangeId}")
         IpRangeDto deleteRange(@PathVariable("id") int id, @PathVariable("rangeId") int rangeId) {
             try {
-                return IpRangeDto.from(ipDbService.release(range(id, rangeId)));
+                return IpRangeDto.from(await(ipDbService.releaseAsync(range(id, rangeId))));
             } catch (IpDataNotFoundException e) {
                 throw new ResponseStatusException(NOT_FOUND);
             } catch (IpRangeConflictsException | DataIntegrityViolationException e) {
@@ -178,6 +568,152 @@ class IpDbUiApp {
             }
         }
 
+        // branches are in memory only: a restart drops them
+        @PostMapping("/spaces/{id}/branches")
+        BranchDto createBranch(@PathVariable("id") int id, @Valid @RequestBody BranchDto branch) {
+            try {
+                return BranchDto.from(ipDbService.createBranch(id, branch.getName()));
+            } catch (IpDataNotFoundException e) {
+                throw new ResponseStatusException(NOT_FOUND);
+            } catch (IllegalArgumentException e) {
+                throw new ResponseStatusException(BAD_REQUEST, e.getMessage());
+            }
+        }
+
+        @GetMapping("/spaces/{id}/branches")
+        List<BranchDto> branches(@PathVariable("id") int id) {
+            return ipDbService.listBranches(id).stream().map(BranchDto::from).toList();
+        }
+
+        @DeleteMapping("/spaces/{id}/branches/{name}")
+        BranchDto deleteBranch(@PathVariable("id") int id, @PathVariable("name") String name) {
+            return Optional.ofNullable(ipDbService.deleteBranch(id, name)).map(BranchDto::from)
+                    .orElseThrow(() -> new ResponseStatusException(NOT_FOUND));
+        }
+
+        // keyset paged like the ranges of the space
+        @GetMapping("/spaces/{id}/branches/{name}/ranges")
+        PageDto<IpRangeDto> branchRanges(@PathVariable("id") int id, @PathVariable("name") String name, Pageable p,
+                                         @RequestParam(name = "next", required = false) String next) {
+            IpSpace ipSpace = getSpace(id);
+            RangeKey after = next == null ? null : parseRangeToken(next, ipSpace.getIpVersion());
+            try {
+                List<IpRange> ipRanges = ipDbService.listBranchRanges(id, name, after, p.getPageSize() + 1);
+                return PageDto.of(ipRanges, p.getPageSize(), ApiRouter::toRangeToken).map(IpRangeDto::from);
+            } catch (IpDataNotFoundException e) {
+                throw new ResponseStatusException(NOT_FOUND);
+            }
+        }
+
+        @PostMapping("/spaces/{id}/branches/{name}/ranges")
+        IpRangeDto createBranchRange(@PathVariable("id") int id, @PathVariable("name") String name,
+                                     @Valid @RequestBody IpRangeDto ipRange) {
+            IpSpace ipSpace = getSpace(id);
+            try {
+                return IpRangeDto.from(ipDbService.reserveInBranch(id, name, ipRange.toIpRange(ipSpace)));
+            } catch (IpDataNotFoundException e) {
+                throw new ResponseStatusException(NOT_FOUND);
+            } catch (IllegalArgumentException | IpRangeConflictsException e) {
+                throw new ResponseStatusException(BAD_REQUEST);
+            }
+        }
+
+        @DeleteMapping("/spaces/{id}/branches/{name}/ranges/{rangeId}")
+        IpRangeDto deleteBranchRange(@PathVariable("id") int id, @PathVariable("name") String name,
+                                     @PathVariable("rangeId") int rangeId) {
+            try {
+                return Optional.ofNullable(ipDbService.releaseInBranch(id, name, rangeId)).map(IpRangeDto::from)
+                        .orElseThrow(() -> new ResponseStatusException(NOT_FOUND));
+            } catch (IpDataNotFoundException e) {
+                throw new ResponseStatusException(NOT_FOUND);
+            }
+        }
+
+        // the ranges reserved and released on the branch since it was created
+        @GetMapping("/spaces/{id}/branches/{name}/diff")
+        BranchDiffDto diffBranch(@PathVariable("id") int id, @PathVariable("name") String name) {
+            try {
+                return BranchDiffDto.from(ipDbService.diffBranch(id, name));
+            } catch (IpDataNotFoundException e) {
+                throw new ResponseStatusException(NOT_FOUND);
+            }
+        }
+
+        // all or nothing like bulk - 400 with the conflicts if a range reserved on the branch overlaps one reserved
+        // on the space since, otherwise the ranges reserved (with ids of the space) and the branch is gone
+        @PostMapping("/spaces/{id}/branches/{name}/merge")
+        ResponseEntity<List<?>> mergeBranch(@PathVariable("id") int id, @PathVariable("name") String name) {
+            try {
+                var reservation = ipDbService.mergeBranch(id, name);
+                if (!reservation.conflicts().isEmpty())
+                    return ResponseEntity.badRequest().body(reservation.conflicts().stream().map(ConflictDto::from).toList());
+                return ResponseEntity.ok(reservation.reserved().stream().map(IpRangeDto::from).toList());
+            } catch (IpDataNotFoundException e) {
+                throw new ResponseStatusException(NOT_FOUND);
+            } catch (DataIntegrityViolationException e) {
+                throw new ResponseStatusException(BAD_REQUEST);
+            }
+        }
+
+        // the outcome of a call committed by the reservation pipeline, failing like the call itself would
+        static <T> T await(CompletableFuture<T> future) {
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException cause ? cause : e;
+            }
+        }
+
+        @ExceptionHandler(IpDbReadOnlyException.class)
+        void readOnly(HttpServletResponse response) throws IOException {
+            response.sendError(METHOD_NOT_ALLOWED.value(), "read-only replica, writes go to the primary");
+        }
+
+        // the journal of changes after a sequence number, of one space or all of them; continue after the returned
+        // next. with wait (seconds) the request is held until there is a change or the wait is over (long polling)
+        @GetMapping("/changes")
+        ChangePageDto changes(@RequestParam(name = "after", defaultValue = "0") long after,
+                              @RequestParam(name = "spaceId", required = false) Integer spaceId,
+                              @RequestParam(name = "limit", defaultValue = "100") int limit,
+                              @RequestParam(name = "wait", defaultValue = "0") int wait) {
+            if (limit < 1 || limit > CHANGES_MAX_LIMIT || wait < 0)
+                throw new ResponseStatusException(BAD_REQUEST);
+            return ChangePageDto.from(wait == 0
+                    ? ipDbService.changes(after, spaceId, limit)
+                    : ipDbService.awaitChanges(after, spaceId, limit, Duration.ofSeconds(Math.min(wait, CHANGES_MAX_WAIT.toSeconds()))));
+        }
+
+        // the journal as server-sent events, with the sequence number as event id, so a reconnecting EventSource
+        // continues after the last event it got (Last-Event-ID). ends after a while, clients reconnect
+        @GetMapping(path = "/changes/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+        void streamChanges(@RequestParam(name = "after", defaultValue = "0") long after,
+                           @RequestParam(name = "spaceId", required = false) Integer spaceId,
+                           @RequestHeader(name = "Last-Event-ID", required = false) Long lastEventId,
+                           HttpServletResponse response) throws IOException {
+            response.setContentType(MediaType.TEXT_EVENT_STREAM_VALUE);
+            response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+            var writer = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+            long end = System.nanoTime() + CHANGES_STREAM_DURATION.toNanos();
+            long position = lastEventId != null ? lastEventId : after;
+            try {
+                while (System.nanoTime() < end) {
+                    ChangePage page = ipDbService.awaitChanges(position, spaceId, CHANGES_MAX_LIMIT, CHANGES_MAX_WAIT);
+                    for (Change change : page.changes()) {
+                        writer.write("id: " + change.seq() + "\nevent: change\ndata: ");
+                        writer.write(objectMapper.writeValueAsString(ChangeDto.from(change)));
+                        writer.write("\n\n");
+                    }
+                    if (page.changes().isEmpty())
+                        // keeps proxies from closing an idle connection
+                        writer.write(": keepalive\n\n");
+                    writer.flush();
+                    position = page.next();
+                }
+            } catch (IOException e) {
+                // the client went away, nothing to respond to
+            }
+        }
+
     }
 
     @Data
@@ -191,6 +727,7 @@ class IpDbUiApp {
         Integer version;
         String min;
         String max;
+        boolean nested;
 
         static IpSpaceDto from(IpSpace ipSpace) {
             return new IpSpaceDto()
@@ -200,6 +737,7 @@ class IpDbUiApp {
                     .setVersion(ipSpace.getVersion())
                     .setMin(Optional.ofNullable(ipSpace.getMin()).map(m -> IpDbService.IpAddress.from(m, ipSpace.getIpVersion()).address()).orElse(null))
                     .setMax(Optional.ofNullable(ipSpace.getMax()).map(m -> IpDbService.IpAddress.from(m, ipSpace.getIpVersion()).address()).orElse(null))
+                    .setNested(ipSpace.isNested())
                     ;
         }
 
@@ -211,10 +749,29 @@ class IpDbUiApp {
                     .setVersion(version)
                     .setMin(Optional.ofNullable(getMin()).filter(StringUtils::hasText).map(m -> IpDbService.IpAddress.from(m, IpDbService.IpVersion.from(version)).toBigInteger()).orElse(null))
                     .setMax(Optional.ofNullable(getMax()).filter(StringUtils::hasText).map(m -> IpDbService.IpAddress.from(m, IpDbService.IpVersion.from(version)).toBigInteger()).orElse(null))
+                    .setNested(nested)
                     ;
         }
     }
 
+    @Data
+    @Accessors(chain = true)
+    public static class AllocationDto {
+        @NotNull
+        String name;
+        String description;
+        Integer prefixLength;
+        // number of addresses, rounded up to a block
+        BigInteger size;
+        @NotNull
+        AllocationStrategy strategy = AllocationStrategy.FIRST_FIT;
+
+        @AssertTrue(message = "exactly one of prefixLength and size is required")
+        boolean isPrefixLengthOrSize() {
+            return (prefixLength == null) != (size == null);
+        }
+    }
+
     @Data
     @Accessors(chain = true)
     public static class IpRangeDto {
@@ -223,10 +780,16 @@ class IpDbUiApp {
         @NotNull
         String name;
         String description;
-        @NotNull
         String min;
-        @NotNull
         String max;
+        // instead of min and max, in requests
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        String cidr;
+
+        @AssertTrue(message = "either cidr or min and max are required")
+        boolean isCidrOrBounds() {
+            return cidr != null ? min == null && max == null : min != null && max != null;
+        }
 
         static IpRangeDto from(IpRange ipRange) {
             return new IpRangeDto()
@@ -246,5 +809,114 @@ class IpDbUiApp {
                     .setName(name)
                     .setDescription(description);
         }
+
+        IpRange toIpRange(IpSpace ipSpace) {
+            IpRange ipRange = toIpRange()
+                    .setIpSpaceId(ipSpace.getId())
+                    .setIpSpace(ipSpace);
+            if (cidr != null) {
+                Cidr block = Cidr.parse(cidr, ipSpace.getIpVersion());
+                return ipRange.setMinFromIp(block.min()).setMaxFromIp(block.max());
+            }
+            return ipRange
+                    .setMinFromIp(IpDbService.IpAddress.from(min, ipSpace.getIpVersion()))
+                    .setMaxFromIp(IpDbService.IpAddress.from(max, ipSpace.getIpVersion()));
+        }
+    }
+
+    @Data
+    @Accessors(chain = true)
+    public static class BulkRangesDto {
+        @NotNull
+        List<@Valid @NotNull IpRangeDto> ranges;
+    }
+
+    // a page of items, next is the continuation token for the following page (null on the last page)
+    public record PageDto<T>(List<T> items, String next) {
+        // items holds up to size + 1 entries, the extra one only tells whether there is a next page
+        static <T> PageDto<T> of(List<T> items, int size, Function<T, String> token) {
+            if (items.size() <= size)
+                return new PageDto<>(items, null);
+            List<T> page = items.subList(0, size);
+            return new PageDto<>(page, token.apply(page.get(size - 1)));
+        }
+
+        <R> PageDto<R> map(Function<T, R> mapper) {
+            return new PageDto<>(items.stream().map(mapper).toList(), next);
+        }
+    }
+
+    @Data
+    @Accessors(chain = true)
+    public static class LookupDto {
+        @NotNull
+        List<@NotNull String> addresses;
+    }
+
+    public record LookupResultDto(String address, IpRangeDto range) {
+    }
+
+    public record ImportDto(long imported, List<ConflictDto> conflicts) {
+    }
+
+    public record SpaceStatsDto(int ranges, BigInteger size, BigInteger used, BigInteger free,
+                                BigInteger largestFree, String largestFreeMin, String largestFreeMax) {
+        static SpaceStatsDto from(IpDbService.SpaceStats stats) {
+            return new SpaceStatsDto(stats.ranges(), stats.size(), stats.used(), stats.free(), stats.largestFree(),
+                    stats.largestFreeStart() == null ? null : stats.largestFreeStart().address(),
+                    stats.largestFreeEnd() == null ? null : stats.largestFreeEnd().address());
+        }
+    }
+
+    public record FreeGapDto(String min, String max, BigInteger size) {
+        static FreeGapDto from(FreeGap gap) {
+            return new FreeGapDto(gap.min().address(), gap.max().address(), gap.size());
+        }
+    }
+
+    public record ChangeDto(long seq, ChangeType type, int spaceId, Integer rangeId, String name, String description,
+                            String min, String max, Instant createdAt) {
+        static ChangeDto from(Change change) {
+            return new ChangeDto(change.seq(), change.type(), change.ipSpaceId(), change.ipRangeId(), change.name(),
+                    change.description(),
+                    change.min() == null ? null : change.min().address(),
+                    change.max() == null ? null : change.max().address(),
+                    change.createdAt());
+        }
+    }
+
+    public record ChangePageDto(List<ChangeDto> changes, long next) {
+        static ChangePageDto from(ChangePage page) {
+            return new ChangePageDto(page.changes().stream().map(ChangeDto::from).toList(), page.next());
+        }
+    }
+
+    @Data
+    @Accessors(chain = true)
+    public static class BranchDto {
+        Integer spaceId;
+        @NotBlank
+        String name;
+        // in responses
+        Integer ranges;
+
+        static BranchDto from(IpDbService.Branch branch) {
+            return new BranchDto().setSpaceId(branch.ipSpaceId()).setName(branch.name()).setRanges(branch.ranges());
+        }
+    }
+
+    public record BranchDiffDto(List<IpRangeDto> added, List<IpRangeDto> removed) {
+        static BranchDiffDto from(IpDbService.BranchDiff diff) {
+            return new BranchDiffDto(diff.added().stream().map(IpRangeDto::from).toList(),
+                    diff.removed().stream().map(IpRangeDto::from).toList());
+        }
+    }
+
+    public record ConflictDto(int position, IpRangeDto range, List<IpRangeDto> conflictsWith) {
+        static ConflictDto from(IpDbService.Conflict conflict) {
+            return new ConflictDto(conflict.position(),
+                    IpRangeDto.from(conflict.ipRange()),
+                    conflict.conflictsWith().stream().map(IpRangeDto::from).toList());
+        }
     }
 }
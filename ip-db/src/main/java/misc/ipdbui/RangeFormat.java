@@ -0,0 +1,202 @@
+package misc.ipdbui;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import misc.ipdbui.IpDbUiApp.IpRangeDto;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Record-at-a-time formats for exporting and importing the ranges of a space, so neither side is held in memory.
+ */
+@RequiredArgsConstructor
+@Getter
+enum RangeFormat {
+    // one IpRangeDto json object per line
+    NDJSON("application/x-ndjson") {
+        @Override
+        void writeHeader(Writer writer) {
+        }
+
+        @Override
+        void write(Writer writer, IpRangeDto ipRangeDto, ObjectMapper objectMapper) throws IOException {
+            writer.write(objectMapper.writeValueAsString(ipRangeDto));
+            writer.write('\n');
+        }
+
+        @Override
+        Iterator<IpRangeDto> read(BufferedReader reader, ObjectMapper objectMapper) {
+            return new RecordIterator() {
+                @Override
+                IpRangeDto readRecord() throws IOException {
+                    String line;
+                    do {
+                        line = reader.readLine();
+                    } while (line != null && line.isBlank());
+                    return line == null ? null : objectMapper.readValue(line, IpRangeDto.class);
+                }
+            };
+        }
+    },
+
+    // rfc 4180, with a header row naming the columns
+    CSV("text/csv") {
+        private static final List<String> COLUMNS = List.of("id", "name", "description", "min", "max");
+
+        @Override
+        void writeHeader(Writer writer) throws IOException {
+            writer.write(String.join(",", COLUMNS));
+            writer.write("\r\n");
+        }
+
+        @Override
+        void write(Writer writer, IpRangeDto ipRangeDto, ObjectMapper objectMapper) throws IOException {
+            writer.write(ipRangeDto.getId() == null ? "" : ipRangeDto.getId().toString());
+            writer.write(',');
+            writeField(writer, ipRangeDto.getName());
+            writer.write(',');
+            writeField(writer, ipRangeDto.getDescription());
+            writer.write(',');
+            writeField(writer, ipRangeDto.getMin());
+            writer.write(',');
+            writeField(writer, ipRangeDto.getMax());
+            writer.write("\r\n");
+        }
+
+        private void writeField(Writer writer, String value) throws IOException {
+            if (value == null)
+                return;
+            if (value.chars().noneMatch(c -> c == ',' || c == '"' || c == '\r' || c == '\n')) {
+                writer.write(value);
+                return;
+            }
+            writer.write('"');
+            writer.write(value.replace("\"", "\"\""));
+            writer.write('"');
+        }
+
+        @Override
+        Iterator<IpRangeDto> read(BufferedReader reader, ObjectMapper objectMapper) {
+            return new RecordIterator() {
+                List<String> header;
+
+                @Override
+                IpRangeDto readRecord() throws IOException {
+                    if (header == null && (header = readFields(reader)) == null)
+                        return null;
+                    List<String> fields = readFields(reader);
+                    if (fields == null)
+                        return null;
+                    if (fields.size() != header.size())
+                        throw new IllegalArgumentException("expected " + header.size() + " fields, got " + fields.size());
+                    var ipRangeDto = new IpRangeDto();
+                    for (int i = 0; i < header.size(); i++) {
+                        String value = fields.get(i).isEmpty() ? null : fields.get(i);
+                        switch (header.get(i)) {
+                            case "name" -> ipRangeDto.setName(value);
+                            case "description" -> ipRangeDto.setDescription(value);
+                            case "min" -> ipRangeDto.setMin(value);
+                            case "max" -> ipRangeDto.setMax(value);
+                            case "cidr" -> ipRangeDto.setCidr(value);
+                            default -> {
+                                // id and anything else are not imported
+                            }
+                        }
+                    }
+                    return ipRangeDto;
+                }
+            };
+        }
+
+        // the fields of the next record (which may span lines within quotes), or null at the end
+        private List<String> readFields(BufferedReader reader) throws IOException {
+            int c = reader.read();
+            while (c == '\r' || c == '\n')
+                c = reader.read();
+            if (c == -1)
+                return null;
+            List<String> fields = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            for (; c != -1; c = reader.read()) {
+                if (quoted) {
+                    if (c != '"') {
+                        field.append((char) c);
+                        continue;
+                    }
+                    reader.mark(1);
+                    if (reader.read() == '"') {
+                        field.append('"');
+                    } else {
+                        reader.reset();
+                        quoted = false;
+                    }
+                } else if (c == '"' && field.isEmpty()) {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else if (c == '\r' || c == '\n') {
+                    break;
+                } else {
+                    field.append((char) c);
+                }
+            }
+            fields.add(field.toString());
+            return fields;
+        }
+    },
+    ;
+
+    final String contentType;
+
+    abstract void writeHeader(Writer writer) throws IOException;
+
+    abstract void write(Writer writer, IpRangeDto ipRangeDto, ObjectMapper objectMapper) throws IOException;
+
+    // lazily reads one record at a time
+    abstract Iterator<IpRangeDto> read(BufferedReader reader, ObjectMapper objectMapper);
+
+    static RangeFormat fromContentType(String contentType) {
+        if (contentType != null && contentType.startsWith(CSV.contentType))
+            return CSV;
+        return NDJSON;
+    }
+
+    private abstract static class RecordIterator implements Iterator<IpRangeDto> {
+        private IpRangeDto next;
+        private boolean done;
+
+        abstract IpRangeDto readRecord() throws IOException;
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !done) {
+                try {
+                    next = readRecord();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                done = next == null;
+            }
+            return next != null;
+        }
+
+        @Override
+        public IpRangeDto next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            IpRangeDto result = next;
+            next = null;
+            return result;
+        }
+    }
+}
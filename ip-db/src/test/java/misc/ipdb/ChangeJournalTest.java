@@ -0,0 +1,136 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.Change;
+import misc.ipdb.IpDbService.ChangePage;
+import misc.ipdb.IpDbService.ChangeType;
+import misc.ipdb.IpDbService.IpAddress;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.IpSpace;
+import misc.ipdb.IpDbService.IpVersion;
+import misc.ipdb.util.DbFactory;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ChangeJournalTest {
+
+    static IpDbStorage storage() {
+        IpDbStorage storage = IpDbStorage.jdbc(DbFactory.INSTANCE.dataSource("jdbc:h2:mem:" + UUID.randomUUID() +
+                ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH"));
+        storage.migrate();
+        return storage;
+    }
+
+    @Test
+    void test_changes() throws Exception {
+        IpDbService ipDbService = new IpDbService(storage());
+        IpSpace ipSpace = ipDbService.create(new IpSpace().setName("space_test_changes").setIpVersion(IpVersion.V4));
+        int id = ipSpace.getId();
+        IpRange a = ipDbService.reserve(new IpRange().setName("a").setIpSpaceId(id), "10.0.0.0", "10.0.1.0");
+        ipDbService.reserveAll(id, List.of(
+                new IpRange().setName("b").setMinFromIp(IpAddress.v4("10.0.1.0")).setMaxFromIp(IpAddress.v4("10.0.2.0")),
+                new IpRange().setName("c").setMinFromIp(IpAddress.v4("10.0.2.0")).setMaxFromIp(IpAddress.v4("10.0.3.0"))));
+        // rolled back with the range, the name is taken
+        assertThrows(DataIntegrityViolationException.class, () -> ipDbService.reserve(new IpRange().setName("a").setIpSpaceId(id), "10.0.9.0", "10.0.9.1"));
+        ipDbService.release(new IpRange().setId(a.getId()).setIpSpaceId(id));
+        ipDbService.update(ipDbService.findSpace(id).setDescription("updated"));
+
+        ChangePage page = ipDbService.changes(0, id, 1000);
+        assertThat(page.changes().stream().map(Change::type).toList(), contains(ChangeType.SPACE_CREATED,
+                ChangeType.RANGE_RESERVED, ChangeType.RANGE_RESERVED, ChangeType.RANGE_RESERVED,
+                ChangeType.RANGE_RELEASED, ChangeType.SPACE_UPDATED));
+        Change released = page.changes().get(4);
+        assertThat(released.ipRangeId(), is(a.getId()));
+        assertThat(released.name(), is("a"));
+        assertThat(released.min(), is(IpAddress.v4("10.0.0.0")));
+        assertThat(released.max(), is(IpAddress.v4("10.0.1.0")));
+
+        // reading on from a position, and waiting for the next change
+        long after = page.next();
+        assertThat(ipDbService.changes(after, id, 1000).changes(), is(empty()));
+        assertThat(ipDbService.awaitChanges(after, id, 1000, Duration.ofMillis(50)).changes(), is(empty()));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            var waiting = executor.submit(() -> ipDbService.awaitChanges(after, id, 1000, Duration.ofSeconds(30)));
+            Thread.sleep(100);
+            ipDbService.reserve(new IpRange().setName("d").setIpSpaceId(id), "10.0.3.0", "10.0.4.0");
+            List<Change> changes = waiting.get(10, TimeUnit.SECONDS).changes();
+            assertThat(changes, hasSize(1));
+            assertThat(changes.get(0).name(), is("d"));
+            assertThat(changes.get(0).seq(), greaterThan(after));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // a number taken by a transaction that's still open holds readers up however long it stays open, then its event
+    // is read in order
+    @Test
+    void test_gapOfOpenTransaction() throws Exception {
+        IpDbStorage storage = storage();
+        IpDbService ipDbService = new IpDbService(storage);
+        IpSpace ipSpace = ipDbService.create(new IpSpace().setName("space").setIpVersion(IpVersion.V4));
+        long after = ipDbService.changes(0, null, 10).next();
+
+        var appended = new CountDownLatch(1);
+        var commit = new CountDownLatch(1);
+        var open = CompletableFuture.runAsync(() -> storage.inTransaction(() -> {
+            storage.changes().append(ChangeType.SPACE_UPDATED, ipSpace.copy().setDescription("slow"));
+            appended.countDown();
+            try {
+                return commit.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }));
+        assertThat(appended.await(10, TimeUnit.SECONDS), is(true));
+        ipDbService.reserve(new IpRange().setName("a").setIpSpaceId(ipSpace.getId()), "10.0.0.0/24");
+
+        // past the wait for the gap, and read again
+        for (int i = 0; i < 2; i++) {
+            assertThat(ipDbService.changes(after, null, 10).changes(), is(empty()));
+            assertThat(ipDbService.changes(after, null, 10).next(), is(after));
+        }
+        assertThat(storage.changes().head(), is(after));
+
+        commit.countDown();
+        open.get(10, TimeUnit.SECONDS);
+        List<Change> changes = ipDbService.changes(after, null, 10).changes();
+        assertThat(changes.stream().map(Change::type).toList(), contains(ChangeType.SPACE_UPDATED, ChangeType.RANGE_RESERVED));
+        assertThat(changes.get(0).description(), is("slow"));
+    }
+
+    // the number of a rolled back transaction is skipped for good, without waiting for it
+    @Test
+    void test_gapOfRolledBackTransaction() {
+        IpDbStorage storage = storage();
+        IpDbService ipDbService = new IpDbService(storage);
+        IpSpace ipSpace = ipDbService.create(new IpSpace().setName("space").setIpVersion(IpVersion.V6));
+        long after = ipDbService.changes(0, null, 10).next();
+
+        assertThrows(IllegalStateException.class, () -> storage.inTransaction(() -> {
+            storage.changes().append(ChangeType.SPACE_UPDATED, ipSpace);
+            throw new IllegalStateException("rolled back");
+        }));
+        ipDbService.reserve(new IpRange().setName("a").setIpSpaceId(ipSpace.getId()), "ffff::/16");
+
+        List<Change> changes = ipDbService.changes(after, null, 10).changes();
+        assertThat(changes.stream().map(Change::type).toList(), contains(ChangeType.RANGE_RESERVED));
+        assertThat(changes.get(0).seq(), is(after + 2));
+        assertThat(changes.get(0).max(), is(IpVersion.V6.end()));
+        assertThat(ipDbService.changes(0, ipSpace.getId(), 10).changes(), hasSize(2));
+        assertThat(storage.changes().head(), is(after + 2));
+    }
+}
@@ -0,0 +1,86 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.Cidr;
+import misc.ipdb.IpDbService.IpAddress;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.IpSpace;
+import misc.ipdb.IpDbService.IpVersion;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CidrsTest {
+
+    @ParameterizedTest
+    @CsvSource({
+            "10.0.0.0/24, 10.0.0.0, 10.0.1.0",
+            "10.0.0.7/32, 10.0.0.7, 10.0.0.8",
+            "0.0.0.0/0, 0.0.0.0, end",
+            "255.255.255.0/24, 255.255.255.0, end",
+            "255.255.255.254/32, 255.255.255.254, 255.255.255.255",
+    })
+    void test_parse_v4(String value, String min, String max) {
+        Cidr cidr = Cidr.parse(value, IpVersion.V4);
+        assertThat(cidr.min(), is(IpAddress.v4(min)));
+        assertThat(cidr.max(), is(IpAddress.from(max, IpVersion.V4)));
+        assertThat(cidr.toString(), is(value));
+    }
+
+    @Test
+    void test_parse_v6() {
+        Cidr cidr = Cidr.parse("2001:db8::/48", IpVersion.V6);
+        assertThat(cidr.min(), is(IpAddress.v6("2001:db8::")));
+        assertThat(cidr.max(), is(IpAddress.v6("2001:db8:1::")));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"10.0.0.0", "10.0.0.1/24", "10.0.0.0/33", "10.0.0.0/-1", "10.0.0.0/x", "2001:db8::/48"})
+    void test_parse_invalid(String value) {
+        assertThrows(IllegalArgumentException.class, () -> Cidr.parse(value, IpVersion.V4));
+    }
+
+    @Test
+    void test_decompose() {
+        assertThat(strings(Cidrs.decompose(IpAddress.v4("10.0.0.0"), IpAddress.v4("10.0.1.0"))), contains("10.0.0.0/24"));
+        assertThat(strings(Cidrs.decompose(IpAddress.v4("10.0.0.1"), IpAddress.v4("10.0.0.9"))),
+                contains("10.0.0.1/32", "10.0.0.2/31", "10.0.0.4/30", "10.0.0.8/32"));
+        assertThat(strings(Cidrs.decompose(IpAddress.v4("10.0.0.0"), IpAddress.v4("10.0.0.0"))), is(empty()));
+        // to the end of the address space, and up to the last address, which is left out
+        assertThat(strings(Cidrs.decompose(IpAddress.v4("0.0.0.0"), IpVersion.V4.end())), contains("0.0.0.0/0"));
+        assertThat(strings(Cidrs.decompose(IpAddress.v6("::"), IpVersion.V6.end())), contains("::/0"));
+        assertThat(strings(Cidrs.decompose(IpAddress.v4("255.255.255.252"), IpAddress.v4("255.255.255.255"))),
+                contains("255.255.255.252/31", "255.255.255.254/32"));
+        assertThat(strings(Cidrs.decompose(IpAddress.v6("ffff:ffff:ffff:ffff:ffff:ffff:ffff:fffe"), IpVersion.V6.end())),
+                contains("ffff:ffff:ffff:ffff:ffff:ffff:ffff:fffe/127"));
+        // across the 64 bit halves
+        assertThat(strings(Cidrs.decompose(IpAddress.v6("::ffff:ffff:ffff:fffe"), IpAddress.v6("0:0:0:1::2"))),
+                contains("::ffff:ffff:ffff:fffe/127", "0:0:0:1::/127"));
+        assertThat(strings(Cidrs.decompose(IpAddress.v6("8000::"), IpAddress.v6("c000::1"))), contains("8000::/2", "c000::/128"));
+    }
+
+    @Test
+    void test_aggregate() {
+        IpSpace ipSpace = new IpSpace().setIpVersion(IpVersion.V4);
+        List<IpRange> ipRanges = List.of(
+                range(ipSpace, "10.0.0.0", "10.0.0.128"),
+                range(ipSpace, "10.0.0.128", "10.0.1.0"),
+                range(ipSpace, "10.0.1.0", "10.0.1.64"),
+                range(ipSpace, "10.0.2.0", "10.0.4.0"));
+        assertThat(strings(Cidrs.aggregate(ipRanges)), contains("10.0.0.0/24", "10.0.1.0/26", "10.0.2.0/23"));
+    }
+
+    static IpRange range(IpSpace ipSpace, String min, String max) {
+        return new IpRange().setIpSpace(ipSpace).setMinFromIp(IpAddress.v4(min)).setMaxFromIp(IpAddress.v4(max));
+    }
+
+    static List<String> strings(List<Cidr> cidrs) {
+        return cidrs.stream().map(Cidr::toString).toList();
+    }
+}
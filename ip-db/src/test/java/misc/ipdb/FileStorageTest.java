@@ -0,0 +1,227 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.AllocationStrategy;
+import misc.ipdb.IpDbService.Change;
+import misc.ipdb.IpDbService.ChangeType;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.IpSpace;
+import misc.ipdb.IpDbService.IpVersion;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// crashes are simulated by closing the storage and tearing or corrupting the files as a crash could have left them
+class FileStorageTest {
+    @TempDir
+    Path directory;
+
+    FileStorage open() {
+        return new FileStorage(directory, Long.MAX_VALUE, Duration.ofHours(1));
+    }
+
+    @Test
+    void test_reopen() throws IOException {
+        int spaceId, releasedId;
+        try (FileStorage storage = open()) {
+            IpDbService ipDbService = new IpDbService(storage);
+            IpSpace ipSpace = ipDbService.create(new IpSpace().setName("space").setIpVersion(IpVersion.V6).setNested(true));
+            spaceId = ipSpace.getId();
+            ipDbService.reserve(new IpRange().setName("a").setDescription("ä").setIpSpaceId(spaceId), "2001:db8::/32");
+            ipDbService.reserve(new IpRange().setName("b").setIpSpaceId(spaceId), "2001:db8:1::/48");
+            ipDbService.reserve(new IpRange().setName("e").setIpSpaceId(spaceId), "ffff::/16");
+            releasedId = ipDbService.reserve(new IpRange().setName("c").setIpSpaceId(spaceId), "2001:db8:2::/48").getId();
+            ipDbService.release(ipDbService.findRange(spaceId, releasedId));
+            ipDbService.update(ipSpace.setDescription("updated"));
+        }
+        try (FileStorage storage = open()) {
+            IpDbService ipDbService = new IpDbService(storage);
+            IpSpace ipSpace = ipDbService.findSpace(spaceId);
+            assertThat(ipSpace.getDescription(), is("updated"));
+            assertThat(ipSpace.isNested(), is(true));
+            assertThat(names(ipDbService.listRanges(ipSpace, null, 10)), contains("a", "b", "e"));
+            assertThat(ipDbService.listRanges(ipSpace, null, 10).get(2).maxAddress(), is(IpVersion.V6.end()));
+            assertThat(ipDbService.listRanges(ipSpace, null, 10).get(0).getDescription(), is("ä"));
+            assertThat(types(ipDbService.changes(0, spaceId, 10).changes()), contains(ChangeType.SPACE_CREATED,
+                    ChangeType.RANGE_RESERVED, ChangeType.RANGE_RESERVED, ChangeType.RANGE_RESERVED,
+                    ChangeType.RANGE_RESERVED, ChangeType.RANGE_RELEASED, ChangeType.SPACE_UPDATED));
+            // ids go on after the ones taken before
+            IpRange d = ipDbService.reserve(new IpRange().setName("d").setIpSpaceId(spaceId), "2001:db8:3::/48");
+            assertThat(d.getId(), greaterThan(releasedId));
+        }
+    }
+
+    // a crash while appending leaves part of the last record: it is cut off, the transactions before it stay
+    @Test
+    void test_tornTail() throws IOException {
+        int spaceId;
+        try (FileStorage storage = open()) {
+            IpDbService ipDbService = new IpDbService(storage);
+            spaceId = ipDbService.create(new IpSpace().setName("space").setIpVersion(IpVersion.V4)).getId();
+            ipDbService.reserve(new IpRange().setName("a").setIpSpaceId(spaceId), "10.0.0.0/24");
+            ipDbService.reserve(new IpRange().setName("b").setIpSpaceId(spaceId), "10.0.1.0/24");
+        }
+        Path segment = WriteAheadLog.segmentPath(directory, 0);
+        long size = Files.size(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(size - 3);
+        }
+        try (FileStorage storage = open()) {
+            IpDbService ipDbService = new IpDbService(storage);
+            IpSpace ipSpace = ipDbService.findSpace(spaceId);
+            assertThat(names(ipDbService.listRanges(ipSpace, null, 10)), contains("a"));
+            assertThat(ipDbService.changes(0, null, 10).changes(), hasSize(2));
+            ipDbService.reserve(new IpRange().setName("c").setIpSpaceId(spaceId), "10.0.2.0/24");
+        }
+        // and writes after it are read back
+        try (FileStorage storage = open()) {
+            IpDbService ipDbService = new IpDbService(storage);
+            assertThat(names(ipDbService.listRanges(ipDbService.findSpace(spaceId), null, 10)), contains("a", "c"));
+        }
+    }
+
+    // a record that isn't what was written (or garbage after the last one) ends the log as well
+    @Test
+    void test_corruptTail() throws IOException {
+        int spaceId;
+        try (FileStorage storage = open()) {
+            IpDbService ipDbService = new IpDbService(storage);
+            spaceId = ipDbService.create(new IpSpace().setName("space").setIpVersion(IpVersion.V4)).getId();
+            ipDbService.reserve(new IpRange().setName("a").setIpSpaceId(spaceId), "10.0.0.0/24");
+        }
+        Path segment = WriteAheadLog.segmentPath(directory, 0);
+        byte[] bytes = Files.readAllBytes(segment);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(segment, bytes);
+        Files.write(segment, new byte[]{0, 0, 1}, StandardOpenOption.APPEND);
+        try (FileStorage storage = open()) {
+            IpDbService ipDbService = new IpDbService(storage);
+            assertThat(ipDbService.listRanges(ipDbService.findSpace(spaceId), null, 10), empty());
+        }
+        assertThat(Files.size(segment), lessThan((long) bytes.length));
+    }
+
+    // the state is loaded from the checkpoint and the log after it, the log before it is gone
+    @Test
+    void test_checkpoint() throws IOException {
+        int spaceId, releasedId;
+        try (FileStorage storage = open()) {
+            IpDbService ipDbService = new IpDbService(storage);
+            spaceId = ipDbService.create(new IpSpace().setName("space").setIpVersion(IpVersion.V4)).getId();
+            for (int i = 0; i < FileStorage.CHECKPOINT_CHUNK_SIZE + 10; i++)
+                ipDbService.allocate(new IpRange().setName("r" + i).setIpSpaceId(spaceId), 32, AllocationStrategy.FIRST_FIT);
+            releasedId = ipDbService.allocate(new IpRange().setName("last").setIpSpaceId(spaceId), 32, AllocationStrategy.FIRST_FIT).getId();
+            ipDbService.release(ipDbService.findRange(spaceId, releasedId));
+            storage.checkpoint();
+            ipDbService.allocate(new IpRange().setName("after").setIpSpaceId(spaceId), 32, AllocationStrategy.FIRST_FIT);
+        }
+        assertThat(files(), containsInAnyOrder("checkpoint-0000000000000001.dat", "wal-0000000000000001.log", "lock"));
+        try (FileStorage storage = open()) {
+            IpDbService ipDbService = new IpDbService(storage);
+            IpSpace ipSpace = ipDbService.findSpace(spaceId);
+            assertThat(storage.ranges().list(ipSpace, 0, Integer.MAX_VALUE), hasSize(FileStorage.CHECKPOINT_CHUNK_SIZE + 11));
+            assertThat(ipDbService.changes(0, null, Integer.MAX_VALUE).changes(), hasSize(FileStorage.CHECKPOINT_CHUNK_SIZE + 14));
+            // the last id was released before the checkpoint, it is not taken again
+            IpRange next = ipDbService.allocate(new IpRange().setName("next").setIpSpaceId(spaceId), 32, AllocationStrategy.FIRST_FIT);
+            assertThat(next.getId(), greaterThan(releasedId + 1));
+        }
+    }
+
+    // a checkpoint keeps the latest changes only, sequence numbers go on after the ones trimmed
+    @Test
+    void test_changeRetention() throws IOException {
+        int spaceId;
+        try (FileStorage storage = new FileStorage(directory, Long.MAX_VALUE, Duration.ofHours(1), 3)) {
+            IpDbService ipDbService = new IpDbService(storage);
+            spaceId = ipDbService.create(new IpSpace().setName("space").setIpVersion(IpVersion.V4)).getId();
+            for (int i = 0; i < 4; i++)
+                ipDbService.reserve(new IpRange().setName("r" + i).setIpSpaceId(spaceId), "10.0." + i + ".0/24");
+            storage.checkpoint();
+            assertThat(seqs(storage.changes().read(0, null, 10).changes()), contains(3L, 4L, 5L));
+            assertThat(storage.changes().read(2, null, 10).changes(), hasSize(3));
+            // a reader that was after a trimmed change has missed the ones up to the horizon
+            assertThrows(IllegalStateException.class, () -> storage.changes().read(1, null, 10));
+        }
+        try (FileStorage storage = new FileStorage(directory, Long.MAX_VALUE, Duration.ofHours(1), 0)) {
+            IpDbService ipDbService = new IpDbService(storage);
+            assertThat(storage.changes().head(), is(5L));
+            assertThat(seqs(storage.changes().read(0, null, 10).changes()), contains(3L, 4L, 5L));
+            ipDbService.reserve(new IpRange().setName("r4").setIpSpaceId(spaceId), "10.0.4.0/24");
+            storage.checkpoint();
+            assertThat(storage.changes().read(0, null, 10).changes(), is(empty()));
+        }
+        try (FileStorage storage = open()) {
+            IpDbService ipDbService = new IpDbService(storage);
+            assertThat(storage.changes().head(), is(6L));
+            assertThat(storage.ranges().list(ipDbService.findSpace(spaceId), 0, 10), hasSize(5));
+            ipDbService.reserve(new IpRange().setName("r5").setIpSpaceId(spaceId), "10.0.5.0/24");
+            assertThat(seqs(storage.changes().read(0, null, 10).changes()), contains(7L));
+        }
+    }
+
+    @Test
+    void test_backgroundCompaction() throws Exception {
+        try (FileStorage storage = new FileStorage(directory, 1, Duration.ofMillis(10))) {
+            new IpDbService(storage).create(new IpSpace().setName("space").setIpVersion(IpVersion.V4));
+            for (int i = 0; i < 500 && !files().contains("checkpoint-0000000000000001.dat"); i++)
+                Thread.sleep(10);
+        }
+        assertThat(files(), hasItem("checkpoint-0000000000000001.dat"));
+        assertThat(files(), not(hasItem("wal-0000000000000000.log")));
+        try (FileStorage storage = open()) {
+            assertThat(storage.spaces().list(null, 10), hasSize(1));
+        }
+    }
+
+    // only the end of the last segment may be torn, a record missing before that is lost data
+    @Test
+    void test_corruptSegment() throws IOException {
+        try (FileStorage storage = open()) {
+            IpDbService ipDbService = new IpDbService(storage);
+            ipDbService.create(new IpSpace().setName("a").setIpVersion(IpVersion.V4));
+        }
+        Files.createFile(WriteAheadLog.segmentPath(directory, 1));
+        Path segment = WriteAheadLog.segmentPath(directory, 0);
+        Files.write(segment, new byte[]{0, 0, 1}, StandardOpenOption.APPEND);
+        assertThrows(IllegalStateException.class, this::open);
+    }
+
+    @Test
+    void test_locked() throws IOException {
+        FileStorage storage = open();
+        try {
+            assertThrows(RuntimeException.class, this::open);
+        } finally {
+            storage.close();
+        }
+    }
+
+    List<String> files() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(path -> path.getFileName().toString()).toList();
+        }
+    }
+
+    static List<String> names(List<IpRange> ipRanges) {
+        return ipRanges.stream().map(IpRange::getName).toList();
+    }
+
+    static List<Long> seqs(List<Change> changes) {
+        return changes.stream().map(Change::seq).toList();
+    }
+
+    static List<ChangeType> types(List<Change> changes) {
+        return changes.stream().map(Change::type).toList();
+    }
+}
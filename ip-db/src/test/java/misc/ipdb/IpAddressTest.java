@@ -0,0 +1,97 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.IpAddress;
+import misc.ipdb.IpDbService.IpVersion;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.math.BigInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class IpAddressTest {
+
+    @ParameterizedTest
+    @CsvSource({
+            "0.0.0.0, 0",
+            "1.1.1.1, 16843009",
+            "10.0.0.64, 167772224",
+            "255.255.255.255, 4294967295",
+    })
+    void test_v4(String address, String value) {
+        IpAddress ipAddress = IpAddress.v4(address);
+        assertThat(ipAddress.toBigInteger(), is(new BigInteger(value)));
+        assertThat(ipAddress.address(), is(address));
+        assertThat(IpAddress.v4(new BigInteger(value)), is(ipAddress));
+        assertThat(IpAddress.v4(ipAddress.toByteArray()), is(ipAddress));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", "1.1.1", "1.1.1.1.", "1.1.1.1.1", "256.0.0.0", "1..1.1", "1.1.1.a", "0001.1.1.1", " 1.1.1.1"})
+    void test_v4_invalid(String address) {
+        assertThrows(IllegalArgumentException.class, () -> IpAddress.v4(address));
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "2001:0000:130F:0000:0000:09C0:876A:130B, 2001:0:130f::9c0:876a:130b",
+            "2001:db8:0:0:1:0:0:1, 2001:db8::1:0:0:1",
+            "2001:db8::1, 2001:db8::1",
+            "2001:DB8:0:0:0:0:0:1, 2001:db8::1",
+            "2001:db8:0:1:1:1:1:1, 2001:db8:0:1:1:1:1:1",
+            "::, ::",
+            "::1, ::1",
+            "1::, 1::",
+            "1:2:3:4:5:6:7::, 1:2:3:4:5:6:7:0",
+            "::ffff:192.0.2.1, ::ffff:192.0.2.1",
+            "::ffff:c000:0201, ::ffff:192.0.2.1",
+            "64:ff9b::192.0.2.33, 64:ff9b::c000:221",
+            "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff, ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff",
+    })
+    void test_v6(String address, String canonical) {
+        IpAddress ipAddress = IpAddress.v6(address);
+        assertThat(ipAddress.address(), is(canonical));
+        assertThat(IpAddress.v6(canonical), is(ipAddress));
+        assertThat(IpAddress.v6(ipAddress.toBigInteger()), is(ipAddress));
+        assertThat(IpAddress.v6(ipAddress.toByteArray()), is(ipAddress));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", ":", ":::", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9", "1::2::3", ":1::", "1:", "12345::",
+            "1:2:3:4:5:6:7:8::", "1::2:3:4:5:6:7:8", "::g", "1:2:3:4:5:6:7:1.1.1.1", "::1.1.1", "::1.1.1.1:1"})
+    void test_v6_invalid(String address) {
+        assertThrows(IllegalArgumentException.class, () -> IpAddress.v6(address));
+    }
+
+    @Test
+    void test_compareTo() {
+        assertThat(IpAddress.v6("::1"), is(lessThan(IpAddress.v6("::2"))));
+        assertThat(IpAddress.v6("::ffff:ffff:ffff:ffff"), is(lessThan(IpAddress.v6("0:0:0:1::"))));
+        assertThat(IpAddress.v6("7fff::"), is(lessThan(IpAddress.v6("8000::"))));
+        assertThat(IpAddress.v6("8000::"), is(lessThan(IpAddress.v6("ffff::"))));
+        assertThat(IpAddress.v4("127.255.255.255"), is(lessThan(IpAddress.v4("128.0.0.0"))));
+        assertThat(IpAddress.v6("8000::").toBigInteger(), is(BigInteger.ONE.shiftLeft(127)));
+    }
+
+    @Test
+    void test_end() {
+        for (IpVersion ipVersion : IpVersion.values()) {
+            IpAddress end = ipVersion.end();
+            BigInteger size = BigInteger.ONE.shiftLeft(ipVersion.getBits());
+            assertThat(end, is(greaterThan(ipVersion.last())));
+            assertThat(end.toBigInteger(), is(size));
+            assertThat(IpAddress.from(size, ipVersion), is(end));
+            assertThat(IpAddress.from(end.address(), ipVersion), is(end));
+            assertThat(end.previous(), is(ipVersion.last()));
+            assertThat(ipVersion.last().plusBlock(ipVersion.getBits()), is(end));
+            assertThat(ipVersion.first().plusBlock(0), is(end));
+            assertThat(IpAddress.from(BigInteger.ONE, ipVersion).plusBlock(0), is(nullValue()));
+            assertThat(end.plusBlock(ipVersion.getBits()), is(nullValue()));
+            assertThrows(IllegalArgumentException.class, () -> IpAddress.from(size.add(BigInteger.ONE), ipVersion));
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package misc.ipdb;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import misc.ipdb.IpDbService.IpAddress;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.IpSpace;
+import misc.ipdb.IpDbService.IpVersion;
+import misc.ipdb.util.DbFactory;
+import misc.ipdb.util.IpDataNotFoundException;
+import misc.ipdb.util.IpRangeConflictsException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.function.Function;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class IpDbMetricsTest {
+
+    @BeforeAll
+    static void beforeAll() {
+        new IpDbService(DbFactory.INSTANCE).dbMigrator().migrate();
+    }
+
+    @Test
+    void test_metrics() {
+        var meterRegistry = new SimpleMeterRegistry();
+        var metered = new IpDbService(DbFactory.INSTANCE.dataSource(), meterRegistry);
+        IpSpace ipSpace = metered.create(new IpSpace().setName("space_test_metrics").setIpVersion(IpVersion.V4));
+        metered.reserve(new IpRange().setName("r").setIpSpaceId(ipSpace.getId()), "10.0.0.0", "10.0.1.0");
+        assertThrows(IpRangeConflictsException.class, () -> metered.reserve(new IpRange().setName("r2").setIpSpaceId(ipSpace.getId()), "10.0.0.128", "10.0.2.0"));
+        assertThat(metered.rangeOf(ipSpace.getId(), IpAddress.v4("10.0.0.1")), is(notNullValue()));
+        assertThat(metered.rangeOf(ipSpace.getId(), IpAddress.v4("10.0.2.1")), is(nullValue()));
+
+        Function<String[], Long> count = tags -> meterRegistry.get(IpDbMetrics.OPERATION).tags(tags).timer().count();
+        assertThat(count.apply(new String[]{"operation", "reserve", "version", "v4", "outcome", "success"}), is(1L));
+        assertThat(count.apply(new String[]{"operation", "reserve", "version", "v4", "outcome", "conflict"}), is(1L));
+        assertThat(count.apply(new String[]{"operation", "range-of", "version", "v4", "outcome", "success"}), is(1L));
+        assertThat(count.apply(new String[]{"operation", "range-of", "version", "v4", "outcome", "not-found"}), is(1L));
+        assertThat(meterRegistry.get(IpDbMetrics.SPACE_RANGES).tag("space", ipSpace.getId().toString()).gauge().value(), is(1.0));
+
+        metered.update(ipSpace.setDescription("updated"));
+        assertThat(meterRegistry.find(IpDbMetrics.SPACE_RANGES).tag("space", ipSpace.getId().toString()).gauge(), is(nullValue()));
+
+        // space crud, lookups and the journal are timed too
+        assertThat(metered.findSpace(-1), is(nullValue()));
+        assertThrows(IpDataNotFoundException.class, () -> metered.findRange(ipSpace.getId(), -1));
+        metered.awaitChanges(0, ipSpace.getId(), 10, Duration.ZERO);
+        metered.delete(metered.create(new IpSpace().setName("space_test_metrics.deleted").setIpVersion(IpVersion.V6)));
+        assertThat(count.apply(new String[]{"operation", "create", "version", "none", "outcome", "success"}), is(2L));
+        assertThat(count.apply(new String[]{"operation", "update", "version", "none", "outcome", "success"}), is(1L));
+        assertThat(count.apply(new String[]{"operation", "delete", "version", "none", "outcome", "success"}), is(1L));
+        assertThat(count.apply(new String[]{"operation", "find-space", "version", "none", "outcome", "not-found"}), is(1L));
+        assertThat(count.apply(new String[]{"operation", "find-range", "version", "none", "outcome", "not-found"}), is(1L));
+        assertThat(count.apply(new String[]{"operation", "await-changes", "version", "none", "outcome", "success"}), is(1L));
+    }
+}
@@ -0,0 +1,65 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.Change;
+import misc.ipdb.IpDbService.IpAddress;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.IpSpace;
+import misc.ipdb.IpDbService.IpVersion;
+import misc.ipdb.util.DbFactory;
+import misc.ipdb.util.IpDbReadOnlyException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class IpDbReplicaTest {
+
+    static IpDbService ipDbService;
+
+    @BeforeAll
+    static void beforeAll() {
+        ipDbService = new IpDbService(DbFactory.INSTANCE);
+        ipDbService.dbMigrator().migrate();
+    }
+
+    @Test
+    void test_replica() throws Exception {
+        IpSpace ipSpace = ipDbService.create(new IpSpace().setName("space_test_replica").setIpVersion(IpVersion.V4));
+        int id = ipSpace.getId();
+        IpRange a = ipDbService.reserve(new IpRange().setName("a").setDescription("loaded").setIpSpaceId(id), "10.0.0.0", "10.0.1.0");
+
+        IpDbService replicaService = new IpDbService(DbFactory.INSTANCE);
+        try (IpDbReplica replica = new IpDbReplica(replicaService)) {
+            assertThat(replicaService.rangeOf(id, IpAddress.v4("10.0.0.1")).getDescription(), is("loaded"));
+
+            ipDbService.reserve(new IpRange().setName("b").setDescription("followed").setIpSpaceId(id), "10.0.1.0", "10.0.2.0");
+            ipDbService.release(a);
+            IpSpace other = ipDbService.create(new IpSpace().setName("space_test_replica.2").setIpVersion(IpVersion.V6));
+            ipDbService.reserve(new IpRange().setName("c").setIpSpaceId(other.getId()), "2001:db8::/32");
+            List<Change> last = ipDbService.changes(0, other.getId(), 10).changes();
+            awaitPosition(replica, last.get(last.size() - 1).seq());
+
+            assertThat(replicaService.rangeOf(id, IpAddress.v4("10.0.0.1")), is(nullValue()));
+            assertThat(replicaService.rangeOf(id, IpAddress.v4("10.0.1.1")).getDescription(), is("followed"));
+            assertThat(replicaService.listRanges(ipSpace, null, 10).stream().map(IpRange::getName).toList(), contains("b"));
+            assertThat(replicaService.rangeOf(other.getId(), IpAddress.v6("2001:db8::1")).getName(), is("c"));
+
+            assertThrows(IpDbReadOnlyException.class, () -> replicaService.reserve(new IpRange().setName("d").setIpSpaceId(id), "10.0.3.0", "10.0.4.0"));
+            assertThrows(IpDbReadOnlyException.class, () -> replicaService.create(new IpSpace().setName("space_test_replica.3").setIpVersion(IpVersion.V4)));
+        }
+    }
+
+    // until the replica has applied the changes up to this sequence number
+    static void awaitPosition(IpDbReplica replica, long seq) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (replica.position() < seq) {
+            assertThat("replica at " + replica.position(), System.nanoTime(), lessThan(deadline));
+            Thread.sleep(10);
+        }
+    }
+}
@@ -1,23 +1,50 @@
 package misc.ipdb;
 
 import lombok.extern.slf4j.Slf4j;
+import misc.ipdb.IpDbService.AllocationStrategy;
+import misc.ipdb.IpDbService.BulkImport;
+import misc.ipdb.IpDbService.BulkReservation;
+import misc.ipdb.IpDbService.Cidr;
+import misc.ipdb.IpDbService.Conflict;
+import misc.ipdb.IpDbService.FreeGap;
 import misc.ipdb.IpDbService.IpAddress;
 import misc.ipdb.IpDbService.IpRange;
 import misc.ipdb.IpDbService.IpSpace;
 import misc.ipdb.IpDbService.IpVersion;
+import misc.ipdb.IpDbService.RangeKey;
+import misc.ipdb.IpDbService.SpaceStats;
 import misc.ipdb.util.DbFactory;
 import misc.ipdb.util.IpRangeConflictsException;
+import misc.ipdb.util.IpRangeOutOfBoundsException;
+import misc.ipdb.util.IpSpaceExhaustedException;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.data.domain.PageRequest;
 
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.stream.IntStream;
 
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -119,6 +146,511 @@ class IpDbServiceITest {
         log.debug("j: {}", j);
     }
 
+    @Test
+    void test_lookups() {
+        IpSpace ipSpace = ipDbService.create(new IpSpace().setName("space_test_lookups").setIpVersion(IpVersion.V4));
+        IpRange range1 = ipDbService.reserve(range("range1", Map.entry("10.0.0.4", "10.0.0.8"), ipSpace));
+        IpRange range2 = ipDbService.reserve(range("range2", Map.entry("10.0.0.16", "10.0.0.32"), ipSpace));
+
+        assertThat(ipDbService.rangeOf(ipSpace, IpAddress.v4("10.0.0.3")), is(nullValue()));
+        assertThat(ipDbService.rangeOf(ipSpace, IpAddress.v4("10.0.0.4")), is(range1));
+        assertThat(ipDbService.rangeOf(ipSpace, IpAddress.v4("10.0.0.7")), is(range1));
+        assertThat(ipDbService.rangeOf(ipSpace, IpAddress.v4("10.0.0.8")), is(nullValue()));
+        assertThat(ipDbService.rangeOf(ipSpace.getId(), IpAddress.v4("10.0.0.20")), is(range2));
+
+        assertThat(ipDbService.free(ipSpace, IpAddress.v4("10.0.0.5")), is(false));
+        assertThat(ipDbService.free(ipSpace, IpAddress.v4("10.0.0.8")), is(true));
+
+        // a range which fully contains existing ranges conflicts with all of them
+        IpRange covering = range("covering", Map.entry("10.0.0.0", "10.0.1.0"), ipSpace);
+        assertThat(ipDbService.free(covering), is(false));
+        assertThat(ipDbService.foundWithin(covering), contains(range1, range2));
+        assertThrows(IpRangeConflictsException.class, () -> ipDbService.reserve(covering));
+
+        IpRange between = range("between", Map.entry("10.0.0.8", "10.0.0.16"), ipSpace);
+        assertThat(ipDbService.free(between), is(true));
+        assertThat(ipDbService.foundWithin(between), is(empty()));
+
+        ipDbService.release(range1);
+        assertThat(ipDbService.rangeOf(ipSpace, IpAddress.v4("10.0.0.4")), is(nullValue()));
+        assertThat(ipDbService.foundWithin(covering), contains(range2));
+    }
+
+    @Test
+    void test_findRanges_v6() {
+        IpSpace ipSpace = ipDbService.create(new IpSpace().setName("space_test_findRanges_v6").setIpVersion(IpVersion.V6));
+        // either side of the sign bit, which must not affect ordering
+        IpRange low = ipDbService.reserve(range("low", Map.entry("2001:db8::", "2001:db8::100"), ipSpace));
+        IpRange high = ipDbService.reserve(range("high", Map.entry("fd00::", "fd00::1:0"), ipSpace));
+        IpRange highest = ipDbService.reserve(range("highest", Map.entry("ff02::1", "ff02::2"), ipSpace));
+
+        assertThat(ipDbService.listRanges(ipSpace, PageRequest.of(0, 10)), contains(low, high, highest));
+        assertThat(ipDbService.findRanges(IpVersion.V6, range("q", Map.entry("2001:db8::80", "fd00::1"), ipSpace)), contains(low, high));
+        assertThat(ipDbService.findRanges(IpVersion.V6, range("q", Map.entry("fd00::ff", "ff02::1"), ipSpace)), contains(high));
+        assertThat(ipDbService.find(IpVersion.V6, range("q", Map.entry("::", "2001:db8::"), ipSpace)), is(0));
+        assertThat(ipDbService.find(IpVersion.V6, range("q", Map.entry("::", "ffff::"), ipSpace)), is(3));
+        assertThat(ipDbService.rangeOf(ipSpace, IpAddress.v6("fd00::ffff")), is(high));
+        assertThat(ipDbService.findRange(ipSpace.getId(), highest.getId()), is(highest));
+    }
+
+    @Test
+    void test_rangeOf_batch() {
+        IpSpace ipSpace = ipDbService.create(new IpSpace().setName("space_test_rangeOf_batch").setIpVersion(IpVersion.V4));
+        // /24s with a /24 gap after each
+        List<IpRange> ranges = IntStream.range(0, 5000)
+                .mapToObj(i -> new IpRange().setName("b" + i)
+                        .setMinFromIp(IpAddress.v4(0x0a000000L + i * 512L))
+                        .setMaxFromIp(IpAddress.v4(0x0a000000L + i * 512L + 256)))
+                .toList();
+        assertThat(ipDbService.reserveAll(ipSpace.getId(), ranges).conflicts(), is(empty()));
+
+        Random random = new Random(0);
+        List<IpAddress> addresses = IntStream.range(0, 200_000)
+                .mapToObj(i -> IpAddress.v4(0x09ff0000L + random.nextInt(5000 * 512 + 0x20000)))
+                .toList();
+        long start = System.nanoTime();
+        Map<IpAddress, IpRange> resolved = ipDbService.rangeOf(ipSpace.getId(), addresses);
+        long elapsed = System.nanoTime() - start;
+        log.info("resolved {} addresses in {} ms", addresses.size(), elapsed / 1_000_000);
+
+        for (IpAddress address : addresses)
+            assertThat(address.toString(), resolved.get(address), is(ipDbService.rangeOf(ipSpace, address)));
+        Map<IpAddress, IpRange> ordered = ipDbService.rangeOf(ipSpace.getId(),
+                List.of(IpAddress.v4("10.0.3.0"), IpAddress.v4("10.0.0.5"), IpAddress.v4("10.0.1.0")));
+        assertThat(ordered.keySet(), contains(IpAddress.v4("10.0.0.5"), IpAddress.v4("10.0.1.0"), IpAddress.v4("10.0.3.0")));
+        assertThat(ordered.values().stream().map(r -> r == null ? null : r.getName()).toList(), contains("b0", null, null));
+        assertThrows(IllegalArgumentException.class, () -> ipDbService.rangeOf(ipSpace.getId(), List.of(IpAddress.v6("::1"))));
+    }
+
+    @Test
+    void test_snapshot(@TempDir Path dir) throws IOException {
+        IpSpace v6 = ipDbService.create(new IpSpace().setName("space_test_snapshot.v6").setIpVersion(IpVersion.V6));
+        List<IpRange> ranges = IntStream.range(0, 3000)
+                .mapToObj(i -> new IpRange().setName("s" + i + (i % 7 == 0 ? "-ü" : ""))
+                        .setMinFromIp(IpAddress.v6(0x8000000000000000L + i, 0))
+                        .setMaxFromIp(IpAddress.v6(0x8000000000000000L + i, 0x10)))
+                .toList();
+        assertThat(ipDbService.reserveAll(v6.getId(), ranges).conflicts(), is(empty()));
+        Path path = dir.resolve("v6.snapshot");
+        ipDbService.writeSnapshot(v6, path);
+
+        IpSpaceSnapshot snapshot = IpSpaceSnapshot.open(path);
+        assertThat(snapshot.size(), is(3000));
+        assertThat(snapshot.getIpSpaceId(), is(v6.getId()));
+        for (IpRange ipRange : ranges) {
+            IpRange found = snapshot.rangeOf(IpAddress.v6(ipRange.minAddress().hi(), 0xf));
+            assertThat(found.getId(), is(ipRange.getId()));
+            assertThat(found.getName(), is(ipRange.getName()));
+            assertThat(found.getMin(), is(ipRange.getMin()));
+            assertThat(found.getMax(), is(ipRange.getMax()));
+        }
+        assertThat(snapshot.rangeOf(IpAddress.v6(0x8000000000000000L + 5, 0x10)), is(nullValue()));
+        assertThat(snapshot.rangeOf(IpAddress.v6("::1")), is(nullValue()));
+        assertThat(snapshot.free(IpAddress.v6(0x8000000000000000L + 5, 0x10)), is(true));
+        assertThat(snapshot.free(IpAddress.v6(0x8000000000000000L + 5, 0x10), IpAddress.v6(0x8000000000000000L + 6, 0)), is(true));
+        assertThat(snapshot.free(IpAddress.v6(0x8000000000000000L + 5, 0x10), IpAddress.v6(0x8000000000000000L + 6, 1)), is(false));
+
+        IpSpace v4 = ipDbService.create(new IpSpace().setName("space_test_snapshot.v4").setIpVersion(IpVersion.V4));
+        ipDbService.reserve(range("last", Map.entry("255.255.255.0", "end"), v4));
+        ipDbService.writeSnapshot(v4, dir.resolve("v4.snapshot"));
+        IpSpaceSnapshot v4Snapshot = IpSpaceSnapshot.open(dir.resolve("v4.snapshot"));
+        assertThat(v4Snapshot.rangeOf(IpAddress.v4("255.255.255.254")).getName(), is("last"));
+        assertThat(v4Snapshot.rangeOf(IpAddress.v4("255.255.255.255")).getName(), is("last"));
+        assertThat(v4Snapshot.free(IpAddress.v4("255.255.254.255")), is(true));
+        Path garbage = Files.writeString(dir.resolve("garbage"), "not a snapshot, not a snapshot, not a snapshot");
+        assertThrows(IllegalArgumentException.class, () -> IpSpaceSnapshot.open(garbage));
+    }
+
+    @Test
+    void test_allocate() {
+        IpSpace ipSpace = ipDbService.create(new IpSpace().setName("space_test_allocate").setIpVersion(IpVersion.V4)
+                .setMin(IpAddress.v4("10.0.0.0").toBigInteger())
+                .setMax(IpAddress.v4("10.0.1.0").toBigInteger()));
+        ipDbService.reserve(range("taken", Map.entry("10.0.0.0", "10.0.0.4"), ipSpace));
+        Function<String, IpRange> named = name -> new IpRange().setName(name).setIpSpaceId(ipSpace.getId());
+
+        // first fit skips the unaligned gap after the taken range
+        IpRange first = ipDbService.allocate(named.apply("first"), 29, AllocationStrategy.FIRST_FIT);
+        assertThat(first.minAddress().address(), is("10.0.0.8"));
+        assertThat(first.maxAddress().address(), is("10.0.0.16"));
+
+        // best fit takes the exact gap left before it, rather than splitting the rest of the space
+        IpRange best = ipDbService.allocate(named.apply("best"), 30, AllocationStrategy.BEST_FIT);
+        assertThat(best.minAddress().address(), is("10.0.0.4"));
+
+        IpRange half = ipDbService.allocate(named.apply("half"), 25, AllocationStrategy.BEST_FIT);
+        assertThat(half.minAddress().address(), is("10.0.0.128"));
+        assertThat(half.maxAddress().address(), is("10.0.1.0"));
+
+        // no /25 left within the bounds of the space
+        assertThrows(IpSpaceExhaustedException.class, () -> ipDbService.allocate(named.apply("none"), 25, AllocationStrategy.FIRST_FIT));
+
+        ipDbService.release(first);
+        IpRange again = ipDbService.allocate(named.apply("again"), 28, AllocationStrategy.FIRST_FIT);
+        assertThat(again.minAddress().address(), is("10.0.0.16"));
+        assertThat(ipDbService.allocate(named.apply("reused"), 29, AllocationStrategy.FIRST_FIT).minAddress().address(), is("10.0.0.8"));
+    }
+
+    // the last block ends at the end of the address space and holds the last address, a range up to the last address
+    // leaves it out
+    @Test
+    void test_allocateLastBlock() {
+        IpSpace ipSpace = ipDbService.create(new IpSpace().setName("space_test_allocateLastBlock").setIpVersion(IpVersion.V4)
+                .setMin(IpAddress.v4("255.255.255.0").toBigInteger()));
+        Function<String, IpRange> named = name -> new IpRange().setName(name).setIpSpaceId(ipSpace.getId());
+        assertThat(ipDbService.stats(ipSpace.getId()).free(), is(BigInteger.valueOf(256)));
+
+        ipDbService.allocate(named.apply("first"), 25, AllocationStrategy.FIRST_FIT);
+        IpRange last = ipDbService.allocate(named.apply("last"), 25, AllocationStrategy.BEST_FIT);
+        assertThat(last.minAddress().address(), is("255.255.255.128"));
+        assertThat(last.maxAddress(), is(IpVersion.V4.end()));
+        assertThat(last.getMax(), is(BigInteger.ONE.shiftLeft(32)));
+        assertThat(ipDbService.rangeOf(ipSpace.getId(), IpAddress.v4("255.255.255.255")).getName(), is("last"));
+        assertThat(Cidrs.aggregate(List.of(last)).stream().map(Cidr::toString).toList(), contains("255.255.255.128/25"));
+
+        SpaceStats stats = ipDbService.stats(ipSpace.getId());
+        assertThat(stats.used(), is(BigInteger.valueOf(256)));
+        assertThat(stats.free(), is(BigInteger.ZERO));
+        assertThrows(IpSpaceExhaustedException.class, () -> ipDbService.allocate(named.apply("none"), 32, AllocationStrategy.FIRST_FIT));
+
+        // freed again, the single addresses at the end are ranges like any other
+        ipDbService.release(last);
+        assertThat(ipDbService.listFree(ipSpace.getId(), null, null, 10).get(0).size(), is(BigInteger.valueOf(128)));
+        ipDbService.reserve(range("before last", Map.entry("255.255.255.254", "255.255.255.255"), ipSpace));
+        assertThat(ipDbService.stats(ipSpace.getId()).free(), is(BigInteger.valueOf(127)));
+        assertThat(ipDbService.rangeOf(ipSpace.getId(), IpAddress.v4("255.255.255.255")), is(nullValue()));
+        Cidr lastAddress = Cidr.parse("255.255.255.255/32", IpVersion.V4);
+        ipDbService.reserve(named.apply("last address").setMinFromIp(lastAddress.min()).setMaxFromIp(lastAddress.max()));
+        assertThat(ipDbService.rangeOf(ipSpace.getId(), IpAddress.v4("255.255.255.255")).getName(), is("last address"));
+        assertThat(ipDbService.stats(ipSpace.getId()).free(), is(BigInteger.valueOf(126)));
+    }
+
+    @Test
+    void test_reserveAll() {
+        IpSpace ipSpace = ipDbService.create(new IpSpace().setName("space_test_reserveAll").setIpVersion(IpVersion.V4));
+        IpRange existing = ipDbService.reserve(range("existing", Map.entry("10.0.64.0", "10.0.65.0"), ipSpace));
+
+        // a shuffled batch of /28s in 10.0.0.0/17, around the existing range
+        List<IpRange> batch = new ArrayList<>(IntStream.range(0, 2048)
+                .mapToObj(i -> new IpRange().setName("batch" + i)
+                        .setMinFromIp(IpAddress.v4(IpAddress.v4("10.0.0.0").lo() + i * 16L))
+                        .setMaxFromIp(IpAddress.v4(IpAddress.v4("10.0.0.0").lo() + i * 16L + 16)))
+                .filter(r -> existing.getMax().compareTo(r.getMin()) <= 0 || r.getMax().compareTo(existing.getMin()) <= 0)
+                .toList());
+        Collections.shuffle(batch, new Random(0));
+
+        List<IpRange> conflicting = new ArrayList<>(batch);
+        conflicting.add(range("overlapsBatch", Map.entry("10.0.0.8", "10.0.0.24"), ipSpace));
+        conflicting.add(range("overlapsExisting", Map.entry("10.0.64.128", "10.0.64.132"), ipSpace));
+        conflicting.add(range("overlapsBoth", Map.entry("10.0.63.252", "10.0.64.4"), ipSpace));
+        BulkReservation failed = ipDbService.reserveAll(ipSpace.getId(), conflicting);
+        assertThat(failed.reserved(), is(empty()));
+        assertThat(failed.conflicts().stream().map(Conflict::ipRange).map(IpRange::getName).toList(),
+                containsInAnyOrder("overlapsBatch", "batch1", "overlapsBoth", "overlapsExisting"));
+        assertThat(failed.conflicts().stream().filter(c -> c.ipRange().getName().equals("overlapsBoth")).findFirst().orElseThrow().conflictsWith().stream().map(IpRange::getName).toList(),
+                contains("batch1023", "existing"));
+        assertThat(ipDbService.listRanges(ipSpace, PageRequest.of(0, 10)), contains(existing));
+
+        // a failing insert rolls back the whole batch
+        List<IpRange> duplicateName = new ArrayList<>(batch);
+        duplicateName.add(range("existing", Map.entry("10.2.0.0", "10.2.0.4"), ipSpace));
+        assertThrows(DataIntegrityViolationException.class, () -> ipDbService.reserveAll(ipSpace.getId(), duplicateName));
+        assertThat(ipDbService.listRanges(ipSpace, PageRequest.of(0, 10)), contains(existing));
+        assertThat(ipDbService.free(range("q", Map.entry("10.0.0.0", "10.0.64.0"), ipSpace)), is(true));
+
+        BulkReservation reserved = ipDbService.reserveAll(ipSpace.getId(), batch);
+        assertThat(reserved.conflicts(), is(empty()));
+        assertThat(reserved.reserved(), hasSize(2032));
+        assertThat(reserved.reserved().stream().map(IpRange::getId).distinct().count(), is(2032L));
+        assertThat(ipDbService.listRanges(ipSpace, PageRequest.of(0, 5000)), hasSize(2033));
+        IpRange batch5 = batch.stream().filter(r -> r.getName().equals("batch5")).findFirst().orElseThrow();
+        assertThat(ipDbService.rangeOf(ipSpace, IpAddress.v4("10.0.0.81")), is(batch5));
+        assertThat(ipDbService.findRange(ipSpace.getId(), batch5.getId()), is(batch5));
+    }
+
+    @Test
+    void test_exportImport() {
+        IpSpace source = ipDbService.create(new IpSpace().setName("space_test_export").setIpVersion(IpVersion.V6));
+        List<IpRange> ranges = IntStream.range(0, 2500)
+                .mapToObj(i -> new IpRange().setName("r" + i)
+                        .setMinFromIp(IpAddress.v6(0x20010db8_00000000L + i, 0))
+                        .setMaxFromIp(IpAddress.v6(0x20010db8_00000000L + i, 0x100)))
+                .toList();
+        assertThat(ipDbService.reserveAll(source.getId(), ranges).conflicts(), is(empty()));
+
+        List<IpRange> exported = new ArrayList<>();
+        ipDbService.exportRanges(source, exported::add);
+        assertThat(exported, hasSize(2500));
+        assertThat(exported, is(ranges.stream().sorted(Comparator.comparing(IpRange::minAddress)).toList()));
+
+        IpSpace target = ipDbService.create(new IpSpace().setName("space_test_import").setIpVersion(IpVersion.V6));
+        var copies = exported.stream().map(r -> new IpRange().setName(r.getName()).setMin(r.getMin()).setMax(r.getMax()));
+        BulkImport imported = ipDbService.importRanges(target.getId(), copies.iterator());
+        assertThat(imported.imported(), is(2500L));
+        assertThat(imported.conflicts(), is(empty()));
+        assertThat(ipDbService.rangeOf(target, IpAddress.from("2001:db8:0:7::ff", IpVersion.V6)).getName(), is("r7"));
+
+        // batches before the conflicting one are kept, positions are within the whole input
+        IpSpace partial = ipDbService.create(new IpSpace().setName("space_test_import_partial").setIpVersion(IpVersion.V6));
+        List<IpRange> withConflict = new ArrayList<>(exported.stream()
+                .map(r -> new IpRange().setName(r.getName()).setMin(r.getMin()).setMax(r.getMax())).toList());
+        withConflict.set(1500, new IpRange().setName("conflict").setMin(exported.get(10).getMin()).setMax(exported.get(10).getMax()));
+        BulkImport failed = ipDbService.importRanges(partial.getId(), withConflict.iterator());
+        assertThat(failed.imported(), is(1000L));
+        assertThat(failed.conflicts().stream().map(Conflict::position).toList(), contains(1500));
+        assertThat(failed.conflicts().get(0).conflictsWith().stream().map(IpRange::getName).toList(), contains("r10"));
+        assertThat(ipDbService.listRanges(partial, PageRequest.of(0, 5000)), hasSize(1000));
+    }
+
+    @Test
+    void test_listRanges_keyset() {
+        IpSpace ipSpace = ipDbService.create(new IpSpace().setName("space_test_listRanges_keyset").setIpVersion(IpVersion.V6));
+        List<IpRange> ranges = IntStream.range(0, 25)
+                .mapToObj(i -> new IpRange().setName("k" + i)
+                        .setMinFromIp(IpAddress.v6(i * 2L, -16))
+                        .setMaxFromIp(IpAddress.v6(i * 2L + 1, 0)))
+                .toList();
+        assertThat(ipDbService.reserveAll(ipSpace.getId(), ranges).conflicts(), is(empty()));
+
+        List<IpRange> first = ipDbService.listRanges(ipSpace, null, 10);
+        assertThat(first, is(ranges.subList(0, 10)));
+
+        // inserting before the cursor does not shift the following pages
+        ipDbService.reserve(range("before", Map.entry("::8", "::10"), ipSpace));
+        List<IpRange> second = ipDbService.listRanges(ipSpace, RangeKey.of(first.get(9)), 10);
+        assertThat(second, is(ranges.subList(10, 20)));
+        List<IpRange> third = ipDbService.listRanges(ipSpace, RangeKey.of(second.get(9)), 10);
+        assertThat(third, is(ranges.subList(20, 25)));
+        assertThat(ipDbService.listRanges(ipSpace, RangeKey.of(third.get(4)), 10), is(empty()));
+
+        IpSpace other = ipDbService.create(new IpSpace().setName("space_test_listRanges_keyset.2").setIpVersion(IpVersion.V4));
+        List<IpSpace> spaces = ipDbService.listSpaces(ipSpace.getId(), 10);
+        assertThat(spaces.get(0).getId(), is(other.getId()));
+        assertThat(ipDbService.listSpaces(null, 1).get(0).getId(), is(lessThanOrEqualTo(ipSpace.getId())));
+    }
+
+    @Test
+    void test_concurrentReservations() throws Exception {
+        IpSpace ipSpace = ipDbService.create(new IpSpace().setName("space_test_concurrentReservations").setIpVersion(IpVersion.V4));
+        int threads = 8, attempts = 500;
+        AtomicInteger reserved = new AtomicInteger(), conflicted = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            // unaligned /24 sized ranges within a /16, so most requests overlap some other one
+            List<Callable<Void>> tasks = IntStream.range(0, threads).<Callable<Void>>mapToObj(t -> () -> {
+                Random random = new Random(t);
+                for (int i = 0; i < attempts; i++) {
+                    long min = 0x0a000000L + random.nextInt(0x10000 - 256);
+                    try {
+                        ipDbService.reserve(new IpRange().setName("c" + t + "." + i).setIpSpaceId(ipSpace.getId())
+                                .setMinFromIp(IpAddress.v4(min)).setMaxFromIp(IpAddress.v4(min + 256)));
+                        reserved.incrementAndGet();
+                    } catch (IpRangeConflictsException e) {
+                        conflicted.incrementAndGet();
+                    }
+                }
+                return null;
+            }).toList();
+            long start = System.nanoTime();
+            for (Future<Void> future : executor.invokeAll(tasks))
+                future.get();
+            long elapsed = System.nanoTime() - start;
+            log.info("{} reservations ({} conflicts) in {} ms", threads * attempts, conflicted.get(), elapsed / 1_000_000);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(reserved.get() + conflicted.get(), is(threads * attempts));
+        List<IpRange> ranges = ipDbService.listRanges(ipSpace, PageRequest.of(0, threads * attempts));
+        assertThat(ranges, hasSize(reserved.get()));
+        for (int i = 1; i < ranges.size(); i++)
+            assertThat(ranges.get(i).getName(), ranges.get(i - 1).getMax(), is(lessThanOrEqualTo(ranges.get(i).getMin())));
+    }
+
+    // two processes on one database: each checks writes against the stored ranges as well, not only its own index
+    @Test
+    void test_sharedDatabase() {
+        IpDbService other = new IpDbService(ipDbService.storage);
+        IpSpace ipSpace = ipDbService.create(new IpSpace().setName("space_test_sharedDatabase").setIpVersion(IpVersion.V4));
+        int id = ipSpace.getId();
+        ipDbService.reserve(new IpRange().setName("a").setIpSpaceId(id), "10.0.0.0/24");
+        assertThat(other.stats(id).ranges(), is(1));
+
+        ipDbService.reserve(new IpRange().setName("b").setIpSpaceId(id), "10.0.1.0/24");
+        assertThrows(IpRangeConflictsException.class, () -> other.reserve(new IpRange().setName("c").setIpSpaceId(id), "10.0.1.128/25"));
+        assertThat(other.stats(id).ranges(), is(2));
+        other.reserve(new IpRange().setName("d").setIpSpaceId(id), "10.0.2.0/24");
+        assertThat(names(ipDbService.listRanges(ipSpace, null, 10)), contains("a", "b", "d"));
+    }
+
+    @Test
+    void test_concurrentAllocations() throws Exception {
+        IpSpace ipSpace = ipDbService.create(new IpSpace().setName("space_test_concurrentAllocations").setIpVersion(IpVersion.V4)
+                .setMin(IpAddress.v4("10.0.0.0").toBigInteger())
+                .setMax(IpAddress.v4("10.0.16.0").toBigInteger()));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            // the space holds exactly 256 /28s
+            List<Future<IpRange>> allocations = IntStream.range(0, 256)
+                    .mapToObj(i -> executor.submit(() -> ipDbService.allocate(
+                            new IpRange().setName("a" + i).setIpSpaceId(ipSpace.getId()), 28, AllocationStrategy.FIRST_FIT)))
+                    .toList();
+            Set<BigInteger> mins = new HashSet<>();
+            for (Future<IpRange> allocation : allocations)
+                mins.add(allocation.get().getMin());
+            assertThat(mins, hasSize(256));
+        } finally {
+            executor.shutdown();
+        }
+        assertThrows(IpSpaceExhaustedException.class, () -> ipDbService.allocate(
+                new IpRange().setName("full").setIpSpaceId(ipSpace.getId()), 28, AllocationStrategy.FIRST_FIT));
+    }
+
+    @Test
+    void test_spaceBounds() {
+        IpSpace ipSpace = ipDbService.create(new IpSpace().setName("space_test_spaceBounds").setIpVersion(IpVersion.V4)
+                .setMin(IpAddress.v4("10.0.0.0").toBigInteger())
+                .setMax(IpAddress.v4("10.0.1.0").toBigInteger()));
+        ipDbService.reserve(new IpRange().setName("inside").setIpSpaceId(ipSpace.getId()), "10.0.0.0", "10.0.1.0");
+        assertThrows(IpRangeOutOfBoundsException.class, () -> ipDbService.reserve(
+                new IpRange().setName("outside").setIpSpaceId(ipSpace.getId()), "10.0.1.0", "10.0.2.0"));
+        BulkReservation bulk = ipDbService.reserveAll(ipSpace.getId(), List.of(
+                new IpRange().setName("below").setMinFromIp(IpAddress.v4("9.0.0.0")).setMaxFromIp(IpAddress.v4("9.0.1.0"))));
+        assertThat(bulk.conflicts(), hasSize(1));
+        assertThat(bulk.conflicts().get(0).conflictsWith(), is(empty()));
+
+        // ranges end after they start, empty and inverted ones don't split the free gaps
+        assertThrows(IllegalArgumentException.class, () -> ipDbService.reserve(
+                new IpRange().setName("inverted").setIpSpaceId(ipSpace.getId()), "10.0.0.50", "10.0.0.40"));
+        assertThrows(IllegalArgumentException.class, () -> ipDbService.reserve(
+                new IpRange().setName("empty").setIpSpaceId(ipSpace.getId()), "10.0.0.40", "10.0.0.40"));
+        assertThrows(IllegalArgumentException.class, () -> ipDbService.reserveAll(ipSpace.getId(), List.of(
+                new IpRange().setName("inverted").setMinFromIp(IpAddress.v4("10.0.0.50")).setMaxFromIp(IpAddress.v4("10.0.0.40")))));
+        assertThat(ipDbService.stats(ipSpace.getId()).free(), is(BigInteger.ZERO));
+
+        // the cached space and its bounds are replaced on update
+        ipDbService.update(ipDbService.findSpace(ipSpace.getId()).setMax(IpAddress.v4("10.0.2.0").toBigInteger()));
+        assertThat(ipDbService.findSpace(ipSpace.getId()).getMax(), is(IpAddress.v4("10.0.2.0").toBigInteger()));
+        ipDbService.reserve(new IpRange().setName("outside").setIpSpaceId(ipSpace.getId()), "10.0.1.0", "10.0.2.0");
+    }
+
+    @Test
+    void test_stats() {
+        IpSpace ipSpace = ipDbService.create(new IpSpace().setName("space_test_stats").setIpVersion(IpVersion.V4)
+                .setMin(IpAddress.v4("10.0.0.0").toBigInteger())
+                .setMax(IpAddress.v4("10.0.1.0").toBigInteger()));
+        ipDbService.reserve(new IpRange().setName("a").setIpSpaceId(ipSpace.getId()), "10.0.0.0", "10.0.0.64");
+        IpRange b = ipDbService.reserve(new IpRange().setName("b").setIpSpaceId(ipSpace.getId()), "10.0.0.128", "10.0.0.192");
+
+        SpaceStats stats = ipDbService.stats(ipSpace.getId());
+        assertThat(stats.ranges(), is(2));
+        assertThat(stats.size(), is(BigInteger.valueOf(256)));
+        assertThat(stats.used(), is(BigInteger.valueOf(128)));
+        assertThat(stats.free(), is(BigInteger.valueOf(128)));
+        assertThat(stats.largestFree(), is(BigInteger.valueOf(64)));
+
+        ipDbService.release(b);
+        stats = ipDbService.stats(ipSpace.getId());
+        assertThat(stats.ranges(), is(1));
+        assertThat(stats.used(), is(BigInteger.valueOf(64)));
+        assertThat(stats.largestFree(), is(BigInteger.valueOf(192)));
+        assertThat(stats.largestFreeStart(), is(IpAddress.v4("10.0.0.64")));
+        assertThat(stats.largestFreeEnd(), is(IpAddress.v4("10.0.1.0")));
+
+        IpSpace v6 = ipDbService.create(new IpSpace().setName("space_test_stats_v6").setIpVersion(IpVersion.V6));
+        ipDbService.reserve(new IpRange().setName("a").setIpSpaceId(v6.getId()), "::", "8000::");
+        stats = ipDbService.stats(v6.getId());
+        assertThat(stats.used(), is(BigInteger.ONE.shiftLeft(127)));
+        assertThat(stats.free(), is(BigInteger.ONE.shiftLeft(127)));
+        assertThat(stats.size(), is(BigInteger.ONE.shiftLeft(128)));
+    }
+
+    @Test
+    void test_listFree() {
+        IpSpace ipSpace = ipDbService.create(new IpSpace().setName("space_test_listFree").setIpVersion(IpVersion.V4)
+                .setMin(IpAddress.v4("10.0.0.0").toBigInteger())
+                .setMax(IpAddress.v4("10.0.1.0").toBigInteger()));
+        int id = ipSpace.getId();
+        ipDbService.reserve(new IpRange().setName("a").setIpSpaceId(id), "10.0.0.16", "10.0.0.64");
+        ipDbService.reserve(new IpRange().setName("b").setIpSpaceId(id), "10.0.0.128", "10.0.0.192");
+        ipDbService.reserve(new IpRange().setName("c").setIpSpaceId(id), "10.0.0.192", "10.0.0.200");
+
+        Function<List<FreeGap>, List<String>> gaps = l -> l.stream().map(g -> g.min().address() + "-" + g.max().address()).toList();
+        assertThat(gaps.apply(ipDbService.listFree(id, null, null, 10)),
+                contains("10.0.0.0-10.0.0.16", "10.0.0.64-10.0.0.128", "10.0.0.200-10.0.1.0"));
+        assertThat(gaps.apply(ipDbService.listFree(id, null, null, 2)),
+                contains("10.0.0.0-10.0.0.16", "10.0.0.64-10.0.0.128"));
+        assertThat(gaps.apply(ipDbService.listFree(id, IpAddress.v4("10.0.0.64"), null, 10)),
+                contains("10.0.0.200-10.0.1.0"));
+        assertThat(gaps.apply(ipDbService.listFree(id, null, BigInteger.valueOf(56), 10)),
+                contains("10.0.0.64-10.0.0.128", "10.0.0.200-10.0.1.0"));
+        assertThat(ipDbService.listFree(id, null, BigInteger.valueOf(56), 10).get(0).size(), is(BigInteger.valueOf(64)));
+        assertThat(ipDbService.listFree(id, null, BigInteger.ONE.shiftLeft(200), 10), is(empty()));
+
+        // top level ranges of nested spaces leave the gaps
+        IpSpace nested = ipDbService.create(new IpSpace().setName("space_test_listFree.nested").setIpVersion(IpVersion.V4).setNested(true)
+                .setMin(IpAddress.v4("10.0.0.0").toBigInteger())
+                .setMax(IpAddress.v4("10.1.0.0").toBigInteger()));
+        ipDbService.reserve(new IpRange().setName("site").setIpSpaceId(nested.getId()), "10.0.16.0/20");
+        ipDbService.reserve(new IpRange().setName("vlan").setIpSpaceId(nested.getId()), "10.0.16.0/24");
+        ipDbService.reserve(new IpRange().setName("other").setIpSpaceId(nested.getId()), "10.0.64.0/24");
+        assertThat(gaps.apply(ipDbService.listFree(nested.getId(), null, null, 10)),
+                contains("10.0.0.0-10.0.16.0", "10.0.32.0-10.0.64.0", "10.0.65.0-10.1.0.0"));
+        assertThat(gaps.apply(ipDbService.listFree(nested.getId(), IpAddress.v4("10.0.0.0"), BigInteger.valueOf(8192), 10)),
+                contains("10.0.32.0-10.0.64.0", "10.0.65.0-10.1.0.0"));
+    }
+
+    @Test
+    void test_nestedSpace() {
+        IpSpace ipSpace = ipDbService.create(new IpSpace().setName("space_test_nestedSpace").setIpVersion(IpVersion.V4).setNested(true));
+        IpRange supernet = ipDbService.reserve(new IpRange().setName("supernet").setIpSpaceId(ipSpace.getId()), "10.0.0.0/8");
+        IpRange site = ipDbService.reserve(new IpRange().setName("site").setIpSpaceId(ipSpace.getId()), "10.1.0.0/16");
+        IpRange vlan = ipDbService.reserve(new IpRange().setName("vlan").setIpSpaceId(ipSpace.getId()), "10.1.2.0/24");
+        IpRange other = ipDbService.reserve(new IpRange().setName("other").setIpSpaceId(ipSpace.getId()), "10.2.0.0/16");
+
+        // the most specific range wins
+        assertThat(ipDbService.rangeOf(ipSpace.getId(), IpAddress.v4("10.1.2.3")).getName(), is("vlan"));
+        assertThat(ipDbService.rangeOf(ipSpace.getId(), IpAddress.v4("10.1.3.3")).getName(), is("site"));
+        assertThat(ipDbService.rangeOf(ipSpace.getId(), IpAddress.v4("10.3.0.0")).getName(), is("supernet"));
+        assertThat(ipDbService.rangeOf(ipSpace.getId(), IpAddress.v4("11.0.0.0")), is(nullValue()));
+
+        // only the same block conflicts, and ranges must be blocks
+        assertThrows(IpRangeConflictsException.class, () -> ipDbService.reserve(new IpRange().setName("dup").setIpSpaceId(ipSpace.getId()), "10.1.0.0/16"));
+        assertThrows(IllegalArgumentException.class, () -> ipDbService.reserve(new IpRange().setName("odd").setIpSpaceId(ipSpace.getId()), "10.5.0.0", "10.5.0.3"));
+        BulkReservation bulk = ipDbService.reserveAll(ipSpace.getId(), List.of(
+                new IpRange().setName("b1").setMinFromIp(IpAddress.v4("10.1.2.0")).setMaxFromIp(IpAddress.v4("10.1.3.0")),
+                new IpRange().setName("b2").setMinFromIp(IpAddress.v4("10.9.0.0")).setMaxFromIp(IpAddress.v4("10.9.1.0")),
+                new IpRange().setName("b3").setMinFromIp(IpAddress.v4("10.9.0.0")).setMaxFromIp(IpAddress.v4("10.9.1.0"))));
+        assertThat(bulk.conflicts().stream().map(Conflict::position).toList(), contains(0, 2));
+        assertThat(bulk.conflicts().get(0).conflictsWith().get(0).getId(), is(vlan.getId()));
+
+        assertThat(names(ipDbService.children(ipSpace.getId(), null)), contains("supernet"));
+        assertThat(names(ipDbService.children(ipSpace.getId(), supernet.getId())), contains("site", "other"));
+        assertThat(names(ipDbService.children(ipSpace.getId(), site.getId())), contains("vlan"));
+        assertThat(ipDbService.stats(ipSpace.getId()).used(), is(BigInteger.ONE.shiftLeft(24)));
+        // keyset pages are ordered by (min, max), a block and its first child start at the same address
+        ipDbService.reserve(new IpRange().setName("first").setIpSpaceId(ipSpace.getId()), "10.0.0.0/16");
+        List<String> listed = new ArrayList<>();
+        for (List<IpRange> page = ipDbService.listRanges(ipSpace, null, 1); !page.isEmpty(); page = ipDbService.listRanges(ipSpace, RangeKey.of(page.get(0)), 1))
+            listed.addAll(names(page));
+        assertThat(listed, contains("first", "supernet", "site", "vlan", "other"));
+
+        // children move up when their parent is released, and the index survives a reload
+        ipDbService.release(site);
+        assertThat(names(ipDbService.children(ipSpace.getId(), supernet.getId())), contains("first", "vlan", "other"));
+        assertThat(ipDbService.rangeOf(ipSpace.getId(), IpAddress.v4("10.1.3.3")).getName(), is("supernet"));
+        ipDbService.update(ipDbService.findSpace(ipSpace.getId()));
+        assertThat(ipDbService.rangeOf(ipSpace.getId(), IpAddress.v4("10.1.2.3")).getId(), is(vlan.getId()));
+        assertThat(ipDbService.rangeOf(ipSpace.getId(), IpAddress.v4("10.2.2.3")).getId(), is(other.getId()));
+
+        IpSpace flat = ipDbService.create(new IpSpace().setName("space_test_nestedSpace.flat").setIpVersion(IpVersion.V4));
+        assertThrows(IllegalArgumentException.class, () -> ipDbService.children(flat.getId(), null));
+    }
+
+    static List<String> names(List<IpRange> ipRanges) {
+        return ipRanges.stream().map(IpRange::getName).toList();
+    }
+
     @Test
     void test_ipSpaceCrud() {
         var name = "test_ipSpaceCrud.1";
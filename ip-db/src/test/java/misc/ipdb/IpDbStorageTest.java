@@ -0,0 +1,141 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.ChangeType;
+import misc.ipdb.IpDbService.IpAddress;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.IpSpace;
+import misc.ipdb.IpDbService.IpVersion;
+import misc.ipdb.IpDbService.RangeKey;
+import misc.ipdb.util.DbFactory;
+import misc.ipdb.util.IpRangeConflictsException;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.dao.DataIntegrityViolationException;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// the same behaviour from every storage engine
+class IpDbStorageTest {
+    @TempDir
+    static Path directory;
+
+    static IpDbStorage storage(String engine) {
+        IpDbStorage storage = switch (engine) {
+            case "jdbc" -> IpDbStorage.jdbc(DbFactory.INSTANCE.dataSource("jdbc:h2:mem:" + UUID.randomUUID() +
+                    ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH"));
+            case "file" -> IpDbStorage.file(directory.resolve(UUID.randomUUID().toString()));
+            default -> IpDbStorage.memory();
+        };
+        storage.migrate();
+        return storage;
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"jdbc", "file", "memory"})
+    void test_service(String engine) {
+        IpDbService ipDbService = new IpDbService(storage(engine));
+        IpSpace ipSpace = ipDbService.create(new IpSpace().setName("space").setIpVersion(IpVersion.V4));
+        int id = ipSpace.getId();
+        IpRange a = ipDbService.reserve(new IpRange().setName("a").setIpSpaceId(id), "10.0.0.0", "10.0.1.0");
+        ipDbService.reserve(new IpRange().setName("b").setIpSpaceId(id), "10.0.2.0/24");
+        assertThrows(IpRangeConflictsException.class, () -> ipDbService.reserve(new IpRange().setName("c").setIpSpaceId(id), "10.0.0.128/25"));
+
+        assertThat(ipDbService.findRange(id, a.getId()).getName(), is("a"));
+        assertThat(ipDbService.listRanges(ipSpace, null, 10).stream().map(IpRange::getName).toList(), contains("a", "b"));
+        assertThat(ipDbService.listRanges(ipSpace, RangeKey.of(a), 10).stream().map(IpRange::getName).toList(), contains("b"));
+        assertThat(ipDbService.findRanges(IpVersion.V4, new IpRange().setIpSpaceId(id)
+                .setMinFromIp(IpAddress.v4("10.0.0.255")).setMaxFromIp(IpAddress.v4("10.0.2.1"))), hasSize(2));
+        assertThrows(DataIntegrityViolationException.class, () -> ipDbService.delete(ipSpace));
+
+        ipDbService.release(a);
+        assertThat(ipDbService.listRanges(ipSpace, null, 10).stream().map(IpRange::getName).toList(), contains("b"));
+        assertThat(ipDbService.changes(0, id, 10).changes().stream().map(IpDbService.Change::type).toList(),
+                contains(ChangeType.SPACE_CREATED, ChangeType.RANGE_RESERVED, ChangeType.RANGE_RESERVED, ChangeType.RANGE_RELEASED));
+    }
+
+    // a range up to the end of the address space is after one from the same min, and overlaps everything after it
+    @ParameterizedTest
+    @ValueSource(strings = {"jdbc", "file", "memory"})
+    void test_rangesToEnd(String engine) {
+        IpDbService ipDbService = new IpDbService(storage(engine));
+        for (IpVersion ipVersion : IpVersion.values()) {
+            IpSpace ipSpace = ipDbService.create(new IpSpace().setName("nested " + ipVersion).setIpVersion(ipVersion).setNested(true));
+            int id = ipSpace.getId();
+            IpAddress last = ipVersion.last();
+            IpAddress min = last.mask(ipVersion.getBits() - 8);
+            ipDbService.reserve(new IpRange().setName("to end").setIpSpaceId(id).setMinFromIp(min).setMaxFromIp(ipVersion.end()));
+            ipDbService.reserve(new IpRange().setName("to last").setIpSpaceId(id).setMinFromIp(min).setMaxFromIp(min.plusBlock(ipVersion.getBits() - 7)));
+            ipDbService.reserve(new IpRange().setName("last").setIpSpaceId(id).setMinFromIp(last).setMaxFromIp(ipVersion.end()));
+
+            List<IpRange> listed = ipDbService.listRanges(ipSpace, null, 10);
+            assertThat(listed.stream().map(IpRange::getName).toList(), contains("to last", "to end", "last"));
+            assertThat(listed.get(1).maxAddress(), is(ipVersion.end()));
+            assertThat(ipDbService.listRanges(ipSpace, RangeKey.of(listed.get(0)), 10), is(listed.subList(1, 3)));
+            assertThat(ipDbService.listRanges(ipSpace, RangeKey.of(listed.get(1)), 10), is(listed.subList(2, 3)));
+            assertThat(ipDbService.findRanges(ipVersion, new IpRange().setIpSpaceId(id).setMinFromIp(last).setMaxFromIp(ipVersion.end()))
+                    .stream().map(IpRange::getName).toList(), contains("to end", "last"));
+            assertThat(ipDbService.rangeOf(ipSpace, last).getName(), is("last"));
+        }
+    }
+
+    // ordered scans and overlaps of nested blocks against a scan of all of them, while inserting and deleting
+    @ParameterizedTest
+    @ValueSource(strings = {"jdbc", "file", "memory"})
+    void test_rangeStore(String engine) {
+        IpDbStorage storage = storage(engine);
+        IpSpace ipSpace = storage.spaces().insert(new IpSpace().setName("nested").setIpVersion(IpVersion.V6).setNested(true));
+        RangeStore ranges = storage.ranges();
+        Random random = new Random(1);
+        List<IpRange> expected = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            if (!expected.isEmpty() && random.nextInt(4) == 0) {
+                IpRange removed = expected.remove(random.nextInt(expected.size()));
+                assertThat(ranges.deleteAll(IpVersion.V6, List.of(removed.getId())), is(1));
+                continue;
+            }
+            int length = 8 + random.nextInt(17);
+            IpAddress min = IpAddress.v6(random.nextLong() & Long.MAX_VALUE, 0).mask(length);
+            // the same block twice would be in no particular order
+            if (expected.stream().anyMatch(r -> r.minAddress().equals(min) && r.getMax().equals(min.plusBlock(length).toBigInteger())))
+                continue;
+            IpRange ipRange = new IpRange().setName("r" + i).setIpSpaceId(ipSpace.getId()).setIpSpace(ipSpace)
+                    .setMinFromIp(min).setMaxFromIp(min.plusBlock(length));
+            ranges.insertAll(IpVersion.V6, List.of(ipRange));
+            expected.add(ipRange);
+        }
+        Comparator<IpRange> order = Comparator.comparing(IpRange::minAddress).thenComparing(IpRange::maxAddress);
+        expected.sort(order);
+
+        List<IpRange> scanned = new ArrayList<>();
+        ranges.scan(ipSpace, scanned::add);
+        assertThat(ids(scanned), is(ids(expected)));
+        assertThat(ids(ranges.list(ipSpace, RangeKey.of(expected.get(9)), 5)), is(ids(expected.subList(10, 15))));
+        assertThat(ids(ranges.list(ipSpace, 10, 5)), is(ids(expected.subList(10, 15))));
+        assertThat(ranges.find(ipSpace, expected.get(3).getId()).getName(), is(expected.get(3).getName()));
+
+        for (int i = 0; i < 100; i++) {
+            IpAddress min = IpAddress.v6(random.nextLong(), 0);
+            IpAddress max = min.plusBlock(16 + random.nextInt(16));
+            if (max == null)
+                continue;
+            List<IpRange> overlapping = expected.stream()
+                    .filter(r -> r.minAddress().compareTo(max) < 0 && r.maxAddress().compareTo(min) > 0)
+                    .toList();
+            assertThat(ids(ranges.overlapping(ipSpace, min, max)), is(ids(overlapping)));
+        }
+    }
+
+    static List<Integer> ids(List<IpRange> ipRanges) {
+        return ipRanges.stream().map(IpRange::getId).toList();
+    }
+}
@@ -0,0 +1,72 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.Cidr;
+import misc.ipdb.IpDbService.IpAddress;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.IpSpace;
+import misc.ipdb.IpDbService.IpVersion;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class IpPrefixTrieTest {
+
+    // longest prefix match against a scan of all blocks, while adding and removing random blocks
+    @ParameterizedTest
+    @EnumSource(IpVersion.class)
+    void test_rangeOf_matchesScan(IpVersion ipVersion) {
+        Random random = new Random(ipVersion.getBits());
+        IpSpace ipSpace = new IpSpace().setId(1).setIpVersion(ipVersion);
+        IpPrefixTrie trie = new IpPrefixTrie(ipSpace, List.of());
+        List<IpRange> ranges = new ArrayList<>();
+        Set<Cidr> blocks = new HashSet<>();
+        for (int i = 0; i < 2000; i++) {
+            if (!ranges.isEmpty() && random.nextInt(4) == 0) {
+                IpRange removed = ranges.remove(random.nextInt(ranges.size()));
+                assertThat(trie.remove(removed.getId()), is(removed));
+                blocks.remove(Cidrs.decompose(removed.minAddress(), removed.maxAddress()).get(0));
+                continue;
+            }
+            // short prefixes of a few networks, so blocks nest often
+            int length = random.nextInt(Math.min(ipVersion.getBits(), 24) + 1);
+            Cidr cidr = new Cidr(address(ipVersion, random.nextInt(4), random.nextLong()).mask(length), length);
+            if (!blocks.add(cidr)) {
+                assertThat(trie.conflicts(cidr.min(), cidr.max()), is(true));
+                continue;
+            }
+            IpRange ipRange = new IpRange().setId(i).setIpSpace(ipSpace).setMinFromIp(cidr.min()).setMaxFromIp(cidr.max());
+            trie.add(ipRange);
+            ranges.add(ipRange);
+        }
+        assertThat(trie.size(), is(ranges.size()));
+        for (int i = 0; i < 2000; i++) {
+            IpAddress address = address(ipVersion, random.nextInt(4), random.nextLong());
+            IpRange expected = ranges.stream()
+                    .filter(r -> contains(r, address))
+                    .max(Comparator.comparing(IpRange::minAddress).thenComparing(IpRange::maxAddress, Comparator.reverseOrder()))
+                    .orElse(null);
+            IpRange actual = trie.rangeOf(address);
+            assertThat(address.toString(), actual == null ? null : actual.getId(), is(expected == null ? null : expected.getId()));
+        }
+    }
+
+    // one of a few networks in the top bits, then random bits
+    static IpAddress address(IpVersion ipVersion, int network, long bits) {
+        return ipVersion == IpVersion.V4
+                ? IpAddress.v4(((long) (10 + network) << 24) | (bits & 0xffffff))
+                : new IpAddress(0x2001_0db8_0000_0000L | ((long) network << 16) | (bits >>> 48), bits, ipVersion);
+    }
+
+    static boolean contains(IpRange ipRange, IpAddress address) {
+        return ipRange.minAddress().compareTo(address) <= 0 && ipRange.maxAddress().compareTo(address) > 0;
+    }
+}
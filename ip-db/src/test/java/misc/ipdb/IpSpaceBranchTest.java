@@ -0,0 +1,94 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.BulkReservation;
+import misc.ipdb.IpDbService.Change;
+import misc.ipdb.IpDbService.ChangeType;
+import misc.ipdb.IpDbService.IpAddress;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.IpSpace;
+import misc.ipdb.IpDbService.IpVersion;
+import misc.ipdb.IpDbService.RangeKey;
+import misc.ipdb.util.DbFactory;
+import misc.ipdb.util.IpRangeConflictsException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class IpSpaceBranchTest {
+
+    static IpDbService ipDbService;
+
+    @BeforeAll
+    static void beforeAll() {
+        ipDbService = new IpDbService(DbFactory.INSTANCE);
+        ipDbService.dbMigrator().migrate();
+    }
+
+    @Test
+    void test_branches() {
+        IpSpace ipSpace = ipDbService.create(new IpSpace().setName("space_test_branches").setIpVersion(IpVersion.V4));
+        int id = ipSpace.getId();
+        IpRange a = ipDbService.reserve(new IpRange().setName("a").setIpSpaceId(id), "10.0.0.0", "10.0.1.0");
+        IpRange b = ipDbService.reserve(new IpRange().setName("b").setIpSpaceId(id), "10.0.1.0", "10.0.2.0");
+
+        ipDbService.createBranch(id, "plan");
+        assertThrows(IllegalArgumentException.class, () -> ipDbService.createBranch(id, "plan"));
+        IpRange c = ipDbService.reserveInBranch(id, "plan", range("c", "10.0.2.0", "10.0.3.0"));
+        assertThat(c.getId(), lessThan(0));
+        assertThrows(IpRangeConflictsException.class, () -> ipDbService.reserveInBranch(id, "plan", range("x", "10.0.0.128", "10.0.0.255")));
+        assertThrows(IllegalArgumentException.class, () -> ipDbService.reserveInBranch(id, "plan", range("y", "10.0.3.0", "10.0.2.0")));
+        assertThat(ipDbService.releaseInBranch(id, "plan", a.getId()).getName(), is("a"));
+        ipDbService.reserveInBranch(id, "plan", range("d", "10.0.0.0", "10.0.0.128"));
+
+        // the space is unchanged, the branch is
+        assertThat(ipDbService.rangeOf(id, IpAddress.v4("10.0.0.200")).getName(), is("a"));
+        assertThat(ipDbService.rangeOf(id, IpAddress.v4("10.0.2.1")), is(nullValue()));
+        assertThat(ipDbService.rangeOfInBranch(id, "plan", IpAddress.v4("10.0.0.200")), is(nullValue()));
+        assertThat(names(ipDbService.listBranchRanges(id, "plan", null, 10)), contains("d", "b", "c"));
+        assertThat(names(ipDbService.listBranchRanges(id, "plan", RangeKey.of(b), 10)), contains("c"));
+        assertThat(ipDbService.listBranches(id), contains(new IpDbService.Branch(id, "plan", 3)));
+
+        IpDbService.BranchDiff diff = ipDbService.diffBranch(id, "plan");
+        assertThat(names(diff.added()), contains("d", "c"));
+        assertThat(names(diff.removed()), contains("a"));
+
+        // a conflicting reservation on the space since fails the merge, which leaves both as they are
+        IpRange e = ipDbService.reserve(new IpRange().setName("e").setIpSpaceId(id), "10.0.2.128", "10.0.2.255");
+        BulkReservation conflicting = ipDbService.mergeBranch(id, "plan");
+        assertThat(conflicting.conflicts(), hasSize(1));
+        assertThat(conflicting.conflicts().get(0).ipRange().getName(), is("c"));
+        assertThat(names(conflicting.conflicts().get(0).conflictsWith()), contains("e"));
+        assertThat(ipDbService.rangeOf(id, IpAddress.v4("10.0.0.200")).getName(), is("a"));
+
+        ipDbService.release(e);
+        BulkReservation merged = ipDbService.mergeBranch(id, "plan");
+        assertThat(merged.conflicts(), is(empty()));
+        assertThat(names(merged.reserved()), contains("d", "c"));
+        assertThat(merged.reserved().get(0).getId(), greaterThan(0));
+        assertThat(names(ipDbService.listRanges(ipSpace, null, 10)), contains("d", "b", "c"));
+        assertThat(ipDbService.findRange(id, merged.reserved().get(1).getId()).getName(), is("c"));
+        assertThat(ipDbService.listBranches(id), is(empty()));
+        List<Change> changes = ipDbService.changes(0, id, 100).changes();
+        assertThat(changes.subList(changes.size() - 3, changes.size()).stream().map(Change::type).toList(),
+                contains(ChangeType.RANGE_RELEASED, ChangeType.RANGE_RESERVED, ChangeType.RANGE_RESERVED));
+
+        // a branch made after changes sees them
+        ipDbService.createBranch(id, "later");
+        assertThat(names(ipDbService.listBranchRanges(id, "later", null, 10)), contains("d", "b", "c"));
+        assertThat(ipDbService.deleteBranch(id, "later").name(), is("later"));
+        assertThat(ipDbService.deleteBranch(id, "later"), is(nullValue()));
+    }
+
+    static IpRange range(String name, String min, String max) {
+        return new IpRange().setName(name).setMinFromIp(IpAddress.v4(min)).setMaxFromIp(IpAddress.v4(max));
+    }
+
+    static List<String> names(List<IpRange> ipRanges) {
+        return ipRanges.stream().map(IpRange::getName).toList();
+    }
+}
@@ -0,0 +1,22 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.IpSpace;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class IpSpaceCacheTest {
+
+    @Test
+    void test_evictsLeastRecentlyUsed() {
+        var cache = new IpSpaceCache(2);
+        cache.put(new IpSpace().setId(1));
+        cache.put(new IpSpace().setId(2));
+        cache.get(1);
+        cache.put(new IpSpace().setId(3));
+        assertThat(cache.size(), is(2));
+        assertThat(cache.get(1), is(notNullValue()));
+        assertThat(cache.get(2), is(nullValue()));
+    }
+}
@@ -0,0 +1,82 @@
+package misc.ipdb;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class PersistentSortedMapTest {
+
+    // against a TreeMap, while putting and removing random keys, and the diff against the map from before
+    @Test
+    void test_matchesTreeMap() {
+        Random random = new Random(1);
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 500; i += 2)
+            keys.add(i);
+        var map = PersistentSortedMap.ofSorted(keys, keys.stream().map(String::valueOf).toList());
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        keys.forEach(k -> expected.put(k, String.valueOf(k)));
+
+        for (int round = 0; round < 50; round++) {
+            var before = map;
+            TreeMap<Integer, String> expectedBefore = new TreeMap<>(expected);
+            for (int i = 0; i < 20; i++) {
+                int key = random.nextInt(1000);
+                if (random.nextBoolean()) {
+                    map = map.put(key, "v" + round + "." + i);
+                    expected.put(key, "v" + round + "." + i);
+                } else {
+                    map = map.remove(key);
+                    expected.remove(key);
+                }
+            }
+            assertThat(map.size(), is(expected.size()));
+            assertThat(map.values(null, null, Integer.MAX_VALUE), is(new ArrayList<>(expected.values())));
+            int key = random.nextInt(1000);
+            assertThat(map.get(key), is(expected.get(key)));
+            assertThat(key(map.floorEntry(key)), is(expected.floorKey(key)));
+            assertThat(key(map.higherEntry(key)), is(expected.higherKey(key)));
+            List<String> between = new ArrayList<>(expected.subMap(key, false, key + 100, false).values());
+            assertThat(map.values(key, key + 100, 10), is(between.subList(0, Math.min(10, between.size()))));
+
+            List<String> diff = new ArrayList<>();
+            PersistentSortedMap.diff(before, map, (k, b, a) -> diff.add(k + ":" + b + ">" + a));
+            List<String> expectedDiff = new ArrayList<>();
+            TreeMap<Integer, String> all = new TreeMap<>(expectedBefore);
+            all.putAll(expected);
+            for (Integer k : all.keySet()) {
+                String b = expectedBefore.get(k), a = expected.get(k);
+                if (b == null ? a != null : !b.equals(a))
+                    expectedDiff.add(k + ":" + b + ">" + a);
+            }
+            assertThat(diff, is(expectedDiff));
+        }
+    }
+
+    // maps derived from one another share the nodes they didn't change
+    @Test
+    void test_updatesKeepEarlierMaps() {
+        var empty = PersistentSortedMap.<Integer, String>empty();
+        var one = empty.put(1, "a");
+        var two = one.put(2, "b");
+        assertThat(empty.size(), is(0));
+        assertThat(one.values(null, null, 10), contains("a"));
+        assertThat(two.values(null, null, 10), contains("a", "b"));
+        assertThat(two.remove(3), is(sameInstance(two)));
+
+        List<Integer> diff = new ArrayList<>();
+        PersistentSortedMap.diff(two, two, (k, b, a) -> diff.add(k));
+        assertThat(diff, is(empty()));
+    }
+
+    static Integer key(Map.Entry<Integer, String> entry) {
+        return entry == null ? null : entry.getKey();
+    }
+}
@@ -0,0 +1,184 @@
+package misc.ipdb;
+
+import misc.ipdb.IpDbService.Change;
+import misc.ipdb.IpDbService.ChangeType;
+import misc.ipdb.IpDbService.Cidr;
+import misc.ipdb.IpDbService.IpAddress;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.IpSpace;
+import misc.ipdb.IpDbService.IpVersion;
+import misc.ipdb.util.DbFactory;
+import misc.ipdb.util.IpRangeConflictsException;
+import misc.ipdb.util.IpRangeOutOfBoundsException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ReservationPipelineTest {
+
+    static IpDbService ipDbService;
+
+    @BeforeAll
+    static void beforeAll() {
+        ipDbService = new IpDbService(DbFactory.INSTANCE);
+        ipDbService.dbMigrator().migrate();
+    }
+
+    static Function<String, IpRange> ranges(IpSpace ipSpace) {
+        return cidr -> {
+            Cidr block = Cidr.parse(cidr, ipSpace.getIpVersion());
+            return new IpRange().setName(cidr).setIpSpaceId(ipSpace.getId()).setIpSpace(ipSpace)
+                    .setMinFromIp(block.min()).setMaxFromIp(block.max());
+        };
+    }
+
+    static ReservationPipeline.Request request(IpRange ipRange, boolean release) {
+        return new ReservationPipeline.Request(ipRange, release, new CompletableFuture<>());
+    }
+
+    static Throwable failure(ReservationPipeline.Request request) {
+        assertThat(request.future().isDone(), is(true));
+        return assertThrows(CompletionException.class, () -> request.future().join()).getCause();
+    }
+
+    // one batch: the invalid and conflicting requests are rejected on their own, the others are written together
+    @Test
+    void test_commit() {
+        IpSpace ipSpace = ipDbService.create(new IpSpace().setName("space_test_commit").setIpVersion(IpVersion.V4)
+                .setMin(IpAddress.v4("10.0.0.0").toBigInteger())
+                .setMax(IpAddress.v4("10.0.1.0").toBigInteger()));
+        Function<String, IpRange> range = ranges(ipSpace);
+        IpRange existing = ipDbService.reserve(range.apply("10.0.0.0/28"));
+        var a = request(range.apply("10.0.0.16/28"), false);
+        var conflicting = request(range.apply("10.0.0.16/29"), false);
+        var inverted = request(new IpRange().setName("inverted").setIpSpaceId(ipSpace.getId()).setIpSpace(ipSpace)
+                .setMinFromIp(IpAddress.v4("10.0.0.200")).setMaxFromIp(IpAddress.v4("10.0.0.100")), false);
+        var outOfBounds = request(range.apply("10.0.1.0/28"), false);
+        var released = request(existing, true);
+        var afterRelease = request(range.apply("10.0.0.0/29"), false);
+        var missing = request(new IpRange().setId(-1).setIpSpaceId(ipSpace.getId()).setIpSpace(ipSpace), true);
+        ipDbService.commit(ipSpace.getId(), List.of(a, conflicting, inverted, outOfBounds, released, afterRelease, missing));
+
+        assertThat(a.future().join().getName(), is("10.0.0.16/28"));
+        assertThat(failure(conflicting), instanceOf(IpRangeConflictsException.class));
+        assertThat(failure(inverted), instanceOf(IllegalArgumentException.class));
+        assertThat(failure(outOfBounds), instanceOf(IpRangeOutOfBoundsException.class));
+        assertThat(released.future().join().getId(), is(existing.getId()));
+        assertThat(afterRelease.future().join().getId(), notNullValue());
+        assertThat(missing.future().join(), nullValue());
+        assertThat(ipDbService.listRanges(ipSpace, null, 10).stream().map(IpRange::getName).toList(),
+                contains("10.0.0.0/29", "10.0.0.16/28"));
+        assertThat(ipDbService.changes(0, ipSpace.getId(), 10).changes().stream().map(Change::type).toList(),
+                contains(ChangeType.SPACE_CREATED, ChangeType.RANGE_RESERVED,
+                        ChangeType.RANGE_RESERVED, ChangeType.RANGE_RELEASED, ChangeType.RANGE_RESERVED));
+
+        // a write that fails (its name is taken) rolls back the batch, its other writes fail with it and nothing is
+        // retried; the requests rejected by the checks keep their own outcome
+        var before = request(range.apply("10.0.0.64/28"), false);
+        var taken = request(range.apply("10.0.0.80/28").setName("10.0.0.16/28"), false);
+        var overlapsBefore = request(range.apply("10.0.0.64/29"), false);
+        var releasedWithIt = request(a.future().join(), true);
+        ipDbService.commit(ipSpace.getId(), List.of(before, taken, overlapsBefore, releasedWithIt));
+
+        assertThat(failure(before), instanceOf(DataIntegrityViolationException.class));
+        assertThat(failure(taken), instanceOf(DataIntegrityViolationException.class));
+        assertThat(failure(overlapsBefore), instanceOf(IpRangeConflictsException.class));
+        assertThat(failure(releasedWithIt), instanceOf(DataIntegrityViolationException.class));
+        // the index is loaded again from what was committed
+        assertThat(ipDbService.rangeOf(ipSpace.getId(), IpAddress.v4("10.0.0.64")), nullValue());
+        assertThat(ipDbService.rangeOf(ipSpace.getId(), IpAddress.v4("10.0.0.16")).getName(), is("10.0.0.16/28"));
+        assertThat(ipDbService.changes(0, ipSpace.getId(), 10).changes(), hasSize(5));
+    }
+
+    // requests queued together commit in one batch, each checked in submission order against the ones before it
+    @Test
+    void test_groupCommit() {
+        IpDbService batching = new IpDbService(ipDbService.storage);
+        batching.setGroupCommit(100, Duration.ofMillis(200));
+        IpSpace ipSpace = batching.create(new IpSpace().setName("space_test_groupCommit").setIpVersion(IpVersion.V4)
+                .setMin(IpAddress.v4("10.0.0.0").toBigInteger())
+                .setMax(IpAddress.v4("10.0.1.0").toBigInteger()));
+        int id = ipSpace.getId();
+        IpRange existing = batching.reserve(new IpRange().setName("existing").setIpSpaceId(id), "10.0.0.0/28");
+        Function<String, IpRange> range = cidr -> {
+            Cidr block = Cidr.parse(cidr, IpVersion.V4);
+            return new IpRange().setName(cidr).setIpSpaceId(id).setMinFromIp(block.min()).setMaxFromIp(block.max());
+        };
+        var a = batching.reserveAsync(range.apply("10.0.0.16/28"));
+        var conflicting = batching.reserveAsync(range.apply("10.0.0.16/29"));
+        var released = batching.releaseAsync(existing);
+        var afterRelease = batching.reserveAsync(range.apply("10.0.0.0/29"));
+        var outOfBounds = batching.reserveAsync(range.apply("10.0.1.0/28"));
+        var missing = batching.releaseAsync(new IpRange().setId(-1).setIpSpaceId(id));
+        var inverted = batching.reserveAsync(new IpRange().setName("inverted").setIpSpaceId(id)
+                .setMinFromIp(IpAddress.v4("10.0.0.200")).setMaxFromIp(IpAddress.v4("10.0.0.100")));
+
+        assertThat(a.join().getName(), is("10.0.0.16/28"));
+        CompletionException e = assertThrows(CompletionException.class, conflicting::join);
+        assertThat(e.getCause(), instanceOf(IpRangeConflictsException.class));
+        assertThat(released.join().getId(), is(existing.getId()));
+        assertThat(afterRelease.join().getId(), notNullValue());
+        e = assertThrows(CompletionException.class, outOfBounds::join);
+        assertThat(e.getCause(), instanceOf(IpRangeOutOfBoundsException.class));
+        e = assertThrows(CompletionException.class, inverted::join);
+        assertThat(e.getCause(), instanceOf(IllegalArgumentException.class));
+        assertThat(missing.join(), nullValue());
+        assertThat(batching.listRanges(ipSpace, null, 10).stream().map(IpRange::getName).toList(),
+                contains("10.0.0.0/29", "10.0.0.16/28"));
+        assertThat(batching.changes(0, id, 10).changes().stream().map(Change::type).toList(),
+                contains(ChangeType.SPACE_CREATED, ChangeType.RANGE_RESERVED,
+                        ChangeType.RANGE_RESERVED, ChangeType.RANGE_RELEASED, ChangeType.RANGE_RESERVED));
+
+        // concurrent callers racing for the same block: one of them gets it
+        List<CompletableFuture<IpRange>> racing = IntStream.range(0, 50)
+                .mapToObj(i -> batching.reserveAsync(range.apply("10.0.0.128/28")))
+                .toList();
+        assertThat(racing.stream().filter(f -> !f.handle((r, t) -> t == null).join()).count(), is(49L));
+        assertThat(batching.find(IpVersion.V4, range.apply("10.0.0.128/28")), is(1));
+
+        // and in nested spaces a range that isn't a block is rejected on its own
+        IpSpace nested = batching.create(new IpSpace().setName("space_test_groupCommit.nested").setIpVersion(IpVersion.V4).setNested(true));
+        var block = batching.reserveAsync(new IpRange().setName("block").setIpSpaceId(nested.getId())
+                .setMinFromIp(IpAddress.v4("10.0.0.0")).setMaxFromIp(IpAddress.v4("10.0.1.0")));
+        var notBlock = batching.reserveAsync(new IpRange().setName("notBlock").setIpSpaceId(nested.getId())
+                .setMinFromIp(IpAddress.v4("10.0.0.0")).setMaxFromIp(IpAddress.v4("10.0.0.3")));
+        assertThat(block.join().getName(), is("block"));
+        e = assertThrows(CompletionException.class, notBlock::join);
+        assertThat(e.getCause(), instanceOf(IllegalArgumentException.class));
+    }
+
+    // the requests queued when the pipeline is replaced are committed by the old one without waiting for its window
+    @Test
+    void test_setGroupCommit() {
+        IpDbService batching = new IpDbService(ipDbService.storage);
+        batching.setGroupCommit(100, Duration.ofMinutes(1));
+        IpSpace ipSpace = batching.create(new IpSpace().setName("space_test_setGroupCommit").setIpVersion(IpVersion.V4));
+        Function<String, IpRange> range = ranges(ipSpace);
+        // a lone request commits at once
+        assertThat(batching.reserveAsync(range.apply("10.0.0.0/24")).join().getName(), is("10.0.0.0/24"));
+
+        List<CompletableFuture<IpRange>> queued = IntStream.range(1, 21)
+                .mapToObj(i -> batching.reserveAsync(range.apply("10.0." + i + ".0/24")))
+                .toList();
+        long start = System.nanoTime();
+        batching.setGroupCommit(100, Duration.ofMillis(1));
+        assertThat(Duration.ofNanos(System.nanoTime() - start), lessThan(Duration.ofSeconds(30)));
+        assertThat(queued.stream().allMatch(CompletableFuture::isDone), is(true));
+        assertThat(queued.stream().map(CompletableFuture::join).map(IpRange::getName).toList(),
+                everyItem(startsWith("10.0.")));
+
+        assertThat(batching.reserveAsync(range.apply("10.1.0.0/24")).join().getName(), is("10.1.0.0/24"));
+        assertThat(batching.listRanges(ipSpace, null, 100), hasSize(22));
+    }
+}
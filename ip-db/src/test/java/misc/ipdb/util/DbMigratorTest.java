@@ -0,0 +1,79 @@
+package misc.ipdb.util;
+
+import misc.ipdb.IpDbService;
+import misc.ipdb.IpDbService.IpAddress;
+import misc.ipdb.IpDbService.IpRange;
+import misc.ipdb.IpDbService.IpSpace;
+import misc.ipdb.IpDbService.IpVersion;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.simple.JdbcClient;
+
+import javax.sql.DataSource;
+import java.math.BigInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DbMigratorTest {
+
+    @Test
+    void test_migrateNumericBounds() {
+        DataSource dataSource = DbFactory.INSTANCE.dataSource("jdbc:h2:mem:test_migrateNumericBounds;MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH");
+        var dbMigrator = new DbMigrator(dataSource);
+        dbMigrator.migrate(DbMigrator.Migration.IP_RANGES);
+
+        var jdbcClient = JdbcClient.create(dataSource);
+        jdbcClient.sql("insert into ip_space(id, name, version) values (1, 'v4', 4), (2, 'v6', 6)").update();
+        // the last ranges end at the top of the space, 2^32 and 2^128
+        jdbcClient.sql("insert into ip_range_v4(ip_space_id, name, min, max) values (1, 'a', ?, ?), (1, 'b', ?, ?), (1, 'c', ?, ?)")
+                .params(IpAddress.v4("10.0.0.0").toBigInteger(), IpAddress.v4("10.0.0.4").toBigInteger(),
+                        IpAddress.v4("192.168.0.0").toBigInteger(), IpAddress.v4("192.168.1.0").toBigInteger(),
+                        IpAddress.v4("255.255.255.0").toBigInteger(), BigInteger.ONE.shiftLeft(32))
+                .update();
+        jdbcClient.sql("insert into ip_range_v6(ip_space_id, name, min, max) values (2, 'a', ?, ?), (2, 'b', ?, ?), (2, 'c', ?, ?)")
+                .params(IpAddress.v6("2001:db8::").toBigInteger(), IpAddress.v6("2001:db8::100").toBigInteger(),
+                        IpAddress.v6("fd00::").toBigInteger(), IpAddress.v6("fd00::1:0").toBigInteger(),
+                        IpAddress.v6("ffff::").toBigInteger(), BigInteger.ONE.shiftLeft(128))
+                .update();
+
+        dbMigrator.migrate();
+
+        var ipDbService = new IpDbService(dataSource);
+        var v4 = ipDbService.listRanges(1, PageRequest.of(0, 10));
+        assertThat(v4.stream().map(IpRange::minAddress).map(IpAddress::address).toList(), contains("10.0.0.0", "192.168.0.0", "255.255.255.0"));
+        assertThat(v4.stream().map(IpRange::maxAddress).map(IpAddress::address).toList(), contains("10.0.0.4", "192.168.1.0", "end"));
+        assertThat(v4.get(2).maxAddress(), is(IpVersion.V4.end()));
+        assertThat(ipDbService.rangeOf(ipDbService.findSpace(1), IpAddress.v4("255.255.255.255")), is(v4.get(2)));
+
+        IpSpace v6Space = ipDbService.findSpace(2);
+        var v6 = ipDbService.listRanges(v6Space, PageRequest.of(0, 10));
+        assertThat(v6.stream().map(IpRange::minAddress).map(IpAddress::address).toList(), contains("2001:db8::", "fd00::", "ffff::"));
+        assertThat(v6.stream().map(IpRange::maxAddress).map(IpAddress::address).toList(), contains("2001:db8::100", "fd00::1:0", "end"));
+        assertThat(v6.get(2).getMax(), is(BigInteger.ONE.shiftLeft(128)));
+        assertThat(ipDbService.rangeOf(v6Space, IpAddress.v6("fd00::ffff")), is(v6.get(1)));
+        assertThat(ipDbService.rangeOf(v6Space, IpVersion.V6.last()), is(v6.get(2)));
+    }
+
+    // a bound past the address space fails the migration with the id of its range, rather than being cut off
+    @Test
+    void test_migrateBoundsOutOfSpace() {
+        DataSource dataSource = DbFactory.INSTANCE.dataSource("jdbc:h2:mem:test_migrateBoundsOutOfSpace;MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH");
+        var dbMigrator = new DbMigrator(dataSource);
+        dbMigrator.migrate(DbMigrator.Migration.IP_RANGES);
+
+        var jdbcClient = JdbcClient.create(dataSource);
+        jdbcClient.sql("insert into ip_space(id, name, version) values (2, 'v6', 6)").update();
+        jdbcClient.sql("insert into ip_range_v6(id, ip_space_id, name, min, max) values (7, 2, 'a', ?, ?)")
+                .params(IpAddress.v6("ffff::").toBigInteger(), BigInteger.ONE.shiftLeft(128).add(BigInteger.ONE))
+                .update();
+
+        var e = assertThrows(RuntimeException.class, dbMigrator::migrate);
+        assertThat(e.getCause().getMessage(), containsString("ipv6 range 7"));
+        // rolled back, the numeric bounds are still there
+        assertThat(jdbcClient.sql("select count(*) from ip_range_v6 where max is not null").query(Integer.class).single(), is(1));
+    }
+}